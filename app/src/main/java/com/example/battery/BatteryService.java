@@ -5,59 +5,137 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.Message;
+import android.util.JsonReader;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import androidx.annotation.NonNull;
+import androidx.lifecycle.DefaultLifecycleObserver;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.ref.WeakReference;
+import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 public  class BatteryService extends AccessibilityService {
 
     private static final String TAG = "BatteryService";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     private static final String NOTIFICATION_CHANNEL_ID = "BatteryMonitorChannel";
     private static final String NOTIFICATION_CHANNEL_NAME = "Battery Monitor";
     private static final int NOTIFICATION_ID = 1;
-    private static final String BATTERY_DATA_FILENAME = "battery_data.json";
-    private static final int SAVE_INTERVAL = 12; // Save every 12 data points (approx. every minute)
+    private static final String LEGACY_DATA_FILENAME = "battery_data.json";
+    private static final String SAMPLE_LOG_FILENAME = "battery_data.bin";
+    private static final String HISTORY_DIRNAME = "history";
+    // Debug extras of the start intent, see startDebugSource()
+    private static final String EXTRA_SOURCE = "source";
+    private static final String EXTRA_SPEED = "speed";
+    private static final String EXTRA_FILE = "file";
+    private static final float DEFAULT_DEBUG_SPEED = 60;
+    private static final int MAX_PENDING_READINGS = 1024;
+    private static final String GAUGE_FEED_SAMPLES = "feed.samples";
+    private static final String GAUGE_FEED_HEAP_BYTES = "feed.heap_bytes";
     private static BatteryService mInstance;
 
-    private long mScreenOnCount;
+    // Milliseconds with the screen on in the current session, each interval between two
+    // samples credited to the screen state it started in
+    private long mScreenOnTime;
+    private long mLastSampleTime = -1;
+    private boolean mLastScreenOn;
 
 //    private final IBinder mBinder = new LocalBinder();
-    private final List<BatteryData> mBatteryDataPoints = new ArrayList<>();
-    private DataHandler mDataHandler;
-    private boolean mIsScreenOn = true;
+    // Writers synchronize on the feed; readers go through its lock-free snapshots
+    private final SampleFeed mBatteryDataPoints = new SampleFeed();
+    // Updated under the feed lock, one sample at a time
+    private final BatteryStats mStats = new BatteryStats();
+    private volatile BatteryStats.Snapshot mStatsSnapshot = mStats.snapshot();
+    private final DrainPredictor mPredictor = new DrainPredictor();
+    private volatile DrainPredictor.Estimate mEstimate;
+    // Percentiles of the current session, under the feed lock like the stats
+    private final SampleDistributions mDistributions = new SampleDistributions();
+    // The running charge or discharge session; unlike the stats it spans clearData()
+    private final ChargeSessions.Detector mChargeDetector = new ChargeSessions.Detector();
+    private volatile ChargeSessions.Summary mChargeSession;
+    private SampleHistory mHistory;
+    private SampleWriter mSampleWriter;
+    // Bumped by clearData() so a history load still in flight is discarded
+    private int mHistoryGeneration;
+    private Handler mMainHandler;
     long mStartTime;
-
-    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
-                mIsScreenOn = true;
-            } else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
-                mIsScreenOn = false;
-            }
+    // Where readings come from, the device itself unless a debug source was asked for.
+    // Set on the main thread, read by the source threads queueing readings.
+    private volatile BatterySampleSource mSource;
+    // Whether samples go into the history, false for debug sources
+    private boolean mRecording = true;
+    // Readings queued from a source's own thread for the main thread, guarded by the lock
+    private final Object mPendingLock = new Object();
+    private final SampleStore mPendingReadings = new SampleStore(MAX_PENDING_READINGS);
+    private boolean mDrainPosted;
+    private final Runnable mDrainReadings = () -> {
+        SampleStore.View readings;
+        synchronized (mPendingLock) {
+            // Clearing allocates new arrays, so the view keeps the readings taken here
+            readings = mPendingReadings.view();
+            mPendingReadings.clear();
+            mDrainPosted = false;
+            mPendingLock.notifyAll();
+        }
+        for (int i = 0; i < readings.size(); i++) {
+            onReading(readings.getPastTime(i), readings.getLevel(i), readings.getScale(i),
+                    readings.getTemperature(i), readings.getVoltage(i), readings.getStatus(i),
+                    readings.isScreenOn(i), readings.getCurrent(i));
+        }
+    };
+    // Latest reading from the source, main thread only
+    private boolean mHasBatteryState;
+    private int mLevel;
+    private int mScale;
+    private int mTemperature;
+    private int mVoltage;
+    private int mStatus;
+    private boolean mIsScreenOn = true;
+    private int mCurrent;
+    // Foreground app attribution; the timeline is only touched on the writer thread,
+    // the rest on the main thread
+    private final PackageTable mPackages = new PackageTable();
+    private AppTimeline mAppTimeline;
+    private final AppEnergy mAppEnergy = new AppEnergy();
+    private String mForegroundPackage;
+    private final IngestFilter mIngestFilter = new IngestFilter(Constant.MAX_SAMPLE_INTERVAL_MS);
+    private final Histogram mIngestLatency = Metrics.get().histogram("ingest_us");
+    private final Metrics.Counter mIngestAccepted = Metrics.get().counter("ingest.accepted");
+    private final Metrics.Counter mIngestFiltered = Metrics.get().counter("ingest.filtered");
+    // Process-wide, so unregistered in onDestroy() to let go of the service
+    private final LongSupplier mFeedSamples = () -> mBatteryDataPoints.view().size();
+    private final LongSupplier mFeedHeapBytes = () -> mBatteryDataPoints.heapBytes();
+    private final Histogram mOpenLatency = Metrics.get().histogram("history.open_us");
+    private final Histogram mLoadLatency = Metrics.get().histogram("history.load_us");
+    // Main thread only; copy-on-write so an observer may unsubscribe while being notified
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    // Set from any thread when a change is pending, cleared by the dispatch
+    private final AtomicBoolean mDispatchPending = new AtomicBoolean();
+    private final Runnable mDispatch = () -> {
+        mDispatchPending.set(false);
+        for (Subscription subscription : mSubscriptions) {
+            subscription.deliver();
         }
     };
 
@@ -67,26 +145,53 @@ public  class BatteryService extends AccessibilityService {
 //        }
 //    }
 
-    private static class DataHandler extends Handler {
-        private final WeakReference<BatteryService> mServiceRef;
-        private static final int MSG_COLLECT_DATA = 1;
+    /**
+     * Receives the current session's samples, statistics and prediction on the main thread
+     * whenever they change.
+     */
+    public interface DataObserver {
+        /**
+         * @param reset whether samples delivered before are stale, because the session was
+         *              cleared or its history was inserted in front
+         */
+        void onDataChanged(SampleStore.View samples, boolean reset, BatteryStats.Snapshot stats,
+                           DrainPredictor.Estimate prediction);
+    }
 
-        DataHandler(BatteryService service, Looper looper) {
-            super(looper);
-            mServiceRef = new WeakReference<>(service);
+    /**
+     * One observer and how far it has read. Follows its owner's lifecycle: skips deliveries
+     * while the owner is not resumed, catches up with a single one when it resumes, and
+     * unsubscribes when it is destroyed.
+     */
+    private final class Subscription implements DefaultLifecycleObserver {
+        final LifecycleOwner mOwner;
+        final DataObserver mObserver;
+        final SampleFeed.Cursor mCursor = new SampleFeed.Cursor();
+
+        Subscription(LifecycleOwner owner, DataObserver observer) {
+            mOwner = owner;
+            mObserver = observer;
         }
 
-        @Override
-        public void handleMessage(Message msg) {
-            BatteryService service = mServiceRef.get();
-            if (service == null) {
+        void deliver() {
+            if (!mOwner.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.RESUMED)) {
                 return;
             }
-            if (msg.what == MSG_COLLECT_DATA) {
-                service.collectBatteryData();
-                sendEmptyMessageDelayed(MSG_COLLECT_DATA, Constant.REFRESH_RATE_MS);
+            SampleStore.View samples = mBatteryDataPoints.advance(mCursor);
+            if (samples != null) {
+                mObserver.onDataChanged(samples, mCursor.isReset(), mStatsSnapshot, mEstimate);
             }
         }
+
+        @Override
+        public void onResume(@NonNull LifecycleOwner owner) {
+            deliver();
+        }
+
+        @Override
+        public void onDestroy(@NonNull LifecycleOwner owner) {
+            removeObserver(mObserver);
+        }
     }
 
     public static BatteryService getInstance() {
@@ -108,7 +213,26 @@ public  class BatteryService extends AccessibilityService {
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-
+        if (event.getEventType() != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                || event.getPackageName() == null || mSampleWriter == null) {
+            return;
+        }
+        // Apps raise many window events; only a change of package is a transition
+        String packageName = event.getPackageName().toString();
+        if (packageName.equals(mForegroundPackage)) {
+            return;
+        }
+        mForegroundPackage = packageName;
+        int appId = mPackages.intern(packageName);
+        long now = System.currentTimeMillis();
+        mAppEnergy.onForeground(now, appId);
+        mSampleWriter.execute(() -> {
+            try {
+                mAppTimeline.append(now, appId);
+            } catch (IOException e) {
+                Log.e(TAG, "Error recording foreground app", e);
+            }
+        });
     }
 
 
@@ -120,19 +244,32 @@ public  class BatteryService extends AccessibilityService {
     @Override
     public void onCreate() {
         super.onCreate();
-        Log.d(TAG, "Service created");
-        loadDataFromFile();
-        if (!mBatteryDataPoints.isEmpty()) {
-            mStartTime = System.currentTimeMillis() - mBatteryDataPoints.get(mBatteryDataPoints.size() -1).mPastTime;
-            mScreenOnCount = mBatteryDataPoints.get(mBatteryDataPoints.size() -1).mScreenOnCount;
-        } else {
-            mStartTime = System.currentTimeMillis();
+        if (DEBUG) {
+            Log.d(TAG, "Service created");
         }
+        mMainHandler = new Handler(Looper.getMainLooper());
+        File historyDir = new File(getFilesDir(), HISTORY_DIRNAME);
+        mHistory = new SampleHistory(historyDir);
+        mAppTimeline = new AppTimeline(historyDir, mPackages);
+        Metrics.get().gauge(GAUGE_FEED_SAMPLES, mFeedSamples);
+        Metrics.get().gauge(GAUGE_FEED_HEAP_BYTES, mFeedHeapBytes);
+        loadDataFromFile();
+    }
+
+    /**
+     * Prints the collector's metrics, for
+     * {@code adb shell dumpsys activity service com.example.battery/.BatteryService}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Metrics.get().dump(writer);
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.d(TAG, "Service start");
+        if (DEBUG) {
+            Log.d(TAG, "Service start");
+        }
 
         NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, NOTIFICATION_CHANNEL_NAME, NotificationManager.IMPORTANCE_LOW);
         NotificationManager manager = getSystemService(NotificationManager.class);
@@ -146,189 +283,735 @@ public  class BatteryService extends AccessibilityService {
 
 //        startForeground(NOTIFICATION_ID, notification);
 
-        mDataHandler = new DataHandler(this, Looper.getMainLooper());
-        startDataCollection();
-        registerScreenStateReceiver();
+        if (intent != null && intent.hasExtra(EXTRA_SOURCE)) {
+            startDebugSource(intent);
+        } else if (mSource == null) {
+            setSampleSource(new LiveSampleSource(this), true);
+        }
         return super.onStartCommand(intent, flags, startId);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        stopDataCollection();
-        unregisterReceiver(mScreenStateReceiver);
-        saveDataToFile();
+        if (mSource != null) {
+            mSource.stop();
+        }
+        mSampleWriter.close();
+        mMainHandler.removeCallbacks(mDispatch);
+        Metrics.get().removeGauge(GAUGE_FEED_SAMPLES, mFeedSamples);
+        Metrics.get().removeGauge(GAUGE_FEED_HEAP_BYTES, mFeedHeapBytes);
         stopForeground(true);
     }
 
-    private void startDataCollection() {
-        mDataHandler.sendEmptyMessage(DataHandler.MSG_COLLECT_DATA);
+    /**
+     * Switches to another source of readings, starting a new session so samples from
+     * different sources never share one. Call it on the main thread.
+     *
+     * @param record whether the samples go into the history; debug sources are kept out of
+     *               it so nothing they produce outlives them
+     */
+    public void setSampleSource(BatterySampleSource source, boolean record) {
+        if (mSource != null) {
+            mSource.stop();
+        }
+        boolean hadSource = mSource != null;
+        synchronized (mPendingLock) {
+            mSource = source;
+            mPendingReadings.clear();
+            mPendingLock.notifyAll();
+        }
+        mRecording = record;
+        mHasBatteryState = false;
+        if (hadSource) {
+            clearData();
+        }
+        source.start((time, level, scale, temperature, voltage, status, isScreenOn, current) -> {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                if (mSource == source) {
+                    onReading(time, level, scale, temperature, voltage, status, isScreenOn, current);
+                }
+            } else {
+                queueReading(source, time, level, scale, temperature, voltage, status,
+                        isScreenOn, current);
+            }
+        });
     }
 
-    private void stopDataCollection() {
-        mDataHandler.removeMessages(DataHandler.MSG_COLLECT_DATA);
+    /**
+     * Hands a reading from a source's own thread over to the main thread, batched with the
+     * others pending. Blocks while {@link #MAX_PENDING_READINGS} are already pending, so a
+     * source faster than ingest is held back instead of flooding the main looper.
+     */
+    private void queueReading(BatterySampleSource source, long time, int level, int scale,
+                              int temperature, int voltage, int status, boolean isScreenOn,
+                              int current) {
+        synchronized (mPendingLock) {
+            try {
+                while (mSource == source && mPendingReadings.size() >= MAX_PENDING_READINGS) {
+                    mPendingLock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // A stopped source may still have a reading in flight
+            if (mSource != source) {
+                return;
+            }
+            mPendingReadings.add(time, level, scale, temperature, voltage, status, isScreenOn,
+                    current, 0);
+            if (!mDrainPosted) {
+                mDrainPosted = true;
+                mMainHandler.post(mDrainReadings);
+            }
+        }
     }
 
-    private void collectBatteryData() {
-        Log.d(TAG, "Collecting battery data");
-        IntentFilter filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-        Intent batteryStatus = registerReceiver(null, filter);
-        BatteryManager batteryManager = (BatteryManager) getSystemService(Context.BATTERY_SERVICE);
+    private void onReading(long time, int level, int scale, int temperature, int voltage,
+                           int status, boolean isScreenOn, int current) {
+        mLevel = level;
+        mScale = scale;
+        mTemperature = temperature;
+        mVoltage = voltage;
+        mStatus = status;
+        mIsScreenOn = isScreenOn;
+        mCurrent = current;
+        mHasBatteryState = true;
+        ingest(time);
+    }
 
+    /**
+     * Replaces the live readings for load testing, e.g.
+     * {@code adb shell am startservice -n com.example.battery/.BatteryService
+     * --es source synthetic --ef speed 600}, or {@code --es source replay --es file <path>}
+     * with a binary export; {@code --es source live} goes back to the device. Readings of
+     * these sources are shown but not recorded.
+     */
+    private void startDebugSource(Intent intent) {
+        String source = intent.getStringExtra(EXTRA_SOURCE);
+        double speed = intent.getFloatExtra(EXTRA_SPEED, DEFAULT_DEBUG_SPEED);
+        if ("synthetic".equals(source)) {
+            setSampleSource(new SyntheticSampleSource(System.nanoTime(), Long.MAX_VALUE, speed),
+                    false);
+        } else if ("replay".equals(source)) {
+            String path = intent.getStringExtra(EXTRA_FILE);
+            if (path == null) {
+                Log.e(TAG, "No file to replay");
+                return;
+            }
+            mSampleWriter.execute(() -> {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+                    ReplaySampleSource replay = ReplaySampleSource.fromExport(in, speed);
+                    mMainHandler.post(() -> setSampleSource(replay, false));
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading " + path, e);
+                }
+            });
+        } else if ("live".equals(source)) {
+            setSampleSource(new LiveSampleSource(this), true);
+        } else {
+            Log.e(TAG, "Unknown sample source " + source);
+        }
+    }
 
-        if (batteryStatus != null) {
-            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
-            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
-            int temperature = batteryStatus.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
-            int voltage = batteryStatus.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0);
-            int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-            int current = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_AVERAGE) / 1000;
+    /**
+     * Records the latest battery state as a sample, unless it repeats the previous one.
+     */
+    private void ingest(long now) {
+        if (!mHasBatteryState) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        mAppEnergy.onSample(now, mVoltage, mCurrent, mIsScreenOn);
+        if (!mIngestFilter.accept(now, mLevel, mScale, mTemperature, mVoltage, mStatus,
+                mIsScreenOn, mCurrent)) {
+            mIngestFiltered.increment();
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Collecting battery data");
+        }
+        BatteryData sample;
+        synchronized (mBatteryDataPoints) {
+            long delta = now - mLastSampleTime;
+            if (mLastSampleTime >= 0 && mLastScreenOn && delta > 0
+                    && delta <= BatteryStats.MAX_GAP_MS) {
+                mScreenOnTime += delta;
+            }
+            mLastSampleTime = now;
+            mLastScreenOn = mIsScreenOn;
+            if (DEBUG) {
+                Log.d(TAG, "screenOnTime: " + mScreenOnTime);
+            }
+            sample = new BatteryData(now - mStartTime, mLevel, mScale, mTemperature,
+                    mVoltage, mStatus, mIsScreenOn, mCurrent, mScreenOnTime);
+            mBatteryDataPoints.add(sample);
+            mStats.add(sample);
+            mDistributions.add(sample);
+            mStatsSnapshot = mStats.snapshot();
+            mPredictor.add(sample);
+            mEstimate = mPredictor.estimate();
+            // The detector mirrors the persisted charge sessions, so only recorded samples
+            if (mRecording) {
+                mChargeDetector.add(now, mLevel, mScale, mTemperature, mVoltage, mStatus,
+                        mIsScreenOn, mCurrent);
+                mChargeSession = mChargeDetector.current().copy();
+            }
+        }
+        if (mRecording) {
+            mSampleWriter.enqueue(sample);
+        }
+        notifyObservers();
+        mIngestAccepted.increment();
+        mIngestLatency.recordMicrosSince(startNanos);
+    }
 
-            synchronized (mBatteryDataPoints) {
-                if (mIsScreenOn) {
-                    mScreenOnCount++;
-                }
-                Log.d(TAG, "screenOnCount: " + mScreenOnCount);
-                mBatteryDataPoints.add(new BatteryData(System.currentTimeMillis() - mStartTime
-                        , level, scale, temperature, voltage, status, mIsScreenOn, current, mScreenOnCount));
+    /**
+     * Restores the timeline from the latest sample of the current session right away and
+     * streams the rest of that session into mBatteryDataPoints on the persistence thread.
+     * Older sessions stay on disk until they are asked for.
+     */
+    private void loadDataFromFile() {
+        long startNanos = System.nanoTime();
+        try {
+            SampleLog.Recovery recovery = mHistory.open();
+            if (DEBUG) {
+                Log.d(TAG, "Recovered " + recovery.mRecovered + " data points, truncated "
+                        + recovery.mTruncatedBytes + " bytes" + (recovery.mUpgraded ? ", upgraded" : ""));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error recovering data file", e);
+        }
+        importLegacyData();
+        // Nothing is queued for the writer yet, so the persisted session is up to date
+        mChargeDetector.seed(mHistory.currentChargeSession());
+        try {
+            // Before any window event interns a package, so IDs stay stable
+            mAppTimeline.open();
+            mAppTimeline.prune(System.currentTimeMillis() - SampleHistory.RETENTION_MS);
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening app timeline", e);
+        }
 
-                if (mBatteryDataPoints.size() % SAVE_INTERVAL == 0) {
-                    saveDataToFile();
-                }
+        mStartTime = System.currentTimeMillis();
+        BatteryData latest = null;
+        try {
+            latest = mHistory.readLast();
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading data from file", e);
+        }
+        if (latest != null) {
+            mStartTime -= latest.mPastTime;
+            mScreenOnTime = latest.mScreenOnTime;
+            mLastSampleTime = mStartTime + latest.mPastTime;
+            mLastScreenOn = latest.mIsScreenOn;
+        } else {
+            if (DEBUG) {
+                Log.d(TAG, "No data in current session. Starting fresh.");
             }
         }
+
+        mSampleWriter = new SampleWriter(mHistory, mStartTime);
+        // Ahead of the first append, which would otherwise land in the tiers first
+        mSampleWriter.execute(() -> {
+            try {
+                mHistory.rebuildSummaries();
+            } catch (IOException e) {
+                Log.e(TAG, "Error rebuilding rollups", e);
+            }
+        });
+        if (latest != null) {
+            // Snapshot the segments now; new samples go to a fresh segment after the restart
+            final List<SegmentIndex.Entry> segments = mHistory.segmentsOf(mHistory.getCurrentSession());
+            final int generation = mHistoryGeneration;
+            mSampleWriter.execute(() -> loadHistory(segments, generation));
+        }
+        mOpenLatency.recordMicrosSince(startNanos);
     }
 
-    private void saveDataToFile() {
+    private void loadHistory(List<SegmentIndex.Entry> segments, int generation) {
+        long startNanos = System.nanoTime();
+        SampleStore history = new SampleStore();
+        try {
+            mHistory.readSegments(segments, history);
+        } catch (IOException e) {
+            Log.e(TAG, "Error loading data from file", e);
+        }
+        AppEnergy pastUsage = replayAppEnergy(segments, history.view());
+        if (pastUsage != null) {
+            mMainHandler.post(() -> {
+                if (generation == mHistoryGeneration) {
+                    mAppEnergy.add(pastUsage);
+                }
+            });
+        }
+
         synchronized (mBatteryDataPoints) {
-            JSONArray jsonArray = new JSONArray();
-            for (BatteryData dataPoint : mBatteryDataPoints) {
-                try {
-                    jsonArray.put(dataPoint.toJson());
-                } catch (JSONException e) {
-                    Log.e(TAG, "Error converting BatteryData to JSON", e);
+            if (generation != mHistoryGeneration) {
+                if (DEBUG) {
+                    Log.d(TAG, "Data cleared while loading, dropping history.");
                 }
+                return;
             }
+            mBatteryDataPoints.prepend(history.view());
+            // The history comes before everything counted so far, fold it in from the start
+            mStats.reset();
+            mStats.addAll(mBatteryDataPoints.view());
+            mDistributions.clear();
+            mDistributions.addAll(mBatteryDataPoints.view());
+            mStatsSnapshot = mStats.snapshot();
+            mPredictor.reset();
+            mPredictor.addAll(mBatteryDataPoints.view());
+            mEstimate = mPredictor.estimate();
+            if (DEBUG) {
+                Log.d(TAG, "Successfully loaded " + history.size() + " data points.");
+            }
+        }
+        mLoadLatency.recordMicrosSince(startNanos);
+        notifyObservers();
+    }
 
-            try (FileOutputStream fos = openFileOutput(BATTERY_DATA_FILENAME, Context.MODE_PRIVATE)) {
-                fos.write(jsonArray.toString().getBytes());
-                Log.d(TAG, "Successfully saved " + mBatteryDataPoints.size() + " data points.");
-            } catch (IOException e) {
-                Log.e(TAG, "Error saving data to file", e);
+    /**
+     * Attributes the restored history to the apps that were in front, segment by segment
+     * since each has its own time base. Gives up if some samples could not be read.
+     */
+    private AppEnergy replayAppEnergy(List<SegmentIndex.Entry> segments, SampleStore.View history) {
+        int total = 0;
+        for (SegmentIndex.Entry entry : segments) {
+            total += entry.mCount;
+        }
+        if (total != history.size() || segments.isEmpty()) {
+            return null;
+        }
+        AppEnergy usage = new AppEnergy();
+        try {
+            AppTimeline.Transitions transitions = mAppTimeline.read(
+                    segments.get(0).mFirstTime, segments.get(segments.size() - 1).mLastTime);
+            int from = 0;
+            for (SegmentIndex.Entry entry : segments) {
+                usage.replay(history, from, from + entry.mCount, entry.mStartTime, transitions);
+                from += entry.mCount;
             }
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading app timeline", e);
+            return null;
         }
+        return usage;
     }
 
-    private void loadDataFromFile() {
-        File file = new File(getFilesDir(), BATTERY_DATA_FILENAME);
+    /**
+     * Moves data written by older versions into the segmented history: battery_data.json is
+     * first converted into a standalone sample log, which then becomes a session of its own.
+     */
+    private void importLegacyData() {
+        File legacyLog = new File(getFilesDir(), SAMPLE_LOG_FILENAME);
+        SampleLog log = new SampleLog(legacyLog);
+        try {
+            log.recover();
+        } catch (IOException e) {
+            Log.e(TAG, "Error recovering legacy data file", e);
+        }
+        if (!log.exists()) {
+            migrateLegacyJson(log);
+        }
+        if (!log.exists()) {
+            return;
+        }
+        try {
+            mHistory.adopt(legacyLog);
+            if (DEBUG) {
+                Log.d(TAG, "Moved " + SAMPLE_LOG_FILENAME + " into history");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error importing legacy data file", e);
+        }
+    }
+
+    /**
+     * One-shot conversion of the old battery_data.json into the binary sample log. The array
+     * is decoded with a streaming reader, and the JSON file is only deleted once the log has
+     * been atomically put in place.
+     */
+    private void migrateLegacyJson(SampleLog log) {
+        File file = new File(getFilesDir(), LEGACY_DATA_FILENAME);
         if (!file.exists()) {
-            Log.d(TAG, "Data file does not exist. Starting fresh.");
             return;
         }
 
-        try (FileInputStream fis = openFileInput(BATTERY_DATA_FILENAME);
-             InputStreamReader inputStreamReader = new InputStreamReader(fis);
-             BufferedReader bufferedReader = new BufferedReader(inputStreamReader)) {
+        try (FileInputStream fis = openFileInput(LEGACY_DATA_FILENAME);
+             JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(fis)))) {
+
+            SampleStore store = new SampleStore();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readLegacySample(reader, store);
+            }
+            reader.endArray();
+
+            SampleStore.View samples = store.view();
+            long startTime = samples.isEmpty() ? System.currentTimeMillis()
+                    : System.currentTimeMillis() - samples.getPastTime(samples.size() - 1);
+            log.rewrite(startTime, samples);
+            deleteFile(LEGACY_DATA_FILENAME);
+            if (DEBUG) {
+                Log.d(TAG, "Migrated " + samples.size() + " data points from " + LEGACY_DATA_FILENAME);
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Error migrating legacy data file", e);
+        }
+    }
 
-            StringBuilder stringBuilder = new StringBuilder();
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                stringBuilder.append(line);
+    private static void readLegacySample(JsonReader reader, SampleStore store) throws IOException {
+        long pastTime = 0;
+        int level = 0;
+        int scale = 100;
+        int temperature = 0;
+        int voltage = 0;
+        int status = -1;
+        boolean isScreenOn = false;
+        int current = 0;
+        long screenOnTime = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "timestamp":
+                    pastTime = reader.nextLong();
+                    break;
+                case "level":
+                    level = reader.nextInt();
+                    break;
+                case "scale":
+                    scale = reader.nextInt();
+                    break;
+                case "temperature":
+                    temperature = reader.nextInt();
+                    break;
+                case "voltage":
+                    voltage = reader.nextInt();
+                    break;
+                case "status":
+                    status = reader.nextInt();
+                    break;
+                case "isScreenOn":
+                    isScreenOn = reader.nextBoolean();
+                    break;
+                case "current":
+                    current = reader.nextInt();
+                    break;
+                case "screenOnCount":
+                    screenOnTime = reader.nextLong() * BatteryData.LEGACY_SCREEN_ON_TICK_MS;
+                    break;
+                case "screenOnTime":
+                    screenOnTime = reader.nextLong();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        store.add(pastTime, level, scale, temperature, voltage, status, isScreenOn, current,
+                screenOnTime);
+    }
+
+
+    /**
+     * Zero-copy view of the current session. Never blocks the collector.
+     */
+    public SampleStore.View getBatteryData() {
+        return mBatteryDataPoints.view();
+    }
+
+    /**
+     * Increases whenever the current session's samples change, so a reader holding the same
+     * version can skip its work.
+     */
+    public long getDataVersion() {
+        return mBatteryDataPoints.version();
+    }
+
+    /**
+     * Appends the samples collected since {@code cursor}'s previous read to {@code buffer}.
+     * See {@link SampleFeed#readSince}.
+     */
+    public int readSamplesSince(SampleFeed.Cursor cursor, SampleStore buffer) {
+        return mBatteryDataPoints.readSince(cursor, buffer);
+    }
+
+    /**
+     * Appends the current session's samples with pastTime in {@code [from, to]} to
+     * {@code buffer}.
+     */
+    public int readSamples(long from, long to, SampleStore buffer) {
+        return mBatteryDataPoints.readRange(from, to, buffer);
+    }
+
+    /**
+     * Sessions recorded so far, oldest first. The last one is usually the current session.
+     */
+    public List<SegmentIndex.Session> getSessions() {
+        return mHistory.sessions();
+    }
+
+    public int getCurrentSession() {
+        return mHistory.getCurrentSession();
+    }
+
+    public interface OnSessionLoadedListener {
+        void onSessionLoaded(int session, SampleStore.View samples, BatteryStats.Snapshot stats,
+                             SampleDistributions distributions);
+    }
+
+    /**
+     * Reads a past session on the persistence thread and delivers it on the main thread.
+     * Sessions long enough to fill {@code pixels} from a rollup tier are read from the
+     * coarsest such tier, one sample per bucket; shorter ones from their raw segments.
+     */
+    public void loadSession(int session, int pixels, OnSessionLoadedListener listener) {
+        mSampleWriter.execute(() -> {
+            SegmentIndex.Session summary = null;
+            for (SegmentIndex.Session candidate : mHistory.sessions()) {
+                if (candidate.mId == session) {
+                    summary = candidate;
+                }
+            }
+            RollupTier tier = summary == null ? null
+                    : mHistory.selectRollup(summary.mLastTime - summary.mFirstTime, pixels);
+            SampleStore samples = new SampleStore();
+            BatteryStats stats = new BatteryStats();
+            SampleDistributions distributions = new SampleDistributions();
+            try {
+                if (tier != null) {
+                    // Buckets and sketches at the edges would take in neighbouring sessions,
+                    // but every listed session still has its raw segments
+                    List<SegmentIndex.Entry> segments = mHistory.segmentsOf(session);
+                    distributions = mHistory.distributionsOf(segments);
+                    List<RollupTier.Bucket> buckets = mHistory.bucketsOf(tier, segments);
+                    RollupTier.toSamples(buckets, summary.mFirstTime, samples);
+                    for (RollupTier.Bucket bucket : buckets) {
+                        stats.add(bucket);
+                    }
+                    if (DEBUG) {
+                        Log.d(TAG, "Session " + session + " from " + buckets.size() + " buckets of "
+                                + tier.getDuration() + " ms");
+                    }
+                } else {
+                    mHistory.readSegments(mHistory.segmentsOf(session), samples);
+                    stats.addAll(samples.view());
+                    distributions.addAll(samples.view());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading session " + session, e);
             }
+            SampleStore.View view = samples.view();
+            BatteryStats.Snapshot snapshot = stats.snapshot();
+            SampleDistributions loaded = distributions;
+            mMainHandler.post(() -> listener.onSessionLoaded(session, view, snapshot, loaded));
+        });
+    }
 
-            JSONArray jsonArray = new JSONArray(stringBuilder.toString());
-            synchronized (mBatteryDataPoints) {
-                mBatteryDataPoints.clear();
-                for (int i = 0; i < jsonArray.length(); i++) {
-                    JSONObject jsonObject = jsonArray.getJSONObject(i);
-                    mBatteryDataPoints.add(new BatteryData(jsonObject));
+    public interface OnExportedListener {
+        /**
+         * @param count samples exported, or -1 if the export failed
+         */
+        void onExported(long count);
+    }
+
+    /**
+     * Streams the history between the wall-clock times {@code from} and {@code to} to
+     * {@code out} on the persistence thread, after writing out the samples still queued,
+     * then closes {@code out} and reports on the main thread.
+     *
+     * @param format {@link SampleExporter#FORMAT_CSV} or {@link SampleExporter#FORMAT_BINARY}
+     */
+    public void export(OutputStream out, int format, long from, long to,
+                       OnExportedListener listener) {
+        mSampleWriter.flush();
+        mSampleWriter.execute(() -> {
+            long count;
+            try (OutputStream stream = out) {
+                SampleExporter exporter = new SampleExporter(stream, format);
+                mHistory.export(from, to, exporter);
+                count = exporter.finish();
+                if (DEBUG) {
+                    Log.d(TAG, "Exported " + count + " samples");
                 }
-                Log.d(TAG, "Successfully loaded " + mBatteryDataPoints.size() + " data points.");
+            } catch (IOException e) {
+                Log.e(TAG, "Error exporting history", e);
+                count = -1;
             }
+            long exported = count;
+            mMainHandler.post(() -> listener.onExported(exported));
+        });
+    }
 
-        } catch (IOException | JSONException e) {
-            Log.e(TAG, "Error loading data from file", e);
-        }
+    /**
+     * Charge, energy and time per screen state between two wall-clock times, answered from
+     * the persisted prefix sums in O(log n). Reads from disk, so call it off the main thread.
+     */
+    public EnergyIndex.Totals getEnergyBetween(long from, long to) throws IOException {
+        return mHistory.energyBetween(from, to);
     }
 
+    /**
+     * Running statistics of the current session, updated with every sample.
+     */
+    public BatteryStats.Snapshot getStats() {
+        return mStatsSnapshot;
+    }
 
-    public List<BatteryData> getBatteryData() {
+    /**
+     * A copy of the temperature, voltage and power percentiles of the current session.
+     */
+    public SampleDistributions getDistributions() {
         synchronized (mBatteryDataPoints) {
-            return new ArrayList<>(mBatteryDataPoints);
+            return mDistributions.copy();
         }
     }
 
-    public long getScreenOnCount() {
-        return mScreenOnCount;
+    public interface OnDistributionsLoadedListener {
+        void onDistributionsLoaded(SampleDistributions distributions);
     }
 
-    private void registerScreenStateReceiver() {
-        IntentFilter screenStateFilter = new IntentFilter();
-        screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
-        screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
-        registerReceiver(mScreenStateReceiver, screenStateFilter);
+    /**
+     * Merges the persisted percentile sketches between the wall-clock times {@code from}
+     * and {@code to} on the persistence thread, after the samples still queued, and
+     * delivers them on the main thread.
+     */
+    public void loadDistributions(long from, long to, OnDistributionsLoadedListener listener) {
+        mSampleWriter.flush();
+        mSampleWriter.execute(() -> {
+            SampleDistributions distributions;
+            try {
+                distributions = mHistory.distributionsBetween(from, to);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading distributions", e);
+                distributions = new SampleDistributions();
+            }
+            SampleDistributions loaded = distributions;
+            mMainHandler.post(() -> listener.onDistributionsLoaded(loaded));
+        });
+    }
+
+    /**
+     * The charge or discharge session the battery is in, updated with every sample, or
+     * {@code null} before the first one.
+     */
+    public ChargeSessions.Summary getChargeSession() {
+        return mChargeSession;
+    }
+
+    public interface OnChargeSessionsLoadedListener {
+        void onChargeSessionsLoaded(List<ChargeSessions.Summary> sessions);
+    }
+
+    /**
+     * Reads the summaries of every charge and discharge session, oldest first, on the
+     * persistence thread after the samples still queued, and delivers them on the main
+     * thread.
+     */
+    public void loadChargeSessions(OnChargeSessionsLoadedListener listener) {
+        mSampleWriter.flush();
+        mSampleWriter.execute(() -> {
+            List<ChargeSessions.Summary> sessions;
+            try {
+                sessions = mHistory.chargeSessions();
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading charge sessions", e);
+                sessions = new ArrayList<>();
+            }
+            List<ChargeSessions.Summary> loaded = sessions;
+            mMainHandler.post(() -> listener.onChargeSessionsLoaded(loaded));
+        });
+    }
+
+    /**
+     * Remaining time predicted from the current session, or {@code null} while the battery
+     * is not known to be draining.
+     */
+    public DrainPredictor.Estimate getPrediction() {
+        return mEstimate;
+    }
+
+    /**
+     * Energy and foreground time per app over the current session, the largest consumers
+     * first. Call it on the main thread.
+     */
+    public List<AppEnergy.Usage> getAppUsage() {
+        return mAppEnergy.getUsage(mPackages);
+    }
+
+    public long getScreenOnTime() {
+        return mScreenOnTime;
+    }
+
+    /**
+     * Pushes the current session to {@code observer} on the main thread: right away if
+     * {@code owner} is resumed, then after every change. Changes arriving within
+     * {@link Constant#OBSERVER_COALESCE_MS} of each other are delivered as one. While the
+     * owner is paused nothing is delivered; it gets the latest state once it resumes. Call
+     * it on the main thread; subscribing the same observer again does nothing.
+     */
+    public void observe(LifecycleOwner owner, DataObserver observer) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mObserver == observer) {
+                return;
+            }
+        }
+        Subscription subscription = new Subscription(owner, observer);
+        mSubscriptions.add(subscription);
+        owner.getLifecycle().addObserver(subscription);
+        subscription.deliver();
+    }
+
+    /**
+     * Stops pushing to {@code observer}. Call it on the main thread.
+     */
+    public void removeObserver(DataObserver observer) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mObserver == observer) {
+                mSubscriptions.remove(subscription);
+                subscription.mOwner.getLifecycle().removeObserver(subscription);
+            }
+        }
+    }
+
+    /**
+     * Schedules one delivery to every observer, unless one is already pending. Safe to call
+     * from any thread.
+     */
+    private void notifyObservers() {
+        if (mDispatchPending.compareAndSet(false, true)) {
+            mMainHandler.postDelayed(mDispatch, Constant.OBSERVER_COALESCE_MS);
+        }
     }
 
     public void clearData() {
-        Log.d(TAG, "clearData: ");
+        if (DEBUG) {
+            Log.d(TAG, "clearData: ");
+        }
         synchronized (mBatteryDataPoints) {
             mStartTime = System.currentTimeMillis();
-            mScreenOnCount = 0;
+            mScreenOnTime = 0;
+            mLastSampleTime = -1;
             mBatteryDataPoints.clear();
-            saveDataToFile();
-        }
-    }
-
-    public static class BatteryData {
-        public final long mPastTime;
-        public final int mLevel;
-        public final int mScale;
-        public final int mTemperature;
-        public final int mVoltage;
-        public final int mStatus;
-        public final boolean mIsScreenOn;
-        public final int mCurrent;
-        public final long mScreenOnCount;
-
-        public BatteryData(long timestamp, int level, int scale, int temperature, int voltage, int status, boolean isScreenOn, int current, long screenOnCount) {
-            this.mPastTime = timestamp;
-            this.mLevel = level;
-            this.mScale = scale;
-            this.mTemperature = temperature;
-            this.mVoltage = voltage;
-            this.mStatus = status;
-            this.mIsScreenOn = isScreenOn;
-            this.mCurrent = current;
-            this.mScreenOnCount = screenOnCount;
-        }
-
-        // Constructor to create from JSONObject
-        public BatteryData(JSONObject jsonObject) throws JSONException {
-            this.mPastTime = jsonObject.getLong("timestamp");
-            this.mLevel = jsonObject.getInt("level");
-            this.mScale = jsonObject.getInt("scale");
-            this.mTemperature = jsonObject.getInt("temperature");
-            this.mVoltage = jsonObject.getInt("voltage");
-            this.mStatus = jsonObject.getInt("status");
-            this.mIsScreenOn = jsonObject.getBoolean("isScreenOn");
-            this.mCurrent = jsonObject.getInt("current");
-            this.mScreenOnCount = jsonObject.getLong("screenOnCount");
-        }
-
-        // Method to convert to JSONObject
-        public JSONObject toJson() throws JSONException {
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("timestamp", mPastTime);
-            jsonObject.put("level", mLevel);
-            jsonObject.put("scale", mScale);
-            jsonObject.put("temperature", mTemperature);
-            jsonObject.put("voltage", mVoltage);
-            jsonObject.put("status", mStatus);
-            jsonObject.put("isScreenOn", mIsScreenOn);
-            jsonObject.put("current", mCurrent);
-            jsonObject.put("screenOnCount", mScreenOnCount);
-            return jsonObject;
+            mStats.reset();
+            mStatsSnapshot = mStats.snapshot();
+            mDistributions.clear();
+            mPredictor.reset();
+            mEstimate = null;
+            mHistoryGeneration++;
         }
+        notifyObservers();
+        // Samples of a debug source never reach the history, so there is nothing to split
+        if (mRecording) {
+            mSampleWriter.reset(mStartTime);
+        }
+        mAppEnergy.reset();
+        // Start the new session from the current state
+        mIngestFilter.reset();
+        ingest(System.currentTimeMillis());
     }
-
 }
@@ -1,6 +0,0 @@
-package com.example.battery;
-
-
-public class Constant {
-    public static final int REFRESH_RATE_MS = 5000;
-}
@@ -0,0 +1,163 @@
+package com.example.battery;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Readings from the device itself, delivered on the main thread.
+ * <p>
+ * Battery state arrives with the sticky ACTION_BATTERY_CHANGED broadcast, delivered once on
+ * registration and then whenever the system reports a change, and screen state with the
+ * screen on/off broadcasts. Only the average current has no broadcast and is polled, as
+ * often as {@link SamplingPolicy} asks for the current screen and charging state. Every
+ * broadcast and poll delivers a reading once the battery state is known.
+ */
+public class LiveSampleSource implements BatterySampleSource {
+
+    private final Context mContext;
+    private final BatteryManager mBatteryManager;
+    private final SamplingPolicy mSamplingPolicy = SamplingPolicy.defaults();
+    private final Histogram mPollJitter = Metrics.get().histogram("poll.jitter_ms");
+    private final PollHandler mPollHandler;
+    private Listener mListener;
+    // Latest state, main thread only
+    private boolean mHasBatteryState;
+    private int mLevel;
+    private int mScale;
+    private int mTemperature;
+    private int mVoltage;
+    private int mStatus;
+    private boolean mIsScreenOn = true;
+    private int mCurrent;
+    private long mLastPollTime;
+    // When the scheduled poll should run, to measure how late it actually does. On the
+    // uptime clock the handler runs on, so deep sleep does not count as lateness.
+    private long mPollDueTime;
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                mIsScreenOn = true;
+            } else if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                mIsScreenOn = false;
+            }
+            // The load changes with the screen, and the poll interval with it
+            pollCurrent();
+            deliver();
+        }
+    };
+
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mLevel = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, 0);
+            mScale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+            mTemperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+            mVoltage = intent.getIntExtra(BatteryManager.EXTRA_VOLTAGE, 0);
+            mStatus = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            mHasBatteryState = true;
+            if (mSamplingPolicy.shouldPollEarly(System.currentTimeMillis(), mLastPollTime,
+                    mIsScreenOn, isCharging())) {
+                pollCurrent();
+            } else {
+                // The charging state may have changed the interval
+                schedulePoll();
+            }
+            deliver();
+        }
+    };
+
+    private static class PollHandler extends Handler {
+        private static final int MSG_POLL_CURRENT = 1;
+        private final WeakReference<LiveSampleSource> mSourceRef;
+
+        PollHandler(LiveSampleSource source) {
+            super(Looper.getMainLooper());
+            mSourceRef = new WeakReference<>(source);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            LiveSampleSource source = mSourceRef.get();
+            if (source == null || msg.what != MSG_POLL_CURRENT) {
+                return;
+            }
+            source.mPollJitter.record(Math.max(0, SystemClock.uptimeMillis() - source.mPollDueTime));
+            source.pollCurrent();
+            source.deliver();
+        }
+    }
+
+    public LiveSampleSource(Context context) {
+        mContext = context;
+        mBatteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+        mPollHandler = new PollHandler(this);
+    }
+
+    /**
+     * Registers for the broadcasts and starts polling. Call it on the main thread; does
+     * nothing if already started.
+     */
+    @Override
+    public void start(Listener listener) {
+        if (mListener != null) {
+            return;
+        }
+        mListener = listener;
+        // Before the sticky broadcast is delivered, so the first reading has a current
+        pollCurrent();
+        mContext.registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        IntentFilter screenStateFilter = new IntentFilter();
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+        screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        mContext.registerReceiver(mScreenStateReceiver, screenStateFilter);
+    }
+
+    @Override
+    public void stop() {
+        if (mListener == null) {
+            return;
+        }
+        mListener = null;
+        mPollHandler.removeMessages(PollHandler.MSG_POLL_CURRENT);
+        mContext.unregisterReceiver(mBatteryReceiver);
+        mContext.unregisterReceiver(mScreenStateReceiver);
+    }
+
+    private void deliver() {
+        if (mListener == null || !mHasBatteryState) {
+            return;
+        }
+        mListener.onReading(System.currentTimeMillis(), mLevel, mScale, mTemperature, mVoltage,
+                mStatus, mIsScreenOn, mCurrent);
+    }
+
+    private void pollCurrent() {
+        mCurrent = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CURRENT_AVERAGE) / 1000;
+        mLastPollTime = System.currentTimeMillis();
+        schedulePoll();
+    }
+
+    private void schedulePoll() {
+        mPollHandler.removeMessages(PollHandler.MSG_POLL_CURRENT);
+        long now = System.currentTimeMillis();
+        long delay = mSamplingPolicy.getDelay(now, mLastPollTime, mIsScreenOn, isCharging());
+        mPollDueTime = SystemClock.uptimeMillis() + delay;
+        mPollHandler.sendEmptyMessageDelayed(PollHandler.MSG_POLL_CURRENT, delay);
+    }
+
+    private boolean isCharging() {
+        return mStatus == BatteryManager.BATTERY_STATUS_CHARGING
+                || mStatus == BatteryManager.BATTERY_STATUS_FULL;
+    }
+}
@@ -7,19 +7,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.graphics.Color;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
-import android.os.Message;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
+import android.view.MotionEvent;
+import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 
@@ -32,14 +33,25 @@ import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.ValueFormatter;
-import com.github.mikephil.charting.interfaces.datasets.ILineDataSet;
-
+import com.github.mikephil.charting.listener.ChartTouchListener;
+import com.github.mikephil.charting.listener.OnChartGestureListener;
+
+import java.io.FileNotFoundException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "MainActivity";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    private final Histogram mUiLatency = Metrics.get().histogram("ui.update_us");
     private LineChart mLineChart;
     private TextView mBatteryTextView;
     private TextView mTempTextView;
@@ -53,25 +65,69 @@ public class MainActivity extends AppCompatActivity {
     private BatteryService mBatteryService;
     private float mWh = 0;
     private boolean mIsBound = false;
-
-    private Handler mHandler = new Handler(Looper.getMainLooper()){
+    // Session shown instead of live data, -1 while following the current session
+    private int mViewingSession = -1;
+    private SampleStore.View mSessionData;
+    private BatteryStats.Snapshot mSessionStats;
+    private SampleDistributions mSessionDistributions;
+    // Samples currently drawn and the window of them that has chart entries
+    private SampleStore.View mChartData;
+    private ChartWindow mChartWindow;
+    // End of the window in mChartData, and the time of the sample before it
+    private int mChartRendered;
+    private long mChartLastTime;
+    private int mChartEntries;
+    // Segment new points are appended to
+    private LineDataSet mTailSet;
+    private final ValueFormatter mHourFormatter = new ValueFormatter() {
         @Override
-        public void handleMessage(@NonNull Message msg) {
-            super.handleMessage(msg);
-            if (mIsBound) {
-                updateUiFromService();
-            }
-            sendEmptyMessageDelayed(0, 5000);
+        public String getAxisLabel(float value, AxisBase axis) {
+            float hours = value / 3600f;
+            return String.format("%.1fh", hours);
+        }
+    };
+    private final ValueFormatter mMinuteFormatter = new ValueFormatter() {
+        @Override
+        public String getAxisLabel(float value, AxisBase axis) {
+            long minutes = TimeUnit.SECONDS.toMinutes((long) value);
+            return String.format("%dm", minutes);
+        }
+    };
+    // Wall-clock range of the export waiting for its destination
+    private long mExportFrom;
+    private long mExportTo;
+    // One per format, the document contract fixes the MIME type
+    private final ActivityResultLauncher<String> mExportCsv = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("text/csv"),
+            uri -> exportTo(uri, SampleExporter.FORMAT_CSV));
+    private final ActivityResultLauncher<String> mExportBinary = registerForActivityResult(
+            new ActivityResultContracts.CreateDocument("application/octet-stream"),
+            uri -> exportTo(uri, SampleExporter.FORMAT_BINARY));
+    private ValueFormatter mXAxisFormatter;
+    private float mXAxisMaximum;
+
+    // Pushed by the service only while this activity is resumed
+    private final BatteryService.DataObserver mDataObserver = (samples, reset, stats, prediction) -> {
+        if (mViewingSession >= 0) {
+            return;
         }
+        if (reset) {
+            // Indices shifted, the chart cannot be extended
+            mChartData = null;
+            mChartWindow = null;
+        }
+        showData(samples, stats, prediction);
     };
 
     private final ServiceConnection mConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName className, IBinder service) {
-            Log.d(TAG, "Service connected");
+            if (DEBUG) {
+                Log.d(TAG, "Service connected");
+            }
             mBatteryService = BatteryService.getInstance();
             mIsBound = true;
-            mHandler.sendEmptyMessage(0);
+            mBatteryService.observe(MainActivity.this, mDataObserver);
         }
 
         @Override
@@ -101,12 +157,22 @@ public class MainActivity extends AppCompatActivity {
         mUsageTimeTextView = findViewById(R.id.tv_used_time);
         mPredictedRemainingTimeTextView = findViewById(R.id.tv_remain_time);
         mAvgPowerHintTextView = findViewById(R.id.tv_avg_power_hint);
+        View.OnClickListener showDistributions = v -> {
+            if (mIsBound) {
+                showDistributionsDialog();
+            }
+        };
+        mTempTextView.setOnClickListener(showDistributions);
+        mVoltageTextView.setOnClickListener(showDistributions);
+        mAvgPowerConsumptionTextView.setOnClickListener(showDistributions);
         findViewById(R.id.btn_clear).setOnClickListener(v -> {
             Dialog dialog = new AlertDialog.Builder(this)
                     .setTitle("清除数据")
-                    .setMessage("确定要清除数据吗？")
+                    .setMessage("确定要清除数据吗？清除后仍可在历史记录中查看。")
                     .setPositiveButton("是", (dialog1, which) -> {
                         mBatteryService.clearData();
+                        mViewingSession = -1;
+                        mSessionData = null;
                         updateUiFromService();
                         Toast.makeText(this, "数据已清除", Toast.LENGTH_SHORT).show();
                     })
@@ -114,12 +180,89 @@ public class MainActivity extends AppCompatActivity {
                     .create();
             dialog.show();
         });
+        findViewById(R.id.btn_history).setOnClickListener(v -> {
+            if (mIsBound) {
+                showHistoryDialog();
+            }
+        });
+        findViewById(R.id.btn_history).setOnLongClickListener(v -> {
+            showMetricsDialog();
+            return true;
+        });
 
         float mah = getBatteryCapacity(this);
         mBatteryTextView.setText(String.format("%.0f", mah));
         mWh =  mah * 3.7f / 1000;
     }
 
+    /**
+     * Offers the percentiles of the session being viewed or of a recent window, the latter
+     * merged from the persisted hourly and daily sketches.
+     */
+    private void showDistributionsDialog() {
+        CharSequence[] items = {"当前记录", "近 24 小时", "近 7 天", "近 30 天"};
+        long[] windows = {0, TimeUnit.DAYS.toMillis(1), TimeUnit.DAYS.toMillis(7),
+                TimeUnit.DAYS.toMillis(30)};
+        new AlertDialog.Builder(this)
+                .setTitle("分布")
+                .setItems(items, (dialog, which) -> {
+                    if (which == 0) {
+                        showPercentiles(items[0], mViewingSession < 0
+                                ? mBatteryService.getDistributions() : mSessionDistributions);
+                        return;
+                    }
+                    long now = System.currentTimeMillis();
+                    mBatteryService.loadDistributions(now - windows[which], now,
+                            distributions -> showPercentiles(items[which], distributions));
+                })
+                .setNegativeButton("取消", null)
+                .show();
+    }
+
+    private void showPercentiles(CharSequence title, SampleDistributions distributions) {
+        if (distributions == null || distributions.isEmpty()) {
+            Toast.makeText(this, "暂无数据", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        appendPercentiles(text, "温度 (°C)", distributions.getTemperature(), 10, "%.1f");
+        appendPercentiles(text, "电压 (V)", distributions.getVoltage(), 1000, "%.2f");
+        appendPercentiles(text, "功耗 (W, 未充电)", distributions.getPower(), 1000, "%.2f");
+        new AlertDialog.Builder(this)
+                .setTitle(title)
+                .setMessage(text)
+                .setPositiveButton("确定", null)
+                .show();
+    }
+
+    private static void appendPercentiles(StringBuilder text, String label, QuantileSketch sketch,
+                                          float unit, String format) {
+        text.append(label).append('\n');
+        if (sketch.getCount() == 0) {
+            text.append("N/A\n\n");
+            return;
+        }
+        text.append(String.format(Locale.getDefault(), "p50 " + format + "   p95 " + format
+                        + "   p99 " + format + "\n\n",
+                sketch.getValueAtPercentile(50) / unit, sketch.getValueAtPercentile(95) / unit,
+                sketch.getValueAtPercentile(99) / unit));
+    }
+
+    /**
+     * Debug view of the collector and UI metrics, behind a long press on the history button.
+     */
+    private void showMetricsDialog() {
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        Metrics.get().dump(writer);
+        writer.flush();
+        new AlertDialog.Builder(this)
+                .setTitle("性能统计")
+                .setMessage(text.toString())
+                .setPositiveButton("确定", null)
+                .show();
+    }
+
     private void initChart() {
 
         // Configure Y-Axis
@@ -149,6 +292,44 @@ public class MainActivity extends AppCompatActivity {
 
         mLineChart.getDescription().setEnabled(false);
 
+        // Only the visible window has entries; load another one as the view moves
+        mLineChart.setOnChartGestureListener(new OnChartGestureListener() {
+            @Override
+            public void onChartGestureEnd(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+                onViewportChanged();
+            }
+
+            @Override
+            public void onChartGestureStart(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+            }
+
+            @Override
+            public void onChartLongPressed(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartDoubleTapped(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartSingleTapped(MotionEvent me) {
+            }
+
+            @Override
+            public void onChartFling(MotionEvent me1, MotionEvent me2, float velocityX, float velocityY) {
+            }
+
+            @Override
+            public void onChartScale(MotionEvent me, float scaleX, float scaleY) {
+                onViewportChanged();
+            }
+
+            @Override
+            public void onChartTranslate(MotionEvent me, float dX, float dY) {
+                // Also called while a fling decelerates
+                onViewportChanged();
+            }
+        });
 
         mLineChart.setData(new LineData());
     }
@@ -157,7 +338,9 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
         boolean serviceON = isAccessibilityServiceEnabled(this, BatteryService.class);
-        Log.d(TAG, "onResume isServiceOn: " + serviceON);
+        if (DEBUG) {
+            Log.d(TAG, "onResume isServiceOn: " + serviceON);
+        }
         if (serviceON) {
             Intent intent = new Intent(this, BatteryService.class);
             bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
@@ -189,99 +372,352 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void showHistoryDialog() {
+        List<SegmentIndex.Session> sessions = mBatteryService.getSessions();
+        int currentSession = mBatteryService.getCurrentSession();
+        List<SegmentIndex.Session> pastSessions = new ArrayList<>();
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            if (sessions.get(i).mId != currentSession) {
+                pastSessions.add(sessions.get(i));
+            }
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm", Locale.getDefault());
+        CharSequence[] items = new CharSequence[pastSessions.size() + 1];
+        items[0] = "当前记录";
+        for (int i = 0; i < pastSessions.size(); i++) {
+            SegmentIndex.Session session = pastSessions.get(i);
+            items[i + 1] = format.format(new Date(session.mFirstTime)) + " ~ "
+                    + format.format(new Date(session.mLastTime));
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("历史记录")
+                .setItems(items, (dialog, which) -> {
+                    if (which == 0) {
+                        mViewingSession = -1;
+                        mSessionData = null;
+                        resetChart();
+                        updateUiFromService();
+                        return;
+                    }
+                    mBatteryService.loadSession(pastSessions.get(which - 1).mId, chartThreshold(), (session, samples, stats, distributions) -> {
+                        mViewingSession = session;
+                        mSessionData = samples;
+                        mSessionStats = stats;
+                        mSessionDistributions = distributions;
+                        resetChart();
+                        updateUiFromService();
+                    });
+                })
+                .setNeutralButton("导出", (dialog, which) -> showExportDialog())
+                .setPositiveButton("充放电", (dialog, which) ->
+                        mBatteryService.loadChargeSessions(this::showChargeSessionsDialog))
+                .setNegativeButton("取消", null)
+                .show();
+    }
+
+    /**
+     * Lists the charge and discharge sessions, newest first, from their cached summaries.
+     */
+    private void showChargeSessionsDialog(List<ChargeSessions.Summary> sessions) {
+        if (sessions.isEmpty()) {
+            Toast.makeText(this, "暂无数据", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm", Locale.getDefault());
+        CharSequence[] items = new CharSequence[sessions.size()];
+        for (int i = 0; i < items.length; i++) {
+            ChargeSessions.Summary session = sessions.get(sessions.size() - 1 - i);
+            long minutes = TimeUnit.MILLISECONDS.toMinutes(session.getDurationMs());
+            items[i] = String.format(Locale.getDefault(),
+                    "%s %s %dh%02dm %.0f%%→%.0f%% %.2fWh 亮屏%.0f%% %.1f°C",
+                    format.format(new Date(session.mStart)), session.mCharging ? "充电" : "放电",
+                    minutes / 60, minutes % 60,
+                    session.getStartLevel(), session.getEndLevel(),
+                    Math.abs(session.getEnergyMwh()) / 1000, session.getScreenOnShare() * 100,
+                    session.mMaxTemperature / 10f);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("充放电记录")
+                .setItems(items, null)
+                .setPositiveButton("确定", null)
+                .show();
+    }
+
+    /**
+     * Exports the session being viewed to a file the user picks.
+     */
+    private void showExportDialog() {
+        int id = mViewingSession >= 0 ? mViewingSession : mBatteryService.getCurrentSession();
+        SegmentIndex.Session session = null;
+        for (SegmentIndex.Session candidate : mBatteryService.getSessions()) {
+            if (candidate.mId == id) {
+                session = candidate;
+            }
+        }
+        if (session == null) {
+            Toast.makeText(this, "暂无数据", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mExportFrom = session.mFirstTime;
+        // The current session keeps growing until the export runs
+        mExportTo = mViewingSession >= 0 ? session.mLastTime : Long.MAX_VALUE;
+        String name = "battery_" + new SimpleDateFormat("yyyyMMdd_HHmm", Locale.getDefault())
+                .format(new Date(session.mFirstTime));
+        new AlertDialog.Builder(this)
+                .setTitle("导出格式")
+                .setItems(new CharSequence[]{"CSV", "二进制"}, (dialog, which) -> {
+                    if (which == 0) {
+                        mExportCsv.launch(name + ".csv");
+                    } else {
+                        mExportBinary.launch(name + ".bin");
+                    }
+                })
+                .setNegativeButton("取消", null)
+                .show();
+    }
+
+    /**
+     * Runs the pending export into the document the user created, or does nothing if they
+     * cancelled.
+     */
+    private void exportTo(Uri uri, int format) {
+        // Delivered before onResume, while the connection is still unbound
+        BatteryService service = BatteryService.getInstance();
+        if (uri == null || service == null) {
+            return;
+        }
+        OutputStream out;
+        try {
+            out = getContentResolver().openOutputStream(uri);
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Error opening export destination", e);
+            out = null;
+        }
+        if (out == null) {
+            Toast.makeText(this, "导出失败", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        service.export(out, format, mExportFrom, mExportTo, count -> Toast.makeText(this,
+                count < 0 ? "导出失败" : "已导出 " + count + " 条记录", Toast.LENGTH_SHORT).show());
+    }
+
+    /**
+     * Shows the session being viewed right away, outside the pushed updates.
+     */
     private void updateUiFromService() {
         if (!mIsBound) return;
 
-        List<BatteryService.BatteryData> dataPoints = mBatteryService.getBatteryData();
+        if (mViewingSession < 0) {
+            showData(mBatteryService.getBatteryData(), mBatteryService.getStats(),
+                    mBatteryService.getPrediction());
+        } else {
+            // A past session has nothing left to predict
+            showData(mSessionData, mSessionStats, null);
+        }
+    }
+
+    private void showData(SampleStore.View dataPoints, BatteryStats.Snapshot stats,
+                          DrainPredictor.Estimate prediction) {
+        long startNanos = System.nanoTime();
         if (dataPoints.isEmpty()) {
+            mChartData = null;
+            mChartWindow = null;
+            mTailSet = null;
             mLineChart.getData().clearValues();
             mLineChart.notifyDataSetChanged();
             mLineChart.invalidate();
             mAvgPowerConsumptionTextView.setText("N/A");
             mUsageTimeTextView.setText("N/A");
             mPredictedRemainingTimeTextView.setText("N/A");
+            mUiLatency.recordMicrosSince(startNanos);
             return;
         }
 
         // Update Chart
-        LineData lineData = mLineChart.getData();
-        lineData.clearValues();
-
-        LineDataSet currentSet = createDataSet(dataPoints.get(0).mIsScreenOn);
-        lineData.addDataSet(currentSet);
-
-        for (int i = 0; i < dataPoints.size(); i++) {
-            BatteryService.BatteryData dataPoint = dataPoints.get(i);
-            float batteryPct = (dataPoint.mLevel / (float) dataPoint.mScale) * 100;
-            Entry newEntry = new Entry((float) dataPoint.mPastTime / 1000, batteryPct);
-
-            if (i > 0 && dataPoint.mIsScreenOn != dataPoints.get(i - 1).mIsScreenOn) {
-                currentSet = createDataSet(dataPoint.mIsScreenOn);
-                lineData.addDataSet(currentSet);
-                // Connect to the previous segment
-                ILineDataSet previousSet = lineData.getDataSetByIndex(lineData.getDataSetCount() - 2);
-                if (previousSet.getEntryCount() > 0) {
-                    Entry lastEntry = previousSet.getEntryForIndex(previousSet.getEntryCount() - 1);
-                    currentSet.addEntry(lastEntry);
-                }
-            }
-            currentSet.addEntry(newEntry);
+        if (!appendChart(dataPoints)) {
+            renderChart(dataPoints);
         }
 
-        XAxis xAxis = mLineChart.getXAxis();
-        float maxSeconds = (float) dataPoints.get(dataPoints.size() - 1).mPastTime / 1000;
-
-        if (maxSeconds > 3600) { // More than 1 hour
-            int count = (int) ((maxSeconds / 3600) + 1);
-            long maxX = count * 3600L;
-            xAxis.setAxisMaximum(maxX);
-            xAxis.setLabelCount(count + 1, true);
-            xAxis.setValueFormatter(new ValueFormatter() {
-                @Override
-                public String getAxisLabel(float value, AxisBase axis) {
-                    float hours = value / 3600f;
-                    return String.format("%.1fh", hours);
-                }
-            });
-        } else { // Less than or equal to 1 hour
-            if (maxSeconds > 1800) {
-                xAxis.setAxisMaximum(3600);
-            } else {
-                xAxis.setAxisMaximum(1800);
-            }
-            xAxis.setLabelCount(7, true);
-            xAxis.setValueFormatter(new ValueFormatter() {
-                @Override
-                public String getAxisLabel(float value, AxisBase axis) {
-                    long minutes = TimeUnit.SECONDS.toMinutes((long) value);
-                    return String.format("%dm", minutes);
-                }
-            });
-        }
-
-        lineData.notifyDataChanged();
-        mLineChart.notifyDataSetChanged();
-        mLineChart.invalidate();
-
         // Update stats and current values
-        BatteryService.BatteryData lastDataPoint = dataPoints.get(dataPoints.size() - 1);
-        float temp = lastDataPoint.mTemperature / 10.0f;
+        int last = dataPoints.size() - 1;
+        float temp = dataPoints.getTemperature(last) / 10.0f;
         mTempTextView.setText(String.format("%.1f", temp));
-        mVoltageTextView.setText(String.format("%.2f", lastDataPoint.mVoltage / 1000.0f));
+        mVoltageTextView.setText(String.format("%.2f", dataPoints.getVoltage(last) / 1000.0f));
 
+        int status = dataPoints.getStatus(last);
         String chargingState;
-        if (lastDataPoint.mStatus == BatteryManager.BATTERY_STATUS_CHARGING) {
+        if (status == BatteryManager.BATTERY_STATUS_CHARGING) {
             chargingState = "充电中";
-        } else if (lastDataPoint.mStatus == BatteryManager.BATTERY_STATUS_DISCHARGING) {
+        } else if (status == BatteryManager.BATTERY_STATUS_DISCHARGING) {
             chargingState = "未充电";
-        } else if (lastDataPoint.mStatus == BatteryManager.BATTERY_STATUS_FULL) {
+        } else if (status == BatteryManager.BATTERY_STATUS_FULL) {
             chargingState = "已充满";
         } else {
             chargingState = "未知";
         }
         mChargingStateTextView.setText(chargingState);
 
-        updateStatistics(dataPoints);
+        updateStatistics(stats, prediction, dataPoints);
+        mUiLatency.recordMicrosSince(startNanos);
+    }
+
+    /**
+     * Point budget for the chart: one sample per horizontal pixel at the current zoom, so the
+     * visible part of the chart is always drawn at full resolution.
+     */
+    private int chartThreshold() {
+        return (int) (chartWidth() * mLineChart.getViewPortHandler().getScaleX());
+    }
+
+    private int chartWidth() {
+        float width = mLineChart.getViewPortHandler().contentWidth();
+        if (width <= 0) {
+            // Not laid out yet
+            width = getResources().getDisplayMetrics().widthPixels;
+        }
+        return (int) width;
+    }
+
+    /**
+     * Visible pastTime range in ms; everything while the chart is not zoomed in, since the
+     * X axis is rounded up past the data.
+     */
+    private long visibleFrom() {
+        return mLineChart.getViewPortHandler().getScaleX() <= 1f ? Long.MIN_VALUE
+                : (long) (mLineChart.getLowestVisibleX() * 1000);
+    }
+
+    private long visibleTo() {
+        return mLineChart.getViewPortHandler().getScaleX() <= 1f ? Long.MAX_VALUE
+                : (long) (mLineChart.getHighestVisibleX() * 1000);
+    }
+
+    /**
+     * Loads another window once the visible range leaves the loaded one or the zoom changed
+     * enough to need a different point budget. Cheap otherwise, as it runs on every move.
+     */
+    private void onViewportChanged() {
+        if (mChartData != null && mChartWindow != null
+                && !mChartWindow.fits(mChartData, visibleFrom(), visibleTo())) {
+            renderChart(mChartData);
+        }
+    }
+
+    /**
+     * Forgets the drawn series and zoom, for when another series is shown.
+     */
+    private void resetChart() {
+        mChartData = null;
+        mChartWindow = null;
+        mLineChart.fitScreen();
+    }
+
+    private void renderChart(SampleStore.View dataPoints) {
+        mChartData = dataPoints;
+        mChartWindow = ChartWindow.of(dataPoints, visibleFrom(), visibleTo(), chartWidth());
+        int[] points = mChartWindow.decimate(dataPoints);
+
+        LineData lineData = mLineChart.getData();
+        lineData.clearValues();
+        mTailSet = null;
+        mChartEntries = 0;
+        for (int p = 0; p < points.length; p++) {
+            boolean newSegment = p == 0
+                    || dataPoints.isScreenOn(points[p]) != dataPoints.isScreenOn(points[p - 1]);
+            addChartPoint(lineData, dataPoints, points[p], newSegment);
+        }
+        onChartPointsAdded(dataPoints, mChartWindow.mEnd);
+    }
+
+    /**
+     * Adds the samples collected since the last refresh to the tail segment, as long as the
+     * chart still shows a prefix of {@code dataPoints} and the raw tail has not outgrown the
+     * point budget; otherwise the chart has to be rebuilt. While the window is panned away
+     * from the newest samples only the X axis grows.
+     *
+     * @return false if {@link #renderChart} is needed instead
+     */
+    private boolean appendChart(SampleStore.View dataPoints) {
+        int size = dataPoints.size();
+        if (mChartData == null || mChartWindow == null || mTailSet == null || size < mChartRendered
+                || dataPoints.getPastTime(mChartRendered - 1) != mChartLastTime) {
+            return false;
+        }
+        boolean atEnd = mChartRendered == mChartData.size();
+        if (atEnd && mChartEntries + size - mChartRendered > mChartWindow.mThreshold * 2) {
+            return false;
+        }
+        mChartData = dataPoints;
+        if (size == mChartRendered) {
+            return true;
+        }
+        if (!atEnd) {
+            onChartPointsAdded(dataPoints, mChartRendered);
+            return true;
+        }
+        LineData lineData = mLineChart.getData();
+        for (int i = mChartRendered; i < size; i++) {
+            addChartPoint(lineData, dataPoints, i, dataPoints.isScreenOn(i) != dataPoints.isScreenOn(i - 1));
+        }
+        onChartPointsAdded(dataPoints, size);
+        return true;
+    }
+
+    private void addChartPoint(LineData lineData, SampleStore.View dataPoints, int i, boolean newSegment) {
+        Entry newEntry = new Entry((float) dataPoints.getPastTime(i) / 1000, dataPoints.getLevelPercent(i));
+        if (newSegment) {
+            LineDataSet set = createDataSet(dataPoints.isScreenOn(i));
+            lineData.addDataSet(set);
+            // Connect to the previous segment
+            if (mTailSet != null && mTailSet.getEntryCount() > 0) {
+                set.addEntry(mTailSet.getEntryForIndex(mTailSet.getEntryCount() - 1));
+            }
+            mTailSet = set;
+        }
+        mTailSet.addEntry(newEntry);
+        mChartEntries++;
+    }
+
+    /**
+     * @param end end of the samples that have entries now
+     */
+    private void onChartPointsAdded(SampleStore.View dataPoints, int end) {
+        mChartRendered = end;
+        mChartLastTime = dataPoints.getPastTime(end - 1);
+        // The axis spans the whole series, whatever part of it has entries
+        mLineChart.getXAxis().setAxisMinimum((float) dataPoints.getPastTime(0) / 1000);
+        updateXAxis((float) dataPoints.getPastTime(dataPoints.size() - 1) / 1000);
+
+        mLineChart.getData().notifyDataChanged();
+        mLineChart.notifyDataSetChanged();
+        mLineChart.invalidate();
+    }
+
+    private void updateXAxis(float maxSeconds) {
+        float maxX;
+        int labelCount;
+        ValueFormatter formatter;
+        if (maxSeconds > 3600) { // More than 1 hour
+            int count = (int) ((maxSeconds / 3600) + 1);
+            maxX = count * 3600L;
+            labelCount = count + 1;
+            formatter = mHourFormatter;
+        } else { // Less than or equal to 1 hour
+            maxX = maxSeconds > 1800 ? 3600 : 1800;
+            labelCount = 7;
+            formatter = mMinuteFormatter;
+        }
+        if (maxX == mXAxisMaximum && formatter == mXAxisFormatter) {
+            return;
+        }
+        XAxis xAxis = mLineChart.getXAxis();
+        xAxis.setAxisMaximum(maxX);
+        xAxis.setLabelCount(labelCount, true);
+        xAxis.setValueFormatter(formatter);
+        mXAxisMaximum = maxX;
+        mXAxisFormatter = formatter;
     }
 
     private LineDataSet createDataSet(boolean isScreenOn) {
@@ -299,15 +735,13 @@ public class MainActivity extends AppCompatActivity {
         return set;
     }
 
-    private void updateStatistics(List<BatteryService.BatteryData> dataPoints) {
-        if (dataPoints.size() < 2) return;
-
-        BatteryService.BatteryData firstData = dataPoints.get(0);
-        BatteryService.BatteryData lastData = dataPoints.get(dataPoints.size() - 1);
+    private void updateStatistics(BatteryStats.Snapshot stats, DrainPredictor.Estimate prediction,
+                                  SampleStore.View dataPoints) {
+        if (stats.mCount < 2) return;
 
-        long elapsedTime = lastData.mPastTime - firstData.mPastTime;
+        int last = dataPoints.size() - 1;
 
-        long screenOnTimeMs = mBatteryService.getScreenOnCount() * Constant.REFRESH_RATE_MS;
+        long screenOnTimeMs = stats.mScreenOnMs;
         long seconds = screenOnTimeMs / 1000;
         long minutes = seconds / 60;
         long hours = minutes / 60;
@@ -315,26 +749,35 @@ public class MainActivity extends AppCompatActivity {
 
         mUsageTimeTextView.setText(String.format("%dh %dm", hours, minutes));
 
-        float firstLevel = (firstData.mLevel / (float) firstData.mScale) * 100;
-        float lastLevel = (lastData.mLevel / (float) lastData.mScale) * 100;
-        float levelDrop = firstLevel - lastLevel;
+        // Only what was lost while discharging: a top-up in between must not cancel it out
+        float levelDrop = stats.mLevelDropOn + stats.mLevelDropOff;
+        ChargeSessions.Summary charge = mViewingSession < 0 ? mBatteryService.getChargeSession() : null;
+        if (charge != null && !charge.mCharging && charge.mScreenOnMs > 0) {
+            // Since the charger was last unplugged
+            levelDrop = -charge.getLevelChange();
+            screenOnTimeMs = charge.mScreenOnMs;
+        }
 
-        float current = lastData.mCurrent / 1000.0f; //mA
-        float voltage = lastData.mVoltage / 1000.0f; //V
+        float current = dataPoints.getCurrent(last) / 1000.0f; //mA
+        float voltage = dataPoints.getVoltage(last) / 1000.0f; //V
 //        Log.d("MainActivity", "current: " + current + ", voltage: " + voltage);
         float power = current * voltage; // W
         mAvgPowerConsumptionTextView.setText(String.format("%.2fW", power));
 
-        if (levelDrop > 0) {
+        if (levelDrop > 0 && screenOnTimeMs > 0) {
             float screenOnHours = screenOnTimeMs / 3600_000f;
             float avgPower = mWh * levelDrop / 100 / screenOnHours;
             mAvgPowerHintTextView.setText("平均功耗");
             mAvgPowerConsumptionTextView.setText(String.format("%.2fW", avgPower));
-            double hoursPerPercent = screenOnHours / levelDrop;
-            double remainingHours = lastLevel * hoursPerPercent;
-            mPredictedRemainingTimeTextView.setText(String.format("%.1fh", remainingHours));
-        } else {
+        }
+        if (prediction == null) {
             mPredictedRemainingTimeTextView.setText("N/A");
+        } else if (Float.isInfinite(prediction.mHighHours)) {
+            mPredictedRemainingTimeTextView.setText(String.format("%.1fh (≥%.1fh)",
+                    prediction.mHours, prediction.mLowHours));
+        } else {
+            mPredictedRemainingTimeTextView.setText(String.format("%.1fh (%.1f–%.1fh)",
+                    prediction.mHours, prediction.mLowHours, prediction.mHighHours));
         }
     }
 
@@ -351,9 +794,13 @@ public class MainActivity extends AppCompatActivity {
             String str = String.valueOf(Class.forName(POWER_PROFILE_CLASS)
                     .getMethod("getBatteryCapacity")
                     .invoke(powerProfile));
-            Log.d("Mainactivity", "mah = " + str);
+            if (DEBUG) {
+                Log.d(TAG, "mah = " + str);
+            }
             batteryCapacity = Float.parseFloat(str);
-            Log.d("Mainactivity", "parse mah = " + batteryCapacity);
+            if (DEBUG) {
+                Log.d(TAG, "parse mah = " + batteryCapacity);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
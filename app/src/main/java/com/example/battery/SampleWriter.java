@@ -0,0 +1,179 @@
+package com.example.battery;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistence pipeline for collected samples.
+ * <p>
+ * Producers hand samples over through a lock-free queue and return immediately. A dedicated
+ * thread drains the queue and appends it to the {@link SampleHistory} in batches, once
+ * {@link #FLUSH_BATCH_SIZE} samples are pending or {@link #FLUSH_DELAY_MS} after the first
+ * pending sample, whichever comes first. Disk I/O therefore never runs on the caller's
+ * thread and never holds the caller's data lock. A batch that fails to write is kept, up to
+ * {@link #MAX_RETRY_SIZE} samples, and written with the next one.
+ */
+public class SampleWriter {
+
+    private static final String TAG = "SampleWriter";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    static final int FLUSH_BATCH_SIZE = 12; // a minute of readings changing every 5 s
+    static final long FLUSH_DELAY_MS = 60_000;
+    // An hour of readings 5 s apart; older unwritten samples are dropped beyond that
+    static final int MAX_RETRY_SIZE = 720;
+
+    private final SampleHistory mHistory;
+    private final HandlerThread mThread;
+    private final WriterHandler mHandler;
+    private final ConcurrentLinkedQueue<Op> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPending = new AtomicInteger();
+    // Only touched on the writer thread
+    private final List<BatteryData> mBatch = new ArrayList<>(FLUSH_BATCH_SIZE);
+    private final Histogram mWriteLatency = Metrics.get().histogram("history.append_us");
+    private final Histogram mWriteBytes = Metrics.get().histogram("history.append_bytes");
+    private final Metrics.Counter mWriteErrors = Metrics.get().counter("history.append_errors");
+    private final Metrics.Counter mWriteDropped = Metrics.get().counter("history.append_dropped");
+
+    /**
+     * A queued sample, or the start of a new session when {@code mSample} is null.
+     */
+    private static final class Op {
+        final BatteryData mSample;
+        final long mStartTime;
+
+        Op(BatteryData sample, long startTime) {
+            mSample = sample;
+            mStartTime = startTime;
+        }
+    }
+
+    private static class WriterHandler extends Handler {
+        private static final int MSG_FLUSH = 1;
+        private final SampleWriter mWriter;
+
+        WriterHandler(SampleWriter writer, Looper looper) {
+            super(looper);
+            mWriter = writer;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == MSG_FLUSH) {
+                mWriter.drain();
+            }
+        }
+    }
+
+    public SampleWriter(SampleHistory history, long startTime) {
+        mHistory = history;
+        mHistory.resume(startTime);
+        mThread = new HandlerThread("BatteryPersistence", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new WriterHandler(this, mThread.getLooper());
+    }
+
+    /**
+     * Queues a sample for persistence. Safe to call from any thread.
+     */
+    public void enqueue(BatteryData sample) {
+        mQueue.add(new Op(sample, 0));
+        int pending = mPending.incrementAndGet();
+        if (pending >= FLUSH_BATCH_SIZE) {
+            mHandler.removeMessages(WriterHandler.MSG_FLUSH);
+            mHandler.sendEmptyMessage(WriterHandler.MSG_FLUSH);
+        } else if (pending == 1) {
+            mHandler.sendEmptyMessageDelayed(WriterHandler.MSG_FLUSH, FLUSH_DELAY_MS);
+        }
+    }
+
+    /**
+     * Starts a new history session once every sample queued before this call is written.
+     */
+    public void reset(long startTime) {
+        mQueue.add(new Op(null, startTime));
+        flush();
+    }
+
+    /**
+     * Writes out everything queued so far without waiting for the batch trigger.
+     */
+    public void flush() {
+        mHandler.removeMessages(WriterHandler.MSG_FLUSH);
+        mHandler.sendEmptyMessage(WriterHandler.MSG_FLUSH);
+    }
+
+    /**
+     * Runs {@code task} on the persistence thread, ordered after any write already requested.
+     */
+    public void execute(Runnable task) {
+        mHandler.post(task);
+    }
+
+    /**
+     * Flushes pending samples and stops the thread once they are written.
+     */
+    public void close() {
+        flush();
+        mThread.quitSafely();
+    }
+
+    private void drain() {
+        Op op;
+        while ((op = mQueue.poll()) != null) {
+            if (op.mSample == null) {
+                if (!write()) {
+                    // Samples of the old session cannot follow the new one in
+                    mWriteDropped.add(mBatch.size());
+                    mBatch.clear();
+                }
+                mHistory.newSession(op.mStartTime);
+                continue;
+            }
+            mPending.decrementAndGet();
+            mBatch.add(op.mSample);
+        }
+        write();
+    }
+
+    /**
+     * Appends the batch to the history. On failure the samples that were not written stay
+     * in the batch for the next attempt.
+     *
+     * @return whether the batch is now empty
+     */
+    private boolean write() {
+        if (mBatch.isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            mWriteBytes.record(mHistory.append(mBatch));
+            mWriteLatency.recordMicrosSince(start);
+            if (DEBUG) {
+                Log.d(TAG, "Successfully saved " + mBatch.size() + " new data points.");
+            }
+        } catch (IOException e) {
+            mWriteErrors.increment();
+            Log.e(TAG, "Error saving data to file, " + mBatch.size() + " data points kept for "
+                    + "the next flush", e);
+            int excess = mBatch.size() - MAX_RETRY_SIZE;
+            if (excess > 0) {
+                mWriteDropped.add(excess);
+                mBatch.subList(0, excess).clear();
+            }
+            return false;
+        }
+        mBatch.clear();
+        return true;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.battery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing chart entries: every sample, the whole series decimated to the screen width,
+ * and the visible window of a zoomed-in chart. Each produces the x/y pairs the chart's
+ * entries are made of; the chart library itself is Android-only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ChartPrepBenchmark {
+
+    private static final int PIXELS = 1080;
+    private static final long VISIBLE_MS = TimeUnit.HOURS.toMillis(6);
+
+    @Param({"10000", "100000", "1000000"})
+    public int mSize;
+
+    private SampleStore.View mSamples;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSamples = SyntheticSampleSource.generate(mSize, 4).view();
+    }
+
+    @Benchmark
+    public float[] allSamples() {
+        float[] entries = new float[mSamples.size() * 2];
+        for (int i = 0; i < mSamples.size(); i++) {
+            entries[2 * i] = mSamples.getPastTime(i) / 1000f;
+            entries[2 * i + 1] = mSamples.getLevelPercent(i);
+        }
+        return entries;
+    }
+
+    @Benchmark
+    public float[] decimated() {
+        return toEntries(ChartDecimator.decimate(mSamples, PIXELS));
+    }
+
+    @Benchmark
+    public float[] visibleWindow() {
+        long last = mSamples.getPastTime(mSamples.size() - 1);
+        ChartWindow window = ChartWindow.of(mSamples, last / 2, last / 2 + VISIBLE_MS, PIXELS);
+        return toEntries(window.decimate(mSamples));
+    }
+
+    private float[] toEntries(int[] points) {
+        float[] entries = new float[points.length * 2];
+        for (int p = 0; p < points.length; p++) {
+            entries[2 * p] = mSamples.getPastTime(points[p]) / 1000f;
+            entries[2 * p + 1] = mSamples.getLevelPercent(points[p]);
+        }
+        return entries;
+    }
+}
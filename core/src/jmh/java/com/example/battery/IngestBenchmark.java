@@ -0,0 +1,75 @@
+package com.example.battery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-sample cost of the bookkeeping the service does when a reading arrives: the
+ * duplicate filter, then the feed, the running statistics and the drain prediction, each
+ * with its published snapshot. Disk writes happen on the writer thread and are left out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IngestBenchmark {
+
+    private static final int TRACE_SIZE = 100_000;
+    // The feed starts over after this many samples, about two months of readings
+    private static final int SESSION_SIZE = 1_000_000;
+
+    private SampleStore.View mTrace;
+    private IngestFilter mFilter;
+    private SampleFeed mFeed;
+    private BatteryStats mStats;
+    private DrainPredictor mPredictor;
+    private int mNext;
+    private long mOffset;
+    private int mSessionSize;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTrace = SyntheticSampleSource.generate(TRACE_SIZE, 2).view();
+        mFilter = new IngestFilter(Constant.MAX_SAMPLE_INTERVAL_MS);
+        mFeed = new SampleFeed();
+        mStats = new BatteryStats();
+        mPredictor = new DrainPredictor();
+    }
+
+    @Benchmark
+    public Object ingest() {
+        if (mNext == TRACE_SIZE) {
+            // Replay the trace after itself
+            mNext = 0;
+            mOffset += mTrace.getPastTime(TRACE_SIZE - 1);
+        }
+        if (mSessionSize == SESSION_SIZE) {
+            mFeed.clear();
+            mStats.reset();
+            mPredictor.reset();
+            mSessionSize = 0;
+        }
+        int i = mNext++;
+        long time = mOffset + mTrace.getPastTime(i);
+        if (!mFilter.accept(time, mTrace.getLevel(i), mTrace.getScale(i), mTrace.getTemperature(i),
+                mTrace.getVoltage(i), mTrace.getStatus(i), mTrace.isScreenOn(i),
+                mTrace.getCurrent(i))) {
+            return null;
+        }
+        BatteryData sample = new BatteryData(time, mTrace.getLevel(i), mTrace.getScale(i),
+                mTrace.getTemperature(i), mTrace.getVoltage(i), mTrace.getStatus(i),
+                mTrace.isScreenOn(i), mTrace.getCurrent(i), mTrace.getScreenOnTime(i));
+        mFeed.add(sample);
+        mSessionSize++;
+        mStats.add(sample);
+        mPredictor.add(sample);
+        return new Object[] {mStats.snapshot(), mPredictor.estimate()};
+    }
+}
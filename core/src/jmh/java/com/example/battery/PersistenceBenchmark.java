@@ -0,0 +1,142 @@
+package com.example.battery;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading a whole session: the battery_data.json array the app used to rewrite
+ * on every save, the raw sample log and the packed segment format, plus the block codec
+ * behind the latter on its own, in memory. The save and encode benchmarks also report the
+ * bytes per sample they produced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PersistenceBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int mSize;
+
+    private SampleStore.View mSamples;
+    private File mDir;
+    private File mJsonFile;
+    private File mLogFile;
+    private File mPackedFile;
+    private SampleCodec.Buffer mEncoded;
+
+    /**
+     * Size of what a save or encode benchmark wrote, reported as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+        public double bytesPerSample;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JSONException {
+        mSamples = SyntheticSampleSource.generate(mSize, 1).view();
+        mDir = Files.createTempDirectory("persistence").toFile();
+        mJsonFile = new File(mDir, "battery_data.json");
+        mLogFile = new File(mDir, "battery_data.bin");
+        mPackedFile = new File(mDir, "segment.batz");
+        Footprint footprint = new Footprint();
+        saveJson(footprint);
+        saveLog(footprint);
+        savePacked(footprint);
+        mEncoded = encodeCodec(footprint);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void saveJson(Footprint footprint) throws IOException, JSONException {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < mSamples.size(); i++) {
+            array.put(mSamples.get(i).toJson());
+        }
+        Files.write(mJsonFile.toPath(), array.toString().getBytes(StandardCharsets.UTF_8));
+        footprint.bytesPerSample = (double) mJsonFile.length() / mSize;
+    }
+
+    @Benchmark
+    public SampleStore loadJson() throws IOException, JSONException {
+        JSONArray array = new JSONArray(new String(Files.readAllBytes(mJsonFile.toPath()),
+                StandardCharsets.UTF_8));
+        SampleStore store = new SampleStore(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            store.add(new BatteryData(array.getJSONObject(i)));
+        }
+        return store;
+    }
+
+    @Benchmark
+    public void saveLog(Footprint footprint) throws IOException {
+        new SampleLog(mLogFile).rewrite(0, mSamples);
+        footprint.bytesPerSample = (double) mLogFile.length() / mSize;
+    }
+
+    @Benchmark
+    public SampleStore loadLog() throws IOException {
+        SampleStore store = new SampleStore(mSize);
+        new SampleLog(mLogFile).readRange(store, 0, mSize);
+        return store;
+    }
+
+    @Benchmark
+    public void savePacked(Footprint footprint) throws IOException {
+        PackedSegment.write(mPackedFile, 0, mSamples);
+        footprint.bytesPerSample = (double) mPackedFile.length() / mSize;
+    }
+
+    @Benchmark
+    public SampleStore loadPacked() throws IOException {
+        SampleStore store = new SampleStore(mSize);
+        new PackedSegment(mPackedFile).readRange(store, 0, mSize);
+        return store;
+    }
+
+    @Benchmark
+    public SampleCodec.Buffer encodeCodec(Footprint footprint) {
+        SampleCodec.Buffer buffer = new SampleCodec.Buffer(mSize * 8);
+        for (int from = 0; from < mSize; from += PackedSegment.BLOCK_SIZE) {
+            SampleCodec.encodeBlock(mSamples, from, Math.min(mSize, from + PackedSegment.BLOCK_SIZE),
+                    buffer);
+        }
+        footprint.bytesPerSample = (double) buffer.size() / mSize;
+        return buffer;
+    }
+
+    @Benchmark
+    public SampleStore decodeCodec() {
+        SampleStore store = new SampleStore(mSize);
+        SampleCodec.Reader reader = new SampleCodec.Reader(mEncoded.data(), 0, mEncoded.size());
+        while (reader.hasRemaining()) {
+            SampleCodec.decodeBlock(reader, store);
+        }
+        return store;
+    }
+}
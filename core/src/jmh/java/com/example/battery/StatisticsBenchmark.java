@@ -0,0 +1,54 @@
+package com.example.battery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshing the statistics cards: a full pass over the session, as a refresh used to
+ * cost and a session loaded from history still does, against the snapshot of the running
+ * totals taken after each sample.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StatisticsBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int mSize;
+
+    private SampleStore.View mSamples;
+    private BatteryStats mStats;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mSamples = SyntheticSampleSource.generate(mSize, 3).view();
+        mStats = new BatteryStats();
+        mStats.addAll(mSamples);
+    }
+
+    @Benchmark
+    public BatteryStats.Snapshot recompute() {
+        return BatteryStats.of(mSamples);
+    }
+
+    @Benchmark
+    public BatteryStats.Snapshot snapshot() {
+        return mStats.snapshot();
+    }
+
+    @Benchmark
+    public DrainPredictor.Estimate predict() {
+        DrainPredictor predictor = new DrainPredictor();
+        predictor.addAll(mSamples);
+        return predictor.estimate();
+    }
+}
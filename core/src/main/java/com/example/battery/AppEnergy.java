@@ -0,0 +1,160 @@
+package com.example.battery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Energy, charge and foreground time per app, attributed as the foreground app and the
+ * battery readings change.
+ * <p>
+ * Between two events the device is assumed to draw the power of the latest reading (V·I).
+ * Every event first credits the time since the previous event to whatever was in front,
+ * the foreground app or, with the screen off, {@link #SCREEN_OFF}, so each event costs
+ * constant time and the totals are always current. Intervals longer than
+ * {@link BatteryStats#MAX_GAP_MS} are not credited, as in the session statistics.
+ * <p>
+ * Not thread-safe; the service updates it on the main thread.
+ */
+public class AppEnergy {
+
+    // Pseudo-app that collects the time with the screen off
+    public static final int SCREEN_OFF = -1;
+    // Before the first foreground change nothing is known to be in front
+    private static final int UNKNOWN = -2;
+
+    private int mApp = UNKNOWN;
+    private boolean mIsScreenOn = true;
+    private long mMark = -1;
+    private boolean mHasPower;
+    private int mVoltage;
+    private int mCurrent;
+    // Indexed by app ID + 1; slot 0 is SCREEN_OFF
+    private long[] mEnergyUwh = new long[16];
+    private long[] mChargeUah = new long[16];
+    private long[] mDurationMs = new long[16];
+
+    /**
+     * Totals of one app, signed like the current the device reports.
+     */
+    public static final class Usage {
+        public final int mAppId;
+        public final String mPackageName;
+        public final long mEnergyUwh;
+        public final long mChargeUah;
+        public final long mDurationMs;
+
+        Usage(int appId, String packageName, long energyUwh, long chargeUah, long durationMs) {
+            mAppId = appId;
+            mPackageName = packageName;
+            mEnergyUwh = energyUwh;
+            mChargeUah = chargeUah;
+            mDurationMs = durationMs;
+        }
+
+        /**
+         * Mean power while in front, in watts.
+         */
+        public float getAveragePower() {
+            return mDurationMs == 0 ? 0 : mEnergyUwh * 3.6f / mDurationMs;
+        }
+    }
+
+    public void onSample(long time, int voltage, int current, boolean isScreenOn) {
+        advance(time);
+        mVoltage = voltage;
+        mCurrent = current;
+        mHasPower = true;
+        mIsScreenOn = isScreenOn;
+    }
+
+    public void onForeground(long time, int appId) {
+        advance(time);
+        mApp = appId;
+    }
+
+    /**
+     * Replays a stretch of history: samples {@code [from, to)}, whose pastTime is relative
+     * to {@code startTime}, merged with the foreground changes around them.
+     */
+    public void replay(SampleStore.View samples, int from, int to, long startTime,
+                       AppTimeline.Transitions transitions) {
+        int k = 0;
+        for (int i = from; i < to; i++) {
+            long time = startTime + samples.getPastTime(i);
+            for (; k < transitions.mSize && transitions.mTimes[k] <= time; k++) {
+                onForeground(transitions.mTimes[k], transitions.mAppIds[k]);
+            }
+            onSample(time, samples.getVoltage(i), samples.getCurrent(i), samples.isScreenOn(i));
+        }
+    }
+
+    /**
+     * Adds the totals of {@code other}, an earlier stretch of the same session.
+     */
+    public void add(AppEnergy other) {
+        ensureSlot(other.mEnergyUwh.length - 1);
+        for (int slot = 0; slot < other.mEnergyUwh.length; slot++) {
+            mEnergyUwh[slot] += other.mEnergyUwh[slot];
+            mChargeUah[slot] += other.mChargeUah[slot];
+            mDurationMs[slot] += other.mDurationMs[slot];
+        }
+    }
+
+    /**
+     * Clears the totals; what is in front stays known.
+     */
+    public void reset() {
+        Arrays.fill(mEnergyUwh, 0);
+        Arrays.fill(mChargeUah, 0);
+        Arrays.fill(mDurationMs, 0);
+        mMark = -1;
+    }
+
+    /**
+     * Every app that was in front, the largest consumers first.
+     */
+    public List<Usage> getUsage(PackageTable packages) {
+        List<Usage> usage = new ArrayList<>();
+        for (int slot = 0; slot < mDurationMs.length; slot++) {
+            if (mDurationMs[slot] == 0) {
+                continue;
+            }
+            int appId = slot - 1;
+            usage.add(new Usage(appId, appId == SCREEN_OFF ? null : packages.name(appId),
+                    mEnergyUwh[slot], mChargeUah[slot], mDurationMs[slot]));
+        }
+        Collections.sort(usage, (a, b) -> Long.compare(Math.abs(b.mEnergyUwh), Math.abs(a.mEnergyUwh)));
+        return usage;
+    }
+
+    private void advance(long time) {
+        long delta = time - mMark;
+        if (mMark >= 0 && mHasPower && delta > 0 && delta <= BatteryStats.MAX_GAP_MS) {
+            int app = mIsScreenOn ? mApp : SCREEN_OFF;
+            if (app != UNKNOWN) {
+                int slot = app + 1;
+                ensureSlot(slot);
+                // mA * ms -> µAh, mV * mA * ms -> µWh
+                mChargeUah[slot] += Math.round((double) mCurrent * delta / 3600);
+                mEnergyUwh[slot] += Math.round((double) mVoltage * mCurrent * delta / 3.6e6);
+                mDurationMs[slot] += delta;
+            }
+        }
+        // Events arriving out of order only update the state
+        if (mMark < 0 || delta > 0) {
+            mMark = time;
+        }
+    }
+
+    private void ensureSlot(int slot) {
+        if (slot < mEnergyUwh.length) {
+            return;
+        }
+        int capacity = Math.max(slot + 1, mEnergyUwh.length * 2);
+        mEnergyUwh = Arrays.copyOf(mEnergyUwh, capacity);
+        mChargeUah = Arrays.copyOf(mChargeUah, capacity);
+        mDurationMs = Arrays.copyOf(mDurationMs, capacity);
+    }
+}
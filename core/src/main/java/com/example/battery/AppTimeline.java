@@ -0,0 +1,216 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Persisted foreground-app timeline: one fixed-width record per change of the foreground
+ * app, holding the wall-clock time and the app's {@link PackageTable} ID.
+ * <p>
+ * Package names are kept once, one per line in {@code packages.txt}, in ID order; a name
+ * is written before the first record that refers to it. Records carry a CRC32, and a torn
+ * tail is cut off on open like in {@link SampleLog}. Only touched by the writer thread.
+ */
+public class AppTimeline {
+
+    static final String PACKAGES_FILENAME = "packages.txt";
+    static final String TIMELINE_FILENAME = "foreground.bin";
+    static final int MAGIC = 0x42415050; // "BAPP"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4)
+    static final int HEADER_SIZE = 8;
+    // time(8) + appId(4) + crc32(4)
+    static final int RECORD_SIZE = 16;
+
+    private final File mPackagesFile;
+    private final File mFile;
+    private final PackageTable mPackages;
+    private int mPersistedNames;
+
+    /**
+     * Foreground changes read back from the timeline, sorted by time.
+     */
+    public static final class Transitions {
+        public final long[] mTimes;
+        public final int[] mAppIds;
+        public final int mSize;
+
+        Transitions(long[] times, int[] appIds, int size) {
+            mTimes = times;
+            mAppIds = appIds;
+            mSize = size;
+        }
+    }
+
+    public AppTimeline(File dir, PackageTable packages) {
+        mPackagesFile = new File(dir, PACKAGES_FILENAME);
+        mFile = new File(dir, TIMELINE_FILENAME);
+        mPackages = packages;
+    }
+
+    /**
+     * Loads the package names into the table, which must still be empty, and cuts the
+     * timeline back to its last intact record that refers to a known name.
+     */
+    public void open() throws IOException {
+        if (mPackagesFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(mPackagesFile, "rw")) {
+                byte[] names = new byte[(int) file.length()];
+                file.readFully(names);
+                // A name torn by a crash has no line end yet; no record refers to it
+                int end = names.length;
+                while (end > 0 && names[end - 1] != '\n') {
+                    end--;
+                }
+                file.setLength(end);
+                int start = 0;
+                for (int i = 0; i < end; i++) {
+                    if (names[i] == '\n') {
+                        mPackages.intern(new String(names, start, i - start, StandardCharsets.UTF_8));
+                        start = i + 1;
+                    }
+                }
+            }
+        }
+        mPersistedNames = mPackages.size();
+
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+                    || file.readInt() != FORMAT_VERSION) {
+                file.setLength(0);
+                file.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION)
+                        .array());
+                return;
+            }
+            long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            while (records > 0) {
+                file.seek(HEADER_SIZE + (records - 1) * RECORD_SIZE);
+                file.readFully(record);
+                if (isValid(record, crc)) {
+                    break;
+                }
+                records--;
+            }
+            file.setLength(HEADER_SIZE + records * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * Records that {@code appId} came to the foreground at wall-clock time {@code time}.
+     */
+    public void append(long time, int appId) throws IOException {
+        if (appId >= mPersistedNames) {
+            int size = mPackages.size();
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(mPackagesFile, true),
+                    StandardCharsets.UTF_8)) {
+                for (int id = mPersistedNames; id < size; id++) {
+                    out.write(mPackages.name(id));
+                    out.write('\n');
+                }
+            }
+            mPersistedNames = size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        buffer.putLong(time).putInt(appId);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, RECORD_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(buffer.array());
+        }
+    }
+
+    /**
+     * Reads the changes in {@code [from, to]} plus the last one before {@code from}, which
+     * tells which app was in the foreground when the range starts.
+     */
+    public Transitions read(long from, long to) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            int size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            int start = Math.max(0, lowerBound(file, size, from) - 1);
+            long[] times = new long[size - start];
+            int[] appIds = new int[size - start];
+            int count = 0;
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            file.seek(HEADER_SIZE + (long) start * RECORD_SIZE);
+            for (int i = start; i < size; i++) {
+                file.readFully(record);
+                ByteBuffer in = ByteBuffer.wrap(record);
+                long time = in.getLong();
+                if (time > to) {
+                    break;
+                }
+                if (isValid(record, crc)) {
+                    times[count] = time;
+                    appIds[count] = in.getInt();
+                    count++;
+                }
+            }
+            return new Transitions(times, appIds, count);
+        }
+    }
+
+    /**
+     * Drops the changes before {@code before}, except the last one, which still says what
+     * was in the foreground at that time.
+     */
+    public void prune(long before) throws IOException {
+        int size;
+        int keepFrom;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            keepFrom = Math.max(0, lowerBound(file, size, before) - 1);
+        }
+        if (keepFrom == 0) {
+            return;
+        }
+        byte[] kept = new byte[(size - keepFrom) * RECORD_SIZE];
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(HEADER_SIZE + (long) keepFrom * RECORD_SIZE);
+            file.readFully(kept);
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).array());
+            out.write(kept);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    private boolean isValid(byte[] record, CRC32 crc) {
+        crc.reset();
+        crc.update(record, 0, RECORD_SIZE - 4);
+        ByteBuffer in = ByteBuffer.wrap(record);
+        return (int) crc.getValue() == in.getInt(RECORD_SIZE - 4)
+                && in.getInt(8) >= 0 && in.getInt(8) < mPersistedNames;
+    }
+
+    private static int lowerBound(RandomAccessFile file, int size, long time) throws IOException {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            file.seek(HEADER_SIZE + (long) mid * RECORD_SIZE);
+            if (file.readLong() < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
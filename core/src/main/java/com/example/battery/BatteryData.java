@@ -0,0 +1,66 @@
+package com.example.battery;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One battery sample. {@code mPastTime} is relative to the start of its session.
+ */
+public class BatteryData {
+    /**
+     * Formats written before the screen-on time was kept in ms hold a counter of samples
+     * taken with the screen on instead, one per tick of the old 5 s refresh.
+     */
+    public static final long LEGACY_SCREEN_ON_TICK_MS = 5000;
+
+    public final long mPastTime;
+    public final int mLevel;
+    public final int mScale;
+    public final int mTemperature;
+    public final int mVoltage;
+    public final int mStatus;
+    public final boolean mIsScreenOn;
+    public final int mCurrent;
+    public final long mScreenOnTime;
+
+    public BatteryData(long timestamp, int level, int scale, int temperature, int voltage, int status, boolean isScreenOn, int current, long screenOnTime) {
+        this.mPastTime = timestamp;
+        this.mLevel = level;
+        this.mScale = scale;
+        this.mTemperature = temperature;
+        this.mVoltage = voltage;
+        this.mStatus = status;
+        this.mIsScreenOn = isScreenOn;
+        this.mCurrent = current;
+        this.mScreenOnTime = screenOnTime;
+    }
+
+    // Constructor to create from JSONObject
+    public BatteryData(JSONObject jsonObject) throws JSONException {
+        this.mPastTime = jsonObject.getLong("timestamp");
+        this.mLevel = jsonObject.getInt("level");
+        this.mScale = jsonObject.getInt("scale");
+        this.mTemperature = jsonObject.getInt("temperature");
+        this.mVoltage = jsonObject.getInt("voltage");
+        this.mStatus = jsonObject.getInt("status");
+        this.mIsScreenOn = jsonObject.getBoolean("isScreenOn");
+        this.mCurrent = jsonObject.getInt("current");
+        this.mScreenOnTime = jsonObject.has("screenOnTime") ? jsonObject.getLong("screenOnTime")
+                : jsonObject.getLong("screenOnCount") * LEGACY_SCREEN_ON_TICK_MS;
+    }
+
+    // Method to convert to JSONObject
+    public JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("timestamp", mPastTime);
+        jsonObject.put("level", mLevel);
+        jsonObject.put("scale", mScale);
+        jsonObject.put("temperature", mTemperature);
+        jsonObject.put("voltage", mVoltage);
+        jsonObject.put("status", mStatus);
+        jsonObject.put("isScreenOn", mIsScreenOn);
+        jsonObject.put("current", mCurrent);
+        jsonObject.put("screenOnTime", mScreenOnTime);
+        return jsonObject;
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.battery;
+
+/**
+ * Where battery readings come from: the device itself, a recording played back, or a
+ * synthetic trace. Downstream of it, ingest, storage, statistics and chart preparation run
+ * the same whatever the source, so they can be exercised off-device and at scale.
+ */
+public interface BatterySampleSource {
+
+    /**
+     * Receives every reading, on the source's own thread. A reading repeats values that
+     * have not changed since the previous one.
+     */
+    interface Listener {
+        /**
+         * @param time wall-clock time of the reading, never earlier than the previous one
+         */
+        void onReading(long time, int level, int scale, int temperature, int voltage, int status,
+                       boolean isScreenOn, int current);
+    }
+
+    /**
+     * Starts delivering readings to {@code listener}.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops delivering readings. Safe to call when not started.
+     */
+    void stop();
+}
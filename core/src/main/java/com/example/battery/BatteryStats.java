@@ -0,0 +1,251 @@
+package com.example.battery;
+
+/**
+ * Running statistics over a session, updated in constant time per sample.
+ * <p>
+ * Durations are measured from the samples' own timestamps: the interval between two
+ * samples is credited to the screen state it started in, which the service samples on
+ * every change, along with the energy drawn over it (V·I·Δt, at the closing sample's
+ * readings) and any drop in battery level. Intervals longer than {@link #MAX_GAP_MS}, where
+ * collection was evidently not running, only move the time line forward.
+ * <p>
+ * Not thread-safe; the service updates it under its sample lock and hands out
+ * {@link Snapshot}s.
+ */
+public class BatteryStats {
+
+    static final long MAX_GAP_MS = 10 * 60 * 1000;
+
+    private int mCount;
+    private long mFirstTime;
+    private long mLastTime;
+    private float mFirstLevel;
+    private float mLastLevel;
+    private boolean mLastScreenOn;
+    private long mScreenOnMs;
+    private long mScreenOffMs;
+    private double mEnergyOnMwh;
+    private double mEnergyOffMwh;
+    private float mLevelDropOn;
+    private float mLevelDropOff;
+    private int mMinTemperature;
+    private int mMaxTemperature;
+    private long mTemperatureSum;
+    private int mMinVoltage;
+    private int mMaxVoltage;
+    private long mVoltageSum;
+
+    /**
+     * Constant-size, immutable copy of the statistics.
+     */
+    public static final class Snapshot {
+        public final int mCount;
+        public final long mFirstTime;
+        public final long mLastTime;
+        // Battery level in percent
+        public final float mFirstLevel;
+        public final float mLastLevel;
+        public final boolean mLastScreenOn;
+        public final long mScreenOnMs;
+        public final long mScreenOffMs;
+        // Signed like the current the device reports
+        public final double mEnergyOnMwh;
+        public final double mEnergyOffMwh;
+        // Percentage points lost while the screen was on / off
+        public final float mLevelDropOn;
+        public final float mLevelDropOff;
+        // Tenths of a degree Celsius
+        public final int mMinTemperature;
+        public final int mMaxTemperature;
+        public final float mMeanTemperature;
+        // Millivolts
+        public final int mMinVoltage;
+        public final int mMaxVoltage;
+        public final float mMeanVoltage;
+
+        private Snapshot(BatteryStats stats) {
+            mCount = stats.mCount;
+            mFirstTime = stats.mFirstTime;
+            mLastTime = stats.mLastTime;
+            mFirstLevel = stats.mFirstLevel;
+            mLastLevel = stats.mLastLevel;
+            mLastScreenOn = stats.mLastScreenOn;
+            mScreenOnMs = stats.mScreenOnMs;
+            mScreenOffMs = stats.mScreenOffMs;
+            mEnergyOnMwh = stats.mEnergyOnMwh;
+            mEnergyOffMwh = stats.mEnergyOffMwh;
+            mLevelDropOn = stats.mLevelDropOn;
+            mLevelDropOff = stats.mLevelDropOff;
+            mMinTemperature = stats.mMinTemperature;
+            mMaxTemperature = stats.mMaxTemperature;
+            mMeanTemperature = stats.mCount == 0 ? 0 : stats.mTemperatureSum / (float) stats.mCount;
+            mMinVoltage = stats.mMinVoltage;
+            mMaxVoltage = stats.mMaxVoltage;
+            mMeanVoltage = stats.mCount == 0 ? 0 : stats.mVoltageSum / (float) stats.mCount;
+        }
+
+        public boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        /**
+         * Level lost per hour of screen-on time, in percent.
+         */
+        public float getDropRateOn() {
+            return mScreenOnMs == 0 ? 0 : mLevelDropOn * 3600_000f / mScreenOnMs;
+        }
+
+        /**
+         * Level lost per hour of screen-off time, in percent.
+         */
+        public float getDropRateOff() {
+            return mScreenOffMs == 0 ? 0 : mLevelDropOff * 3600_000f / mScreenOffMs;
+        }
+
+        /**
+         * Mean power while the screen was on, in watts.
+         */
+        public float getAveragePowerOn() {
+            return mScreenOnMs == 0 ? 0 : (float) (mEnergyOnMwh * 3600 / mScreenOnMs);
+        }
+
+        /**
+         * Mean power while the screen was off, in watts.
+         */
+        public float getAveragePowerOff() {
+            return mScreenOffMs == 0 ? 0 : (float) (mEnergyOffMwh * 3600 / mScreenOffMs);
+        }
+    }
+
+    public void add(long pastTime, int level, int scale, int temperature, int voltage,
+                    boolean isScreenOn, int current) {
+        float levelPercent = level / (float) scale * 100;
+        if (mCount == 0) {
+            mFirstTime = pastTime;
+            mFirstLevel = levelPercent;
+            mMinTemperature = temperature;
+            mMaxTemperature = temperature;
+            mMinVoltage = voltage;
+            mMaxVoltage = voltage;
+        } else {
+            long delta = pastTime - mLastTime;
+            if (delta > 0 && delta <= MAX_GAP_MS) {
+                // mV * mA * ms -> mWh
+                double energy = (double) voltage * current * delta / 3.6e9;
+                float drop = Math.max(0, mLastLevel - levelPercent);
+                if (mLastScreenOn) {
+                    mScreenOnMs += delta;
+                    mEnergyOnMwh += energy;
+                    mLevelDropOn += drop;
+                } else {
+                    mScreenOffMs += delta;
+                    mEnergyOffMwh += energy;
+                    mLevelDropOff += drop;
+                }
+            }
+            mMinTemperature = Math.min(mMinTemperature, temperature);
+            mMaxTemperature = Math.max(mMaxTemperature, temperature);
+            mMinVoltage = Math.min(mMinVoltage, voltage);
+            mMaxVoltage = Math.max(mMaxVoltage, voltage);
+        }
+        mTemperatureSum += temperature;
+        mVoltageSum += voltage;
+        mLastTime = pastTime;
+        mLastLevel = levelPercent;
+        mLastScreenOn = isScreenOn;
+        mCount++;
+    }
+
+    public void add(SampleStore.View samples, int i) {
+        add(samples.getPastTime(i), samples.getLevel(i), samples.getScale(i),
+                samples.getTemperature(i), samples.getVoltage(i), samples.isScreenOn(i),
+                samples.getCurrent(i));
+    }
+
+    public void add(BatteryData sample) {
+        add(sample.mPastTime, sample.mLevel, sample.mScale, sample.mTemperature, sample.mVoltage,
+                sample.mIsScreenOn, sample.mCurrent);
+    }
+
+    /**
+     * Folds in a rollup bucket in place of its samples. Counts, extremes and means stay
+     * exact; durations, energy and level drops are estimated from the bucket's span, its
+     * means and its screen-on fraction.
+     */
+    public void add(RollupTier.Bucket bucket) {
+        if (bucket.mCount == 0) {
+            return;
+        }
+        long first = bucket.mStart + bucket.mFirstOffset;
+        long last = bucket.mStart + bucket.mLastOffset;
+        float firstLevel = bucket.mFirstLevel * 100f / RollupTier.LEVEL_SCALE;
+        float lastLevel = bucket.mLast[RollupTier.LEVEL] * 100f / RollupTier.LEVEL_SCALE;
+        long span = last - first;
+        float drop = Math.max(0, firstLevel - lastLevel);
+        if (mCount == 0) {
+            mFirstTime = first;
+            mFirstLevel = firstLevel;
+            mMinTemperature = bucket.mMin[RollupTier.TEMPERATURE];
+            mMaxTemperature = bucket.mMax[RollupTier.TEMPERATURE];
+            mMinVoltage = bucket.mMin[RollupTier.VOLTAGE];
+            mMaxVoltage = bucket.mMax[RollupTier.VOLTAGE];
+        } else {
+            long gap = first - mLastTime;
+            if (gap > 0 && gap <= MAX_GAP_MS) {
+                span += gap;
+                drop += Math.max(0, mLastLevel - firstLevel);
+            }
+            mMinTemperature = Math.min(mMinTemperature, bucket.mMin[RollupTier.TEMPERATURE]);
+            mMaxTemperature = Math.max(mMaxTemperature, bucket.mMax[RollupTier.TEMPERATURE]);
+            mMinVoltage = Math.min(mMinVoltage, bucket.mMin[RollupTier.VOLTAGE]);
+            mMaxVoltage = Math.max(mMaxVoltage, bucket.mMax[RollupTier.VOLTAGE]);
+        }
+        float onFraction = bucket.getScreenOnFraction();
+        long onMs = Math.round(span * (double) onFraction);
+        double energy = (double) bucket.getMean(RollupTier.VOLTAGE)
+                * bucket.getMean(RollupTier.CURRENT) * span / 3.6e9;
+        mScreenOnMs += onMs;
+        mScreenOffMs += span - onMs;
+        mEnergyOnMwh += energy * onFraction;
+        mEnergyOffMwh += energy * (1 - onFraction);
+        mLevelDropOn += drop * onFraction;
+        mLevelDropOff += drop * (1 - onFraction);
+        mTemperatureSum += bucket.mSum[RollupTier.TEMPERATURE];
+        mVoltageSum += bucket.mSum[RollupTier.VOLTAGE];
+        mLastTime = last;
+        mLastLevel = lastLevel;
+        mLastScreenOn = onFraction >= 0.5f;
+        mCount += bucket.mCount;
+    }
+
+    public void addAll(SampleStore.View samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            add(samples, i);
+        }
+    }
+
+    public void reset() {
+        mCount = 0;
+        mScreenOnMs = 0;
+        mScreenOffMs = 0;
+        mEnergyOnMwh = 0;
+        mEnergyOffMwh = 0;
+        mLevelDropOn = 0;
+        mLevelDropOff = 0;
+        mTemperatureSum = 0;
+        mVoltageSum = 0;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Statistics over a whole series, for sessions loaded from history.
+     */
+    public static Snapshot of(SampleStore.View samples) {
+        BatteryStats stats = new BatteryStats();
+        stats.addAll(samples);
+        return stats.snapshot();
+    }
+}
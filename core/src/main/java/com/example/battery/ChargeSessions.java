@@ -0,0 +1,393 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The history split into charge and discharge sessions, one cached {@link Summary} per
+ * session in a file of fixed-width records, oldest first.
+ * <p>
+ * A {@link Detector} splits the sample stream wherever the battery starts or stops
+ * charging. The session still running is rewritten in place on every flush, so listing
+ * and comparing sessions only ever reads their summaries; a record torn by a crash fails
+ * its CRC32 and is dropped on open. The file is derived data and can be refilled from the
+ * segments.
+ */
+public class ChargeSessions {
+
+    static final int MAGIC = 0x42434847; // "BCHG"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4)
+    static final int HEADER_SIZE = 8;
+    // start(8) + end(8) + flags(4) + count(4) + startLevel(4) + endLevel(4) + minLevel(4)
+    // + maxLevel(4) + maxTemperature(4) + energy(8) + screenOnMs(8) + trackedMs(8) + crc32(4)
+    static final int RECORD_SIZE = 72;
+
+    private static final int FLAG_CHARGING = 1;
+    private static final int FLAG_LAST_SCREEN_ON = 2;
+
+    private final File mFile;
+    // Only touched by the writer
+    private final Detector mDetector = new Detector();
+    private long mOpenOffset = -1;
+
+    /**
+     * One charge or discharge session. Levels are in hundredths of a percent, as in
+     * {@link RollupTier}; intervals are credited to the session of the sample that starts
+     * them, and only those up to {@link BatteryStats#MAX_GAP_MS} count towards energy and
+     * screen-on time.
+     */
+    public static final class Summary {
+        public long mStart;
+        public long mEnd;
+        public boolean mCharging;
+        public int mCount;
+        public int mStartLevel;
+        public int mEndLevel;
+        public int mMinLevel;
+        public int mMaxLevel;
+        // Tenths of a degree Celsius
+        public int mMaxTemperature;
+        // Signed like the current the device reports
+        public long mEnergyUwh;
+        public long mScreenOnMs;
+        // Time covered by counted intervals, at most mEnd - mStart
+        public long mTrackedMs;
+        public boolean mLastScreenOn;
+
+        public long getDurationMs() {
+            return mEnd - mStart;
+        }
+
+        /**
+         * Level at the start of the session, in percent.
+         */
+        public float getStartLevel() {
+            return mStartLevel * 100f / RollupTier.LEVEL_SCALE;
+        }
+
+        public float getEndLevel() {
+            return mEndLevel * 100f / RollupTier.LEVEL_SCALE;
+        }
+
+        /**
+         * Level gained over the session, in percent; negative while discharging.
+         */
+        public float getLevelChange() {
+            return (mEndLevel - mStartLevel) * 100f / RollupTier.LEVEL_SCALE;
+        }
+
+        public float getEnergyMwh() {
+            return mEnergyUwh / 1000f;
+        }
+
+        public float getScreenOnShare() {
+            return mTrackedMs == 0 ? 0 : mScreenOnMs / (float) mTrackedMs;
+        }
+
+        /**
+         * Mean power over the session, in watts.
+         */
+        public float getAveragePower() {
+            return mTrackedMs == 0 ? 0 : mEnergyUwh * 3.6f / mTrackedMs;
+        }
+
+        public Summary copy() {
+            Summary copy = new Summary();
+            copy.mStart = mStart;
+            copy.mEnd = mEnd;
+            copy.mCharging = mCharging;
+            copy.mCount = mCount;
+            copy.mStartLevel = mStartLevel;
+            copy.mEndLevel = mEndLevel;
+            copy.mMinLevel = mMinLevel;
+            copy.mMaxLevel = mMaxLevel;
+            copy.mMaxTemperature = mMaxTemperature;
+            copy.mEnergyUwh = mEnergyUwh;
+            copy.mScreenOnMs = mScreenOnMs;
+            copy.mTrackedMs = mTrackedMs;
+            copy.mLastScreenOn = mLastScreenOn;
+            return copy;
+        }
+
+        void start(long time, int level, int temperature, boolean charging) {
+            mStart = time;
+            mEnd = time;
+            mCharging = charging;
+            mStartLevel = level;
+            mEndLevel = level;
+            mMinLevel = level;
+            mMaxLevel = level;
+            mMaxTemperature = temperature;
+        }
+
+        /**
+         * Closes the interval since the previous sample at {@code time}, with the closing
+         * sample's readings as in {@link BatteryStats}.
+         */
+        void extend(long time, int level, int voltage, int current) {
+            long delta = time - mEnd;
+            if (delta > 0 && delta <= BatteryStats.MAX_GAP_MS) {
+                // mV * mA * ms -> µWh
+                mEnergyUwh += Math.round((double) voltage * current * delta / 3.6e6);
+                mTrackedMs += delta;
+                if (mLastScreenOn) {
+                    mScreenOnMs += delta;
+                }
+            }
+            mEnd = Math.max(mEnd, time);
+            mEndLevel = level;
+            mMinLevel = Math.min(mMinLevel, level);
+            mMaxLevel = Math.max(mMaxLevel, level);
+        }
+
+        void write(ByteBuffer out, CRC32 crc) {
+            int position = out.position();
+            int flags = (mCharging ? FLAG_CHARGING : 0) | (mLastScreenOn ? FLAG_LAST_SCREEN_ON : 0);
+            out.putLong(mStart).putLong(mEnd).putInt(flags).putInt(mCount).putInt(mStartLevel)
+                    .putInt(mEndLevel).putInt(mMinLevel).putInt(mMaxLevel).putInt(mMaxTemperature)
+                    .putLong(mEnergyUwh).putLong(mScreenOnMs).putLong(mTrackedMs);
+            crc.reset();
+            crc.update(out.array(), position, RECORD_SIZE - 4);
+            out.putInt((int) crc.getValue());
+        }
+
+        static Summary read(byte[] record, int offset, CRC32 crc) {
+            crc.reset();
+            crc.update(record, offset, RECORD_SIZE - 4);
+            ByteBuffer in = ByteBuffer.wrap(record, offset, RECORD_SIZE);
+            if ((int) crc.getValue() != in.getInt(offset + RECORD_SIZE - 4)) {
+                return null;
+            }
+            Summary summary = new Summary();
+            summary.mStart = in.getLong();
+            summary.mEnd = in.getLong();
+            int flags = in.getInt();
+            summary.mCharging = (flags & FLAG_CHARGING) != 0;
+            summary.mLastScreenOn = (flags & FLAG_LAST_SCREEN_ON) != 0;
+            summary.mCount = in.getInt();
+            summary.mStartLevel = in.getInt();
+            summary.mEndLevel = in.getInt();
+            summary.mMinLevel = in.getInt();
+            summary.mMaxLevel = in.getInt();
+            summary.mMaxTemperature = in.getInt();
+            summary.mEnergyUwh = in.getLong();
+            summary.mScreenOnMs = in.getLong();
+            summary.mTrackedMs = in.getLong();
+            return summary;
+        }
+    }
+
+    /**
+     * Online session detector: folds samples into the running session in constant time and
+     * starts a new one whenever the battery starts or stops charging. The sample that
+     * changes the state closes the previous session, whose last interval it ends, and opens
+     * the next one.
+     * <p>
+     * Not thread-safe.
+     */
+    public static final class Detector {
+        private Summary mCurrent;
+
+        /**
+         * Continues from a session restored from disk, or starts afresh with {@code null}.
+         */
+        public void seed(Summary current) {
+            mCurrent = current;
+        }
+
+        /**
+         * Adds the sample taken at wall-clock time {@code time}.
+         *
+         * @return the session it closed, or {@code null} if it continues the current one
+         */
+        public Summary add(long time, int level, int scale, int temperature, int voltage,
+                           int status, boolean isScreenOn, int current) {
+            int scaled = scale == 0 ? 0 : (int) ((long) level * RollupTier.LEVEL_SCALE / scale);
+            boolean charging = DrainPredictor.isCharging(status);
+            Summary closed = null;
+            if (mCurrent != null && mCurrent.mCharging != charging) {
+                closed = mCurrent;
+                closed.extend(time, scaled, voltage, current);
+                mCurrent = null;
+            }
+            if (mCurrent == null) {
+                mCurrent = new Summary();
+                mCurrent.start(time, scaled, temperature, charging);
+            } else {
+                mCurrent.extend(time, scaled, voltage, current);
+                mCurrent.mMaxTemperature = Math.max(mCurrent.mMaxTemperature, temperature);
+            }
+            mCurrent.mLastScreenOn = isScreenOn;
+            mCurrent.mCount++;
+            return closed;
+        }
+
+        public Summary add(BatteryData sample, long startTime) {
+            return add(startTime + sample.mPastTime, sample.mLevel, sample.mScale,
+                    sample.mTemperature, sample.mVoltage, sample.mStatus, sample.mIsScreenOn,
+                    sample.mCurrent);
+        }
+
+        /**
+         * The session still running, or {@code null} before the first sample. Live: copy it
+         * before handing it to another thread.
+         */
+        public Summary current() {
+            return mCurrent;
+        }
+    }
+
+    public ChargeSessions(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Creates the file or drops a torn tail, and picks the latest session up again so that
+     * samples after a restart keep extending it.
+     *
+     * @return false if the file had to be created from scratch
+     */
+    public boolean open() throws IOException {
+        mDetector.seed(null);
+        mOpenOffset = -1;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+                    || file.readInt() != FORMAT_VERSION) {
+                writeHeader(file);
+                return false;
+            }
+            long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            Summary last = null;
+            while (records > 0) {
+                file.seek(HEADER_SIZE + (records - 1) * RECORD_SIZE);
+                file.readFully(record);
+                last = Summary.read(record, 0, crc);
+                if (last != null) {
+                    break;
+                }
+                records--;
+            }
+            file.setLength(HEADER_SIZE + records * RECORD_SIZE);
+            if (last != null) {
+                mDetector.seed(last);
+                mOpenOffset = HEADER_SIZE + (records - 1) * RECORD_SIZE;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops every session.
+     */
+    public void clear() throws IOException {
+        mDetector.seed(null);
+        mOpenOffset = -1;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            writeHeader(file);
+        }
+    }
+
+    /**
+     * Adds every sample of {@code samples}, whose pastTime is relative to {@code startTime},
+     * writing out every session they close.
+     */
+    public void add(SampleStore.View samples, long startTime) throws IOException {
+        for (int i = 0; i < samples.size(); i++) {
+            Summary closed = mDetector.add(startTime + samples.getPastTime(i), samples.getLevel(i),
+                    samples.getScale(i), samples.getTemperature(i), samples.getVoltage(i),
+                    samples.getStatus(i), samples.isScreenOn(i), samples.getCurrent(i));
+            if (closed != null) {
+                closeSession(closed);
+            }
+        }
+    }
+
+    /**
+     * Writes the session still running, in place if it was written before.
+     *
+     * @return the number of bytes written
+     */
+    public int flush() throws IOException {
+        Summary current = mDetector.current();
+        if (current == null) {
+            return 0;
+        }
+        mOpenOffset = write(current, mOpenOffset);
+        return RECORD_SIZE;
+    }
+
+    /**
+     * The session still running, as far as it has been added. Call it on the writer.
+     */
+    public Summary current() {
+        Summary current = mDetector.current();
+        return current == null ? null : current.copy();
+    }
+
+    /**
+     * Reads every session, oldest first. Records failing their checksum are skipped.
+     *
+     * @return the number of sessions read
+     */
+    public int read(List<Summary> out) throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        byte[] records;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            int size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            if (size <= 0) {
+                return 0;
+            }
+            records = new byte[size * RECORD_SIZE];
+            file.seek(HEADER_SIZE);
+            file.readFully(records);
+        }
+        CRC32 crc = new CRC32();
+        int read = 0;
+        for (int offset = 0; offset < records.length; offset += RECORD_SIZE) {
+            Summary summary = Summary.read(records, offset, crc);
+            if (summary != null) {
+                out.add(summary);
+                read++;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Writes a finished session over its open record; the next one goes after it.
+     */
+    private void closeSession(Summary closed) throws IOException {
+        write(closed, mOpenOffset);
+        mOpenOffset = -1;
+    }
+
+    /**
+     * @return the offset the record was written at
+     */
+    private long write(Summary summary, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        summary.write(buffer, new CRC32());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            long at = offset >= 0 ? offset : file.length();
+            file.seek(at);
+            file.write(buffer.array());
+            return at;
+        }
+    }
+
+    private void writeHeader(RandomAccessFile file) throws IOException {
+        file.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        file.write(header.array());
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.battery;
+
+import java.util.Arrays;
+
+/**
+ * Picks the samples worth drawing when there are far more of them than the chart has
+ * pixels, using largest-triangle-three-buckets on the battery level.
+ * <p>
+ * The samples are split into runs of equal screen state first and every run is decimated
+ * on its own, keeping its first and last sample. The screen on/off segments the chart
+ * draws therefore start and end exactly where they did without decimation; only the points
+ * between the boundaries are thinned out.
+ */
+public final class ChartDecimator {
+
+    private ChartDecimator() {
+    }
+
+    /**
+     * Indices of the samples to draw, in order, roughly {@code threshold} of them plus two
+     * per screen on/off run. Everything is kept if there are not more samples than that.
+     */
+    public static int[] decimate(SampleStore.View samples, int threshold) {
+        return decimate(samples, 0, samples.size(), threshold);
+    }
+
+    /**
+     * Same as {@link #decimate(SampleStore.View, int)} over samples {@code [from, to)} only.
+     * The indices returned are those of {@code samples}.
+     */
+    public static int[] decimate(SampleStore.View samples, int from, int to, int threshold) {
+        int size = to - from;
+        if (size <= threshold || threshold < 3) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = from + i;
+            }
+            return all;
+        }
+        double samplesPerBucket = size / (double) threshold;
+        int[] out = new int[threshold * 2 + 16];
+        int count = 0;
+        int runStart = from;
+        for (int i = from + 1; i <= to; i++) {
+            if (i < to && samples.isScreenOn(i) == samples.isScreenOn(runStart)) {
+                continue;
+            }
+            int runThreshold = Math.max(2, (int) Math.ceil((i - runStart) / samplesPerBucket));
+            if (count + runThreshold > out.length) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, count + runThreshold));
+            }
+            count = decimateRun(samples, runStart, i, runThreshold, out, count);
+            runStart = i;
+        }
+        return Arrays.copyOf(out, count);
+    }
+
+    private static int decimateRun(SampleStore.View samples, int from, int to, int threshold,
+                                   int[] out, int count) {
+        int length = to - from;
+        if (length <= threshold) {
+            for (int i = from; i < to; i++) {
+                out[count++] = i;
+            }
+            return count;
+        }
+        out[count++] = from;
+        // Interior samples are split into threshold - 2 buckets, one point chosen from each
+        double every = (length - 2) / (double) (threshold - 2);
+        int selected = from;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int start = from + 1 + (int) (bucket * every);
+            int end = from + 1 + (int) ((bucket + 1) * every);
+
+            // Average of the next bucket, or the run's last sample after the final bucket
+            int nextStart = end;
+            int nextEnd = Math.min(from + 1 + (int) ((bucket + 2) * every), to - 1);
+            double nextX;
+            double nextY;
+            if (nextStart >= nextEnd) {
+                nextX = samples.getPastTime(to - 1);
+                nextY = samples.getLevelPercent(to - 1);
+            } else {
+                nextX = 0;
+                nextY = 0;
+                for (int i = nextStart; i < nextEnd; i++) {
+                    nextX += samples.getPastTime(i);
+                    nextY += samples.getLevelPercent(i);
+                }
+                nextX /= nextEnd - nextStart;
+                nextY /= nextEnd - nextStart;
+            }
+
+            double selectedX = samples.getPastTime(selected);
+            double selectedY = samples.getLevelPercent(selected);
+            double maxArea = -1;
+            int best = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((selectedX - nextX) * (samples.getLevelPercent(i) - selectedY)
+                        - (selectedX - samples.getPastTime(i)) * (nextY - selectedY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    best = i;
+                }
+            }
+            out[count++] = best;
+            selected = best;
+        }
+        out[count++] = to - 1;
+        return count;
+    }
+}
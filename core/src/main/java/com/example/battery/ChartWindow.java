@@ -0,0 +1,89 @@
+package com.example.battery;
+
+/**
+ * The part of a series the chart holds entries for: the visible time range plus
+ * {@link #MARGIN} of it on either side, so short pans need no reload. Its ends are found by
+ * binary search on pastTime, and it is decimated to about one point per pixel of the
+ * visible range, so the entries in memory stay bounded by the screen width however long
+ * the series is.
+ */
+public final class ChartWindow {
+
+    // Fraction of the visible span loaded beyond each edge
+    static final float MARGIN = 0.5f;
+    // Zoom factor past which the point budget no longer matches the screen
+    static final float RESCALE = 1.5f;
+
+    // Samples [mStart, mEnd) are materialized
+    public final int mStart;
+    public final int mEnd;
+    // pastTime range the window covers; open-ended at the ends of the series
+    public final long mFrom;
+    public final long mTo;
+    // Visible span it was sized for, in ms, and its point budget
+    public final long mSpan;
+    public final int mThreshold;
+
+    private ChartWindow(int start, int end, long from, long to, long span, int threshold) {
+        mStart = start;
+        mEnd = end;
+        mFrom = from;
+        mTo = to;
+        mSpan = span;
+        mThreshold = threshold;
+    }
+
+    /**
+     * The window for pastTime range {@code [visibleFrom, visibleTo]} drawn over
+     * {@code pixels} pixels. The range is clamped to the series, so
+     * {@code Long.MIN_VALUE, Long.MAX_VALUE} asks for all of it.
+     */
+    public static ChartWindow of(SampleStore.View samples, long visibleFrom, long visibleTo,
+                                 int pixels) {
+        int size = samples.size();
+        if (size == 0) {
+            return new ChartWindow(0, 0, Long.MIN_VALUE, Long.MAX_VALUE, 0, pixels);
+        }
+        long from = clamp(samples, visibleFrom);
+        long to = Math.max(from, clamp(samples, visibleTo));
+        long span = to - from;
+        long margin = (long) (span * MARGIN);
+        // One sample beyond each edge, so the line runs off the screen
+        int start = Math.max(0, samples.lowerBound(from - margin) - 1);
+        int end = Math.min(size, samples.lowerBound(to + margin + 1) + 1);
+        long loadedFrom = start == 0 ? Long.MIN_VALUE : samples.getPastTime(start);
+        long loadedTo = end == size ? Long.MAX_VALUE : samples.getPastTime(end - 1);
+        int threshold = span == 0 ? pixels : (int) (pixels * (1 + 2 * MARGIN));
+        return new ChartWindow(start, end, loadedFrom, loadedTo, span, threshold);
+    }
+
+    /**
+     * Whether the window still serves visible range {@code [visibleFrom, visibleTo]}: it
+     * lies inside the loaded range and the zoom has not changed by more than
+     * {@link #RESCALE}.
+     */
+    public boolean fits(SampleStore.View samples, long visibleFrom, long visibleTo) {
+        if (samples.isEmpty()) {
+            return true;
+        }
+        long from = clamp(samples, visibleFrom);
+        long to = Math.max(from, clamp(samples, visibleTo));
+        if (from < mFrom || to > mTo) {
+            return false;
+        }
+        long span = to - from;
+        return span * RESCALE >= mSpan && span <= mSpan * RESCALE;
+    }
+
+    private static long clamp(SampleStore.View samples, long time) {
+        return Math.min(Math.max(time, samples.getPastTime(0)),
+                samples.getPastTime(samples.size() - 1));
+    }
+
+    /**
+     * Indices of the samples in the window to draw.
+     */
+    public int[] decimate(SampleStore.View samples) {
+        return ChartDecimator.decimate(samples, mStart, mEnd, mThreshold);
+    }
+}
@@ -0,0 +1,13 @@
+package com.example.battery;
+
+
+public class Constant {
+    // Average current has no broadcast and is polled, per device state
+    public static final long SCREEN_ON_POLL_MS = 5_000;
+    public static final long SCREEN_OFF_POLL_MS = 60_000;
+    public static final long CHARGING_POLL_MS = 30_000;
+    // Unchanged readings are still recorded this often
+    public static final long MAX_SAMPLE_INTERVAL_MS = 5 * 60 * 1000;
+    // Changes within this window reach data observers as one update
+    public static final long OBSERVER_COALESCE_MS = 250;
+}
@@ -0,0 +1,297 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * {@link SampleDistributions} per hour and per day, kept next to the {@link Rollups} with
+ * the same local-time alignment, so the percentiles of any window come from merging a few
+ * hundred records instead of rescanning raw samples.
+ * <p>
+ * Each tier is a file of fixed-width records sorted by bucket start; the bucket still
+ * filling up is rewritten in place on every flush and a record torn by a crash fails its
+ * CRC32 and is dropped on open, as in {@link RollupTier}. Hours are kept as long as the raw
+ * history, days indefinitely.
+ */
+public class DistributionTiers {
+
+    static final int MAGIC = 0x42445354; // "BDST"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4) + duration(8)
+    static final int HEADER_SIZE = 16;
+    // start(8) + distributions + crc32(4)
+    static final int RECORD_SIZE = 8 + SampleDistributions.ENCODED_SIZE + 4;
+
+    static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final Tier mHours;
+    private final Tier mDays;
+
+    public DistributionTiers(File dir) {
+        mHours = new Tier(new File(dir, "distribution_" + HOUR_MS / 1000 + "s.bin"), HOUR_MS);
+        mDays = new Tier(new File(dir, "distribution_" + DAY_MS / 1000 + "s.bin"), DAY_MS);
+    }
+
+    /**
+     * Opens both tiers, emptying both if either is missing or unreadable.
+     *
+     * @return false if the tiers are empty and need {@link #add} from the start of history
+     */
+    public boolean open() throws IOException {
+        boolean intact = mHours.open() & mDays.open();
+        if (!intact) {
+            clear();
+        }
+        return intact;
+    }
+
+    /**
+     * Empties both tiers.
+     */
+    public void clear() throws IOException {
+        mHours.clear();
+        mDays.clear();
+    }
+
+    /**
+     * Adds every sample of {@code samples}, whose pastTime is relative to {@code startTime}.
+     */
+    public void add(SampleStore.View samples, long startTime) throws IOException {
+        for (int i = 0; i < samples.size(); i++) {
+            long time = startTime + samples.getPastTime(i);
+            mHours.bucketFor(time).add(samples, i);
+            mDays.bucketFor(time).add(samples, i);
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int flush() throws IOException {
+        return mHours.flush() + mDays.flush();
+    }
+
+    public void prune(long now) throws IOException {
+        mHours.prune(now - SampleHistory.RETENTION_MS);
+    }
+
+    /**
+     * Merges the buckets overlapping the wall-clock range {@code [from, to]} into
+     * {@code out}: days for windows of a week or more, or when the hours have been pruned,
+     * hours otherwise. Edges are widened to whole buckets.
+     *
+     * @return the number of buckets merged
+     */
+    public int read(long from, long to, SampleDistributions out) throws IOException {
+        boolean days = to - from >= 7 * DAY_MS
+                || from < System.currentTimeMillis() - SampleHistory.RETENTION_MS;
+        return (days ? mDays : mHours).read(from, to, out);
+    }
+
+    private static final class Tier {
+        private final File mFile;
+        private final long mDuration;
+        // Only touched by the writer
+        private SampleDistributions mOpen;
+        private long mOpenStart;
+        private long mOpenOffset = -1;
+
+        Tier(File file, long duration) {
+            mFile = file;
+            mDuration = duration;
+        }
+
+        boolean open() throws IOException {
+            mOpen = null;
+            mOpenOffset = -1;
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+                        || file.readInt() != FORMAT_VERSION || file.readLong() != mDuration) {
+                    writeHeader(file);
+                    return false;
+                }
+                long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[RECORD_SIZE];
+                while (records > 0) {
+                    file.seek(HEADER_SIZE + (records - 1) * RECORD_SIZE);
+                    file.readFully(record);
+                    SampleDistributions open = new SampleDistributions();
+                    long start = read(record, crc, open);
+                    if (start != Long.MIN_VALUE) {
+                        mOpen = open;
+                        mOpenStart = start;
+                        break;
+                    }
+                    records--;
+                }
+                file.setLength(HEADER_SIZE + records * RECORD_SIZE);
+                if (mOpen != null) {
+                    mOpenOffset = HEADER_SIZE + (records - 1) * RECORD_SIZE;
+                }
+                return true;
+            }
+        }
+
+        void clear() throws IOException {
+            mOpen = null;
+            mOpenOffset = -1;
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                writeHeader(file);
+            }
+        }
+
+        /**
+         * The bucket a sample at {@code time} goes into, writing out the previous one once
+         * a sample lands past it. Samples older than the open bucket go into a scratch one
+         * that is never written, which keeps the file sorted.
+         */
+        SampleDistributions bucketFor(long time) throws IOException {
+            long start = bucketStart(time);
+            if (mOpen != null && start < mOpenStart) {
+                return new SampleDistributions();
+            }
+            if (mOpen != null && start > mOpenStart) {
+                flush();
+                mOpen = null;
+                mOpenOffset = -1;
+            }
+            if (mOpen == null) {
+                mOpen = new SampleDistributions();
+                mOpenStart = start;
+            }
+            return mOpen;
+        }
+
+        int flush() throws IOException {
+            if (mOpen == null) {
+                return 0;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            buffer.putLong(mOpenStart);
+            mOpen.write(buffer);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), 0, RECORD_SIZE - 4);
+            buffer.putInt((int) crc.getValue());
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                long offset = mOpenOffset >= 0 ? mOpenOffset : file.length();
+                file.seek(offset);
+                file.write(buffer.array());
+                mOpenOffset = offset;
+            }
+            return RECORD_SIZE;
+        }
+
+        int read(long from, long to, SampleDistributions out) throws IOException {
+            if (!mFile.exists()) {
+                return 0;
+            }
+            int read = 0;
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+                int size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+                int low = lowerBound(file, size, bucketStart(from));
+                CRC32 crc = new CRC32();
+                byte[] record = new byte[RECORD_SIZE];
+                SampleDistributions bucket = new SampleDistributions();
+                file.seek(HEADER_SIZE + (long) low * RECORD_SIZE);
+                for (int i = low; i < size; i++) {
+                    file.readFully(record);
+                    long start = read(record, crc, bucket);
+                    if (start == Long.MIN_VALUE) {
+                        continue;
+                    }
+                    if (start > to) {
+                        break;
+                    }
+                    out.add(bucket);
+                    read++;
+                }
+            }
+            return read;
+        }
+
+        void prune(long before) throws IOException {
+            int size;
+            int keepFrom;
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+                size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+                keepFrom = lowerBound(file, size, before);
+            }
+            if (keepFrom == 0) {
+                return;
+            }
+            byte[] kept = new byte[(size - keepFrom) * RECORD_SIZE];
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(mDuration);
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+                file.seek(HEADER_SIZE + (long) keepFrom * RECORD_SIZE);
+                file.readFully(kept);
+            }
+            File tmp = new File(mFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                out.write(header.array());
+                out.write(kept);
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(mFile)) {
+                tmp.delete();
+                throw new IOException("Unable to replace " + mFile);
+            }
+            if (mOpenOffset >= 0) {
+                mOpenOffset -= (long) keepFrom * RECORD_SIZE;
+            }
+        }
+
+        /**
+         * Reads one record into {@code out}.
+         *
+         * @return its bucket start, or {@code Long.MIN_VALUE} if it fails its checksum
+         */
+        private static long read(byte[] record, CRC32 crc, SampleDistributions out) {
+            crc.reset();
+            crc.update(record, 0, RECORD_SIZE - 4);
+            ByteBuffer in = ByteBuffer.wrap(record);
+            if ((int) crc.getValue() != in.getInt(RECORD_SIZE - 4)) {
+                return Long.MIN_VALUE;
+            }
+            long start = in.getLong();
+            out.read(in);
+            return start;
+        }
+
+        private void writeHeader(RandomAccessFile file) throws IOException {
+            file.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(mDuration);
+            file.write(header.array());
+        }
+
+        private static int lowerBound(RandomAccessFile file, int size, long start)
+                throws IOException {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                file.seek(HEADER_SIZE + (long) mid * RECORD_SIZE);
+                if (file.readLong() < start) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private long bucketStart(long time) {
+            long local = time + TimeZone.getDefault().getOffset(time);
+            return time - Math.floorMod(local, mDuration);
+        }
+    }
+}
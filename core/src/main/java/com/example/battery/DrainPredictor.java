@@ -0,0 +1,296 @@
+package com.example.battery;
+
+/**
+ * Online estimate of the remaining battery time, updated in constant time and space per
+ * sample.
+ * <p>
+ * Two estimators run side by side. An exponential moving average of the drain rate is kept
+ * for each screen state, so the estimate follows the state the phone is in. Levels arrive
+ * in whole percent, so it is updated whenever the level steps down, crediting the drop to
+ * each state by the time spent in it since the previous step, and decays per percentage
+ * point rather than per hour: it remembers about {@link #MEMORY_POINTS} points at any
+ * drain rate. A level that has held for a while caps the rate at one point per that time,
+ * so a drain that stops shows up before the next step. A least-squares line through level
+ * versus time over the last {@link #WINDOW_MS} checks it; the spread between the two and
+ * the standard error of the fitted slope make up the confidence band.
+ * <p>
+ * There is no estimate while charging. Charging breaks the fitted line, so it starts over
+ * once discharging resumes; the moving averages carry over, since the workload did not
+ * change. Not thread-safe.
+ */
+public class DrainPredictor {
+
+    // Same values as BatteryManager.BATTERY_STATUS_CHARGING / _FULL
+    static final int STATUS_CHARGING = 2;
+    static final int STATUS_FULL = 5;
+
+    static final float MEMORY_POINTS = 4;
+    static final long WINDOW_MS = 2 * 60 * 60 * 1000;
+    // Points kept for the fit, at most one per WINDOW_MS / WINDOW_POINTS
+    static final int WINDOW_POINTS = 240;
+    // Too little time behind a rate to trust it
+    static final long MIN_WEIGHT_MS = 5 * 60 * 1000;
+    static final int MIN_FIT_POINTS = 5;
+    // Rates below this (percent per hour) count as not draining
+    static final float MIN_RATE = 0.05f;
+    // Two-sided 90 %
+    static final float Z = 1.645f;
+    // Levels arrive in whole percent: residuals never shrink below the quantization noise
+    private static final double QUANTIZATION_VARIANCE = 1.0 / 12;
+    private static final double HOUR_MS = 3600_000.0;
+
+    private boolean mHasLast;
+    private long mLastTime;
+    private float mLastLevel;
+    private boolean mLastScreenOn;
+    private boolean mLastCharging;
+
+    // Decayed level drop and time per screen state, on = 0 and off = 1
+    private final double[] mDrop = new double[2];
+    private final double[] mWeight = new double[2];
+    // Time per screen state since the last step down
+    private final long[] mPending = new long[2];
+    // Whether a step was seen since discharging started; time before it has an unknown
+    // share of the first step behind it
+    private boolean mAligned;
+
+    // Ring of fitted points, in hours since mOrigin and percent
+    private final double[] mFitTimes = new double[WINDOW_POINTS];
+    private final double[] mFitLevels = new double[WINDOW_POINTS];
+    private int mFitHead;
+    private int mFitSize;
+    private int mFitAdded;
+    private long mOrigin;
+    private long mLastFitTime;
+    private double mSumT;
+    private double mSumL;
+    private double mSumTT;
+    private double mSumTL;
+    private double mSumLL;
+
+    /**
+     * Remaining time with a confidence band, in hours. The upper bound is infinite when the
+     * slowest plausible drain rate is zero.
+     */
+    public static final class Estimate {
+        public final float mLevel;
+        // Percent per hour
+        public final float mDrainRate;
+        public final float mHours;
+        public final float mLowHours;
+        public final float mHighHours;
+
+        Estimate(float level, float drainRate, float lowRate, float highRate) {
+            mLevel = level;
+            mDrainRate = drainRate;
+            mHours = level / drainRate;
+            mLowHours = level / highRate;
+            mHighHours = lowRate > MIN_RATE ? level / lowRate : Float.POSITIVE_INFINITY;
+        }
+    }
+
+    public void add(long pastTime, float levelPercent, boolean isScreenOn, boolean isCharging) {
+        long delta = pastTime - mLastTime;
+        if (isCharging || (mHasLast && levelPercent > mLastLevel)) {
+            clearFit();
+            clearPending();
+            mAligned = false;
+        } else if (mHasLast) {
+            if (mAligned && delta > 0 && delta <= BatteryStats.MAX_GAP_MS) {
+                mPending[mLastScreenOn ? 0 : 1] += delta;
+            }
+            if (levelPercent < mLastLevel) {
+                step(mLastLevel - levelPercent);
+            }
+        }
+        if (!isCharging && (mFitSize == 0 || pastTime - mLastFitTime >= WINDOW_MS / WINDOW_POINTS)) {
+            addFitPoint(pastTime, levelPercent);
+        }
+        mHasLast = true;
+        mLastTime = pastTime;
+        mLastLevel = levelPercent;
+        mLastScreenOn = isScreenOn;
+        mLastCharging = isCharging;
+    }
+
+    public void add(SampleStore.View samples, int i) {
+        add(samples.getPastTime(i), samples.getLevel(i) * 100f / samples.getScale(i),
+                samples.isScreenOn(i), isCharging(samples.getStatus(i)));
+    }
+
+    public void add(BatteryData sample) {
+        add(sample.mPastTime, sample.mLevel * 100f / sample.mScale, sample.mIsScreenOn,
+                isCharging(sample.mStatus));
+    }
+
+    public void addAll(SampleStore.View samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            add(samples, i);
+        }
+    }
+
+    public void reset() {
+        mHasLast = false;
+        mAligned = false;
+        for (int state = 0; state < 2; state++) {
+            mDrop[state] = 0;
+            mWeight[state] = 0;
+        }
+        clearPending();
+        clearFit();
+    }
+
+    /**
+     * Smoothed drain rate for one screen state in percent per hour, or NaN while fewer than
+     * {@link #MIN_WEIGHT_MS} of discharge were seen in that state.
+     */
+    public float getDrainRate(boolean isScreenOn) {
+        int state = isScreenOn ? 0 : 1;
+        if (mWeight[state] + mPending[state] < MIN_WEIGHT_MS) {
+            return Float.NaN;
+        }
+        double rate = mWeight[state] == 0 ? 0 : mDrop[state] / mWeight[state] * HOUR_MS;
+        return (float) (mPending[state] == 0 ? rate : Math.min(rate, HOUR_MS / mPending[state]));
+    }
+
+    /**
+     * Drain rate of the fitted line in percent per hour, or NaN while the window holds too
+     * few points.
+     */
+    public float getFittedRate() {
+        if (mFitSize < MIN_FIT_POINTS) {
+            return Float.NaN;
+        }
+        double sxx = mSumTT - mSumT * mSumT / mFitSize;
+        if (sxx <= 0) {
+            return Float.NaN;
+        }
+        double sxy = mSumTL - mSumT * mSumL / mFitSize;
+        return (float) (-sxy / sxx);
+    }
+
+    /**
+     * The estimate for the current screen state, or {@code null} if the battery is not
+     * known to be draining.
+     */
+    public Estimate estimate() {
+        if (!mHasLast || mLastCharging) {
+            return null;
+        }
+        float smoothed = getDrainRate(mLastScreenOn);
+        float fitted = getFittedRate();
+        float rate = Float.isNaN(smoothed) ? fitted : smoothed;
+        if (Float.isNaN(rate) || rate < MIN_RATE) {
+            return null;
+        }
+        float low = rate;
+        float high = rate;
+        if (!Float.isNaN(fitted)) {
+            float margin = Z * fittedRateError();
+            low = Math.min(rate, fitted) - margin;
+            high = Math.max(rate, fitted) + margin;
+        }
+        return new Estimate(mLastLevel, rate, Math.max(low, 0), Math.max(high, rate));
+    }
+
+    static boolean isCharging(int status) {
+        return status == STATUS_CHARGING || status == STATUS_FULL;
+    }
+
+    private void step(float drop) {
+        if (mAligned) {
+            long pending = mPending[0] + mPending[1];
+            for (int state = 0; state < 2 && pending > 0; state++) {
+                double share = mPending[state] / (double) pending;
+                double decay = Math.exp(-drop * share / MEMORY_POINTS);
+                mDrop[state] = mDrop[state] * decay + drop * share;
+                mWeight[state] = mWeight[state] * decay + mPending[state];
+            }
+        }
+        clearPending();
+        mAligned = true;
+    }
+
+    private void clearPending() {
+        mPending[0] = 0;
+        mPending[1] = 0;
+    }
+
+    private float fittedRateError() {
+        int n = mFitSize;
+        double sxx = mSumTT - mSumT * mSumT / n;
+        double sxy = mSumTL - mSumT * mSumL / n;
+        double syy = mSumLL - mSumL * mSumL / n;
+        double variance = Math.max((syy - sxy * sxy / sxx) / (n - 2), QUANTIZATION_VARIANCE);
+        return (float) Math.sqrt(variance / sxx);
+    }
+
+    private void addFitPoint(long pastTime, float level) {
+        if (mFitSize == 0) {
+            mOrigin = pastTime;
+        }
+        // Drop points that fell out of the window, or make room
+        while (mFitSize > 0 && (mFitSize == WINDOW_POINTS
+                || pastTime - mOrigin - mFitTimes[mFitHead] * HOUR_MS > WINDOW_MS)) {
+            double t = mFitTimes[mFitHead];
+            double l = mFitLevels[mFitHead];
+            mSumT -= t;
+            mSumL -= l;
+            mSumTT -= t * t;
+            mSumTL -= t * l;
+            mSumLL -= l * l;
+            mFitHead = (mFitHead + 1) % WINDOW_POINTS;
+            mFitSize--;
+        }
+        int tail = (mFitHead + mFitSize) % WINDOW_POINTS;
+        mFitTimes[tail] = (pastTime - mOrigin) / HOUR_MS;
+        mFitLevels[tail] = level;
+        mFitSize++;
+        mLastFitTime = pastTime;
+        double t = mFitTimes[tail];
+        mSumT += t;
+        mSumL += level;
+        mSumTT += t * t;
+        mSumTL += t * level;
+        mSumLL += (double) level * level;
+        // Running sums lose precision as points come and go; recompute them now and then,
+        // relative to the oldest point
+        if (++mFitAdded >= WINDOW_POINTS) {
+            recenter();
+        }
+    }
+
+    private void recenter() {
+        long shiftMs = Math.round(mFitTimes[mFitHead] * HOUR_MS);
+        double shift = shiftMs / HOUR_MS;
+        mOrigin += shiftMs;
+        mSumT = 0;
+        mSumL = 0;
+        mSumTT = 0;
+        mSumTL = 0;
+        mSumLL = 0;
+        for (int k = 0; k < mFitSize; k++) {
+            int i = (mFitHead + k) % WINDOW_POINTS;
+            double t = mFitTimes[i] - shift;
+            double l = mFitLevels[i];
+            mFitTimes[i] = t;
+            mSumT += t;
+            mSumL += l;
+            mSumTT += t * t;
+            mSumTL += t * l;
+            mSumLL += l * l;
+        }
+        mFitAdded = 0;
+    }
+
+    private void clearFit() {
+        mFitHead = 0;
+        mFitSize = 0;
+        mFitAdded = 0;
+        mSumT = 0;
+        mSumL = 0;
+        mSumTT = 0;
+        mSumTL = 0;
+        mSumLL = 0;
+    }
+}
@@ -0,0 +1,279 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Prefix sums of charge, energy and time per screen state, stored next to a history
+ * segment with one fixed-width record per sample.
+ * <p>
+ * Record {@code i} holds the totals of every interval up to sample {@code i}; an interval
+ * is credited to the screen state of the sample that starts it, as in {@link BatteryStats}.
+ * The first record of a segment may already include the interval that connects it to the
+ * previous segment of the same session. The totals between any two samples are therefore
+ * the difference of two records, whatever the length of the history.
+ * <p>
+ * The file is derived data: a missing or inconsistent one is rebuilt from the segment.
+ */
+public class EnergyIndex {
+
+    static final int MAGIC = 0x424E5247; // "BNRG"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4)
+    static final int HEADER_SIZE = 8;
+    // chargeOn, chargeOff, energyOn, energyOff, durationOn, durationOff: 6 * 8
+    static final int RECORD_SIZE = 48;
+
+    private final File mFile;
+
+    /**
+     * Charge in µAh, energy in µWh and time in ms, split by screen state. Signed like the
+     * current the device reports.
+     */
+    public static final class Totals {
+        public static final Totals ZERO = new Totals(0, 0, 0, 0, 0, 0);
+
+        public final long mChargeOnUah;
+        public final long mChargeOffUah;
+        public final long mEnergyOnUwh;
+        public final long mEnergyOffUwh;
+        public final long mDurationOnMs;
+        public final long mDurationOffMs;
+
+        public Totals(long chargeOnUah, long chargeOffUah, long energyOnUwh, long energyOffUwh,
+                      long durationOnMs, long durationOffMs) {
+            mChargeOnUah = chargeOnUah;
+            mChargeOffUah = chargeOffUah;
+            mEnergyOnUwh = energyOnUwh;
+            mEnergyOffUwh = energyOffUwh;
+            mDurationOnMs = durationOnMs;
+            mDurationOffMs = durationOffMs;
+        }
+
+        public Totals plus(Totals other) {
+            return new Totals(mChargeOnUah + other.mChargeOnUah, mChargeOffUah + other.mChargeOffUah,
+                    mEnergyOnUwh + other.mEnergyOnUwh, mEnergyOffUwh + other.mEnergyOffUwh,
+                    mDurationOnMs + other.mDurationOnMs, mDurationOffMs + other.mDurationOffMs);
+        }
+
+        public Totals minus(Totals other) {
+            return new Totals(mChargeOnUah - other.mChargeOnUah, mChargeOffUah - other.mChargeOffUah,
+                    mEnergyOnUwh - other.mEnergyOnUwh, mEnergyOffUwh - other.mEnergyOffUwh,
+                    mDurationOnMs - other.mDurationOnMs, mDurationOffMs - other.mDurationOffMs);
+        }
+
+        public float getChargeMah() {
+            return (mChargeOnUah + mChargeOffUah) / 1000f;
+        }
+
+        public float getEnergyMwh() {
+            return (mEnergyOnUwh + mEnergyOffUwh) / 1000f;
+        }
+
+        /**
+         * Mean power while the screen was on, in watts.
+         */
+        public float getAveragePowerOn() {
+            return mDurationOnMs == 0 ? 0 : mEnergyOnUwh * 3.6f / mDurationOnMs;
+        }
+
+        /**
+         * Mean power while the screen was off, in watts.
+         */
+        public float getAveragePowerOff() {
+            return mDurationOffMs == 0 ? 0 : mEnergyOffUwh * 3.6f / mDurationOffMs;
+        }
+    }
+
+    /**
+     * Integrates samples into running prefix sums. Continues across the segments of one
+     * session; {@link #startSegment()} only moves the base the sums are counted from.
+     */
+    public static final class Accumulator {
+        private final long[] mSums = new long[6];
+        private long mLastTime;
+        private boolean mLastScreenOn;
+        private boolean mHasLast;
+
+        /**
+         * Forgets the previous sample, so the next one starts without an incoming interval.
+         */
+        public void reset() {
+            mHasLast = false;
+            startSegment();
+        }
+
+        /**
+         * Continues from a sample at wall-clock time {@code time}.
+         */
+        public void seed(long time, boolean isScreenOn) {
+            mLastTime = time;
+            mLastScreenOn = isScreenOn;
+            mHasLast = true;
+        }
+
+        public boolean hasLast() {
+            return mHasLast;
+        }
+
+        /**
+         * Takes over the state of {@code other}, to roll back samples that were not written.
+         */
+        public void set(Accumulator other) {
+            System.arraycopy(other.mSums, 0, mSums, 0, mSums.length);
+            mLastTime = other.mLastTime;
+            mLastScreenOn = other.mLastScreenOn;
+            mHasLast = other.mHasLast;
+        }
+
+        public void startSegment() {
+            for (int i = 0; i < mSums.length; i++) {
+                mSums[i] = 0;
+            }
+        }
+
+        /**
+         * Adds the sample at wall-clock time {@code time} and writes the resulting record.
+         */
+        void add(long time, int voltage, int current, boolean isScreenOn, ByteBuffer out) {
+            long delta = time - mLastTime;
+            if (mHasLast && delta > 0 && delta <= BatteryStats.MAX_GAP_MS) {
+                int state = mLastScreenOn ? 0 : 1;
+                // mA * ms -> µAh, mV * mA * ms -> µWh
+                mSums[state] += Math.round((double) current * delta / 3600);
+                mSums[2 + state] += Math.round((double) voltage * current * delta / 3.6e6);
+                mSums[4 + state] += delta;
+            }
+            mLastTime = time;
+            mLastScreenOn = isScreenOn;
+            mHasLast = true;
+            for (long sum : mSums) {
+                out.putLong(sum);
+            }
+        }
+    }
+
+    public EnergyIndex(File file) {
+        mFile = file;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Number of complete records.
+     */
+    public int size() {
+        long length = mFile.length() - HEADER_SIZE;
+        return length > 0 ? (int) (length / RECORD_SIZE) : 0;
+    }
+
+    public void create() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION);
+        try (FileOutputStream out = new FileOutputStream(mFile, false)) {
+            out.write(header.array());
+        }
+    }
+
+    /**
+     * Appends the records of samples {@code [from, to)} of a segment starting at
+     * {@code startTime}. A failed write is cut back off, so it cannot shift the records
+     * appended after it.
+     */
+    public void append(Accumulator accumulator, long startTime,
+                       List<BatteryData> samples, int from, int to)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((to - from) * RECORD_SIZE);
+        for (int i = from; i < to; i++) {
+            BatteryData sample = samples.get(i);
+            accumulator.add(startTime + sample.mPastTime, sample.mVoltage, sample.mCurrent,
+                    sample.mIsScreenOn, buffer);
+        }
+        long length = mFile.length();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(buffer.array(), 0, buffer.position());
+        } catch (IOException e) {
+            truncate(length);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the records past the first {@code count}, such as those of a batch whose samples
+     * did not make it into the segment.
+     */
+    public void truncate(int count) throws IOException {
+        truncate(HEADER_SIZE + (long) count * RECORD_SIZE);
+    }
+
+    /**
+     * Recomputes the whole file from {@code segment}, written to a temporary file first.
+     * Without the previous segment at hand, the first sample gets no incoming interval.
+     */
+    public void rebuild(Segment segment) throws IOException {
+        SampleStore store = new SampleStore(Math.max(segment.size(), 1));
+        segment.readRange(store, 0, segment.size());
+        long startTime = segment.readStartTime();
+        SampleStore.View samples = store.view();
+
+        Accumulator accumulator = new Accumulator();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + samples.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+        for (int i = 0; i < samples.size(); i++) {
+            accumulator.add(startTime + samples.getPastTime(i), samples.getVoltage(i),
+                    samples.getCurrent(i), samples.isScreenOn(i), buffer);
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    /**
+     * Reads record {@code index} with a single seek.
+     */
+    public Totals readAt(int index) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            return readAt(file, index);
+        }
+    }
+
+    /**
+     * Totals over the intervals ending at samples {@code (from, to]}, or {@code [0, to]}
+     * when {@code from} is negative.
+     */
+    public Totals between(int from, int to) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            Totals end = readAt(file, to);
+            return from < 0 ? end : end.minus(readAt(file, from));
+        }
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            if (file.length() > length) {
+                file.setLength(length);
+            }
+        }
+    }
+
+    private static Totals readAt(RandomAccessFile file, int index) throws IOException {
+        byte[] record = new byte[RECORD_SIZE];
+        file.seek(HEADER_SIZE + (long) index * RECORD_SIZE);
+        file.readFully(record);
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        return new Totals(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(),
+                buffer.getLong(), buffer.getLong());
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.battery;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size histogram of non-negative values in log-linear buckets, as in HdrHistogram:
+ * exact below {@link #SUB_BUCKETS}, then {@link #SUB_BUCKETS} / 2 buckets per power of two,
+ * so any recorded value is known to within 1/16 of itself over the whole range of long.
+ * Recording is lock-free and allocation-free, and may happen on any thread.
+ */
+public final class Histogram {
+
+    static final int SUB_BUCKETS = 32;
+    private static final int HALF = SUB_BUCKETS / 2;
+    // Exact buckets, then one run of HALF per shift from 1 to 58
+    static final int BUCKETS = SUB_BUCKETS + 58 * HALF;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(value, 0);
+        mCounts.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        mMax.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Records the microseconds elapsed since {@code startNanos}, a {@link System#nanoTime()}.
+     */
+    public void recordMicrosSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / (double) count;
+    }
+
+    /**
+     * The smallest value that at least {@code percentile} percent of the recorded values do
+     * not exceed, rounded up to its bucket's upper bound, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // value >>> shift falls in [HALF, SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.battery;
+
+/**
+ * Decides which battery readings are worth a sample.
+ * <p>
+ * Readings arrive whenever the battery broadcast fires or the current is polled, and most
+ * of them repeat the previous one within sensor noise. A reading is kept when level, scale,
+ * status or screen state changed, when temperature moved at all, or when voltage or current
+ * moved by more than their noise band. Otherwise one is still kept every
+ * {@code heartbeatMs}, so the time line never shows a gap while collection was running.
+ * <p>
+ * Not thread-safe; the service calls it from the main thread.
+ */
+public class IngestFilter {
+
+    static final int VOLTAGE_TOLERANCE_MV = 10;
+    static final int CURRENT_TOLERANCE_MA = 20;
+    // Relative current band for heavy loads, in percent
+    static final int CURRENT_TOLERANCE_PERCENT = 10;
+
+    private final long mHeartbeatMs;
+    private boolean mHasLast;
+    private long mLastTime;
+    private int mLevel;
+    private int mScale;
+    private int mTemperature;
+    private int mVoltage;
+    private int mStatus;
+    private boolean mIsScreenOn;
+    private int mCurrent;
+
+    public IngestFilter(long heartbeatMs) {
+        mHeartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * @return whether the reading should be recorded; if so it becomes the reference for the
+     * next ones
+     */
+    public boolean accept(long time, int level, int scale, int temperature, int voltage, int status,
+                          boolean isScreenOn, int current) {
+        if (mHasLast && time - mLastTime < mHeartbeatMs
+                && level == mLevel && scale == mScale && status == mStatus
+                && isScreenOn == mIsScreenOn && temperature == mTemperature
+                && Math.abs(voltage - mVoltage) <= VOLTAGE_TOLERANCE_MV
+                && Math.abs(current - mCurrent) <= Math.max(CURRENT_TOLERANCE_MA,
+                        Math.abs(mCurrent) * CURRENT_TOLERANCE_PERCENT / 100)) {
+            return false;
+        }
+        mHasLast = true;
+        mLastTime = time;
+        mLevel = level;
+        mScale = scale;
+        mTemperature = temperature;
+        mVoltage = voltage;
+        mStatus = status;
+        mIsScreenOn = isScreenOn;
+        mCurrent = current;
+        return true;
+    }
+
+    /**
+     * Makes the next reading count as a change.
+     */
+    public void reset() {
+        mHasLast = false;
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.battery;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of counters, gauges and {@link Histogram}s, looked up by name once
+ * and then updated without locks or allocation. Names carry their unit as a suffix, such
+ * as {@code _us} or {@code _bytes}. Gauges are read only when the metrics are dumped, so
+ * they cost nothing in between.
+ */
+public final class Metrics {
+
+    private static final Metrics sDefault = new Metrics();
+
+    private final Map<String, Counter> mCounters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> mGauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> mHistograms = new ConcurrentSkipListMap<>();
+
+    public static final class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static Metrics get() {
+        return sDefault;
+    }
+
+    public Counter counter(String name) {
+        return mCounters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return mHistograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge read from {@code supplier} at dump time, replacing any previous one
+     * of the same name.
+     */
+    public void gauge(String name, LongSupplier supplier) {
+        mGauges.put(name, supplier);
+    }
+
+    /**
+     * Unregisters the gauge {@code name} if {@code supplier} is still the one registered, so
+     * the registry stops holding on to whatever the supplier reads from.
+     */
+    public void removeGauge(String name, LongSupplier supplier) {
+        mGauges.remove(name, supplier);
+    }
+
+    /**
+     * Writes every metric, one per line and sorted by name.
+     */
+    public void dump(PrintWriter out) {
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            out.printf("%-28s %d%n", entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> entry : mGauges.entrySet()) {
+            out.printf("%-28s %d%n", entry.getKey(), entry.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            out.printf("%-28s n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d%n", entry.getKey(),
+                    histogram.getCount(), histogram.getMean(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99), histogram.getMax());
+        }
+        out.flush();
+    }
+}
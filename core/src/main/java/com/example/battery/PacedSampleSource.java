@@ -0,0 +1,109 @@
+package com.example.battery;
+
+/**
+ * A source that plays a timeline of samples back, a chunk at a time, at a multiple of the
+ * speed they were taken at. Each reading is delivered with the wall-clock time it is
+ * delivered at, so the recorded spacing shows compressed by the speed and the readings
+ * never run ahead of the device's clock, whatever is stored next to them.
+ */
+abstract class PacedSampleSource implements BatterySampleSource {
+
+    static final int CHUNK_SIZE = 1024;
+
+    private final double mSpeed;
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    /**
+     * @param speed how many times faster than recorded to deliver, or
+     *              {@link Double#POSITIVE_INFINITY} for as fast as the listener takes them
+     */
+    PacedSampleSource(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Appends the next samples of the timeline to {@code chunk}, at most
+     * {@link #CHUNK_SIZE}, with pastTime in ms on the recorded timeline.
+     *
+     * @return the number appended, 0 once the timeline is exhausted
+     */
+    abstract int fill(SampleStore chunk);
+
+    /**
+     * Plays the timeline on a thread of its own.
+     */
+    @Override
+    public synchronized void start(Listener listener) {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mThread = new Thread(() -> play(listener), getClass().getSimpleName());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Plays the timeline on the calling thread until it is exhausted or the source stopped.
+     *
+     * @return the number of readings delivered
+     */
+    public long play(Listener listener) {
+        long base = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long first = Long.MIN_VALUE;
+        long delivered = 0;
+        while (!mStopped) {
+            SampleStore chunk = new SampleStore(CHUNK_SIZE);
+            if (fill(chunk) == 0) {
+                break;
+            }
+            SampleStore.View samples = chunk.view();
+            for (int i = 0; i < samples.size() && !mStopped; i++) {
+                long pastTime = samples.getPastTime(i);
+                if (first == Long.MIN_VALUE) {
+                    first = pastTime;
+                }
+                long offset = pastTime - first;
+                if (!Double.isInfinite(mSpeed) && !sleepUntil(startNanos, offset)) {
+                    return delivered;
+                }
+                long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+                listener.onReading(base + elapsed, samples.getLevel(i), samples.getScale(i),
+                        samples.getTemperature(i), samples.getVoltage(i), samples.getStatus(i),
+                        samples.isScreenOn(i), samples.getCurrent(i));
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private boolean sleepUntil(long startNanos, long offset) {
+        long due = startNanos + (long) (offset * 1e6 / mSpeed);
+        long wait = due - System.nanoTime();
+        if (wait <= 0) {
+            return true;
+        }
+        try {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
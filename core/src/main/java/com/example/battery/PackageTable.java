@@ -0,0 +1,35 @@
+package com.example.battery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns package names to small, dense integer IDs, assigned in order of first sight.
+ * The IDs are what transition records and per-app totals are keyed by; a name is only
+ * looked up when the foreground app changes. Thread-safe.
+ */
+public class PackageTable {
+
+    private final Map<String, Integer> mIds = new HashMap<>();
+    private final List<String> mNames = new ArrayList<>();
+
+    public synchronized int intern(String name) {
+        Integer id = mIds.get(name);
+        if (id == null) {
+            id = mNames.size();
+            mIds.put(name, id);
+            mNames.add(name);
+        }
+        return id;
+    }
+
+    public synchronized String name(int id) {
+        return mNames.get(id);
+    }
+
+    public synchronized int size() {
+        return mNames.size();
+    }
+}
@@ -0,0 +1,245 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Immutable, compressed form of a sealed history segment.
+ * <p>
+ * Samples are encoded with {@link SampleCodec} in blocks of {@link #BLOCK_SIZE}. A block
+ * table after the header holds the file offset and first pastTime of every block, so a
+ * range read or a timestamp seek only decodes the blocks it touches. Each block carries a
+ * CRC32; a damaged block is skipped on read. The file is written once, to a temporary file
+ * that is renamed into place.
+ */
+public class PackedSegment implements Segment {
+
+    static final int MAGIC = 0x4241545A; // "BATZ"
+    // Version 1 blocks carry a screen-on sample counter instead of the screen-on time
+    static final int FORMAT_VERSION = 2;
+    static final int BLOCK_SIZE = 512;
+    // magic(4) + version(4) + startTime(8) + count(4) + blockCount(4)
+    static final int HEADER_SIZE = 24;
+    // offset(8) + firstPastTime(8)
+    private static final int TABLE_ENTRY_SIZE = 16;
+    // length(4) + crc32(4)
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private final File mFile;
+    // Loaded on first use
+    private long mStartTime;
+    private int mCount = -1;
+    private long[] mOffsets;
+    private long[] mFirstTimes;
+    private boolean mLegacyCounter;
+
+    public PackedSegment(File file) {
+        mFile = file;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Encodes {@code samples} into {@code file}, replacing it atomically.
+     */
+    public static void write(File file, long startTime, SampleStore.View samples) throws IOException {
+        int count = samples.size();
+        int blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        SampleCodec.Buffer encoded = new SampleCodec.Buffer(count * 6 + 64);
+        long[] offsets = new long[blocks];
+        int[] lengths = new int[blocks];
+        for (int b = 0; b < blocks; b++) {
+            offsets[b] = encoded.size();
+            SampleCodec.encodeBlock(samples, b * BLOCK_SIZE, Math.min(count, (b + 1) * BLOCK_SIZE),
+                    encoded);
+            lengths[b] = encoded.size() - (int) offsets[b];
+        }
+
+        long dataStart = HEADER_SIZE + (long) blocks * TABLE_ENTRY_SIZE;
+        ByteBuffer head = ByteBuffer.allocate((int) dataStart);
+        head.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(startTime).putInt(count).putInt(blocks);
+        for (int b = 0; b < blocks; b++) {
+            head.putLong(dataStart + offsets[b] + (long) b * BLOCK_HEADER_SIZE)
+                    .putLong(samples.getPastTime(b * BLOCK_SIZE));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(head.array());
+            CRC32 crc = new CRC32();
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            for (int b = 0; b < blocks; b++) {
+                crc.reset();
+                crc.update(encoded.data(), (int) offsets[b], lengths[b]);
+                blockHeader.clear();
+                blockHeader.putInt(lengths[b]).putInt((int) crc.getValue());
+                out.write(blockHeader.array());
+                out.write(encoded.data(), (int) offsets[b], lengths[b]);
+            }
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    @Override
+    public long readStartTime() throws IOException {
+        load();
+        return mStartTime;
+    }
+
+    @Override
+    public int size() throws IOException {
+        load();
+        return mCount;
+    }
+
+    @Override
+    public BatteryData readAt(int index) throws IOException {
+        SampleStore store = new SampleStore(1);
+        if (readRange(store, index, index + 1) == 0) {
+            throw new IOException("Unreadable sample " + index + " in " + mFile);
+        }
+        return store.view().get(0);
+    }
+
+    @Override
+    public BatteryData readLast() throws IOException {
+        int size = size();
+        return size == 0 ? null : readAt(size - 1);
+    }
+
+    /**
+     * Decodes the blocks covering samples {@code [from, to)}. Whole blocks are decoded
+     * straight into {@code store}; partial ones go through a scratch store.
+     *
+     * @return the number of samples read
+     */
+    @Override
+    public int readRange(SampleStore store, int from, int to) throws IOException {
+        load();
+        to = Math.min(to, mCount);
+        if (from >= to) {
+            return 0;
+        }
+        int read = 0;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            for (int b = from / BLOCK_SIZE; b * BLOCK_SIZE < to; b++) {
+                int blockFrom = b * BLOCK_SIZE;
+                int blockTo = Math.min(mCount, blockFrom + BLOCK_SIZE);
+                SampleCodec.Reader reader = readBlock(file, b);
+                if (reader == null) {
+                    continue;
+                }
+                if (from <= blockFrom && blockTo <= to) {
+                    read += SampleCodec.decodeBlock(reader, store, mLegacyCounter);
+                } else {
+                    SampleStore scratch = new SampleStore(BLOCK_SIZE);
+                    SampleCodec.decodeBlock(reader, scratch, mLegacyCounter);
+                    int start = Math.max(from, blockFrom) - blockFrom;
+                    int end = Math.min(to, blockTo) - blockFrom;
+                    store.addAll(scratch.view(), start, end);
+                    read += end - start;
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Finds the block through the block table, then the sample within it.
+     *
+     * @return a sample index in {@code [0, size()]}
+     */
+    @Override
+    public int lowerBound(long pastTime) throws IOException {
+        load();
+        int low = 0;
+        int high = mFirstTimes.length;
+        // First block starting at or after pastTime; the answer lies in the block before it
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mFirstTimes[mid] < pastTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == 0) {
+            return 0;
+        }
+        int block = low - 1;
+        int blockFrom = block * BLOCK_SIZE;
+        SampleStore scratch = new SampleStore(BLOCK_SIZE);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            SampleCodec.Reader reader = readBlock(file, block);
+            if (reader == null) {
+                return low * BLOCK_SIZE;
+            }
+            SampleCodec.decodeBlock(reader, scratch, mLegacyCounter);
+        }
+        SampleStore.View view = scratch.view();
+        for (int i = 0; i < view.size(); i++) {
+            if (view.getPastTime(i) >= pastTime) {
+                return blockFrom + i;
+            }
+        }
+        return Math.min(mCount, blockFrom + view.size());
+    }
+
+    private SampleCodec.Reader readBlock(RandomAccessFile file, int block) throws IOException {
+        file.seek(mOffsets[block]);
+        int length = file.readInt();
+        int expected = file.readInt();
+        if (length < 0 || length > file.length() - file.getFilePointer()) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        file.readFully(data);
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue() == expected ? new SampleCodec.Reader(data) : null;
+    }
+
+    private void load() throws IOException {
+        if (mCount >= 0) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC) {
+                throw new IOException("Not a packed segment: " + mFile);
+            }
+            int version = file.readInt();
+            if (version != 1 && version != FORMAT_VERSION) {
+                throw new IOException("Unsupported packed segment version " + version + ": " + mFile);
+            }
+            long startTime = file.readLong();
+            int count = file.readInt();
+            int blocks = file.readInt();
+            if (count < 0 || blocks != (count + BLOCK_SIZE - 1) / BLOCK_SIZE
+                    || HEADER_SIZE + (long) blocks * TABLE_ENTRY_SIZE > file.length()) {
+                throw new IOException("Corrupt packed segment: " + mFile);
+            }
+            byte[] table = new byte[blocks * TABLE_ENTRY_SIZE];
+            file.readFully(table);
+            ByteBuffer buffer = ByteBuffer.wrap(table);
+            mOffsets = new long[blocks];
+            mFirstTimes = new long[blocks];
+            for (int b = 0; b < blocks; b++) {
+                mOffsets[b] = buffer.getLong();
+                mFirstTimes[b] = buffer.getLong();
+            }
+            mStartTime = startTime;
+            mLegacyCounter = version == 1;
+            mCount = count;
+        }
+    }
+}
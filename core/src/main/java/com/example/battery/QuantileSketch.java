@@ -0,0 +1,134 @@
+package com.example.battery;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming percentiles of one quantity in {@link #BINS} fixed-width bins, plus the exact
+ * minimum and maximum. Constant memory whatever the number of values, and two sketches of
+ * the same layout merge exactly by adding their bins, so per-hour or per-session sketches
+ * combine into any longer window. Values outside the binned range count in the edge bins.
+ * <p>
+ * Not thread-safe.
+ */
+public final class QuantileSketch {
+
+    static final int BINS = 128;
+    // min(4) + max(4) + BINS * count(4)
+    static final int ENCODED_SIZE = 8 + BINS * 4;
+
+    private final int mOrigin;
+    private final int mWidth;
+    private final int[] mBins = new int[BINS];
+    private long mCount;
+    private int mMin;
+    private int mMax;
+
+    /**
+     * @param origin lower edge of the first bin
+     * @param width  width of every bin, in the same unit as the values
+     */
+    public QuantileSketch(int origin, int width) {
+        mOrigin = origin;
+        mWidth = width;
+    }
+
+    public QuantileSketch copy() {
+        QuantileSketch copy = new QuantileSketch(mOrigin, mWidth);
+        copy.add(this);
+        return copy;
+    }
+
+    public void add(int value) {
+        int bin = (int) Math.max(0, Math.min(BINS - 1, ((long) value - mOrigin) / mWidth));
+        mBins[bin]++;
+        if (mCount == 0) {
+            mMin = value;
+            mMax = value;
+        } else {
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+        }
+        mCount++;
+    }
+
+    /**
+     * Merges in a sketch of the same layout.
+     */
+    public void add(QuantileSketch other) {
+        if (other.mOrigin != mOrigin || other.mWidth != mWidth) {
+            throw new IllegalArgumentException("Sketch layouts differ");
+        }
+        if (other.mCount == 0) {
+            return;
+        }
+        for (int i = 0; i < BINS; i++) {
+            mBins[i] += other.mBins[i];
+        }
+        mMin = mCount == 0 ? other.mMin : Math.min(mMin, other.mMin);
+        mMax = mCount == 0 ? other.mMax : Math.max(mMax, other.mMax);
+        mCount += other.mCount;
+    }
+
+    public void clear() {
+        for (int i = 0; i < BINS; i++) {
+            mBins[i] = 0;
+        }
+        mCount = 0;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public int getMin() {
+        return mMin;
+    }
+
+    public int getMax() {
+        return mMax;
+    }
+
+    /**
+     * The value below which {@code percentile} percent of the values lie, interpolated
+     * linearly within its bin and kept within the exact minimum and maximum, or 0 if the
+     * sketch is empty.
+     */
+    public float getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        double rank = mCount * Math.max(0, Math.min(100, percentile)) / 100;
+        long seen = 0;
+        int bin = 0;
+        while (bin < BINS - 1 && seen + mBins[bin] < rank) {
+            seen += mBins[bin];
+            bin++;
+        }
+        double fraction = mBins[bin] == 0 ? 0 : (rank - seen) / mBins[bin];
+        // The edge bins also hold what lies beyond them, up to the extremes
+        double low = bin == 0 ? Math.min(mMin, mOrigin) : mOrigin + (double) bin * mWidth;
+        double high = mOrigin + (bin + 1.0) * mWidth;
+        if (bin == BINS - 1) {
+            high = Math.max(mMax, high);
+        }
+        double value = low + fraction * (high - low);
+        return (float) Math.max(mMin, Math.min(mMax, value));
+    }
+
+    void write(ByteBuffer out) {
+        out.putInt(mMin).putInt(mMax);
+        for (int count : mBins) {
+            out.putInt(count);
+        }
+    }
+
+    void read(ByteBuffer in) {
+        mMin = in.getInt();
+        mMax = in.getInt();
+        mCount = 0;
+        for (int i = 0; i < BINS; i++) {
+            mBins[i] = in.getInt();
+            mCount += mBins[i];
+        }
+    }
+}
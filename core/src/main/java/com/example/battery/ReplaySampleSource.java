@@ -0,0 +1,50 @@
+package com.example.battery;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Plays recorded samples back at N× speed: a range of the history, or a binary export from
+ * {@link SampleExporter}.
+ */
+public class ReplaySampleSource extends PacedSampleSource {
+
+    private final SampleStore.View mSamples;
+    private int mPosition;
+
+    /**
+     * @param samples samples with wall-clock times as pastTime, in time order
+     */
+    public ReplaySampleSource(SampleStore.View samples, double speed) {
+        super(speed);
+        mSamples = samples;
+    }
+
+    /**
+     * Replays the history between the wall-clock times {@code from} and {@code to}.
+     */
+    public static ReplaySampleSource fromHistory(SampleHistory history, long from, long to,
+                                                 double speed) throws IOException {
+        SampleStore store = new SampleStore();
+        history.readWallClock(from, to, store);
+        return new ReplaySampleSource(store.view(), speed);
+    }
+
+    /**
+     * Replays a binary export.
+     */
+    public static ReplaySampleSource fromExport(InputStream in, double speed) throws IOException {
+        SampleStore store = new SampleStore();
+        SampleExporter.readBinary(in, store);
+        return new ReplaySampleSource(store.view(), speed);
+    }
+
+    @Override
+    int fill(SampleStore chunk) {
+        int end = Math.min(mSamples.size(), mPosition + CHUNK_SIZE);
+        chunk.addAll(mSamples, mPosition, end);
+        int filled = end - mPosition;
+        mPosition = end;
+        return filled;
+    }
+}
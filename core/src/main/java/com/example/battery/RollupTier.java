@@ -0,0 +1,351 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+/**
+ * Samples downsampled into fixed-length buckets aligned to local time, kept in one file of
+ * fixed-width records sorted by bucket start.
+ * <p>
+ * Each bucket keeps the sample count, the number taken with the screen on, and min, max,
+ * sum and last of level, temperature, voltage and current. The bucket still filling up is
+ * rewritten in place on every flush, so the file is always current; a record torn by a
+ * crash fails its CRC32 and is dropped on open. Samples older than the newest bucket (the
+ * clock was set back) are left out, which keeps the file sorted for binary search.
+ */
+public class RollupTier {
+
+    static final int MAGIC = 0x42524C50; // "BRLP"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4) + duration(8)
+    static final int HEADER_SIZE = 16;
+    // start(8) + count(4) + screenOnCount(4) + firstOffset(4) + lastOffset(4) + firstLevel(4)
+    // + lastStatus(4) + 4 fields * (min(4) + max(4) + last(4) + sum(8)) + crc32(4)
+    static final int RECORD_SIZE = 116;
+
+    static final int LEVEL = 0;
+    static final int TEMPERATURE = 1;
+    static final int VOLTAGE = 2;
+    static final int CURRENT = 3;
+    static final int FIELDS = 4;
+    // Levels are kept in hundredths of a percent
+    static final int LEVEL_SCALE = 10_000;
+
+    private final File mFile;
+    private final long mDuration;
+    // Only touched by the writer
+    private Bucket mOpen;
+    private long mOpenOffset = -1;
+
+    /**
+     * One bucket: an aggregate of the samples taken in {@code [mStart, mStart + duration)}.
+     */
+    public static final class Bucket {
+        public long mStart;
+        public int mCount;
+        public int mScreenOnCount;
+        // Offsets of the first and last sample from mStart
+        public int mFirstOffset;
+        public int mLastOffset;
+        public int mFirstLevel;
+        public int mLastStatus;
+        public final int[] mMin = new int[FIELDS];
+        public final int[] mMax = new int[FIELDS];
+        public final int[] mLast = new int[FIELDS];
+        public final long[] mSum = new long[FIELDS];
+
+        void add(long time, int[] values, int status, boolean isScreenOn) {
+            int offset = (int) (time - mStart);
+            if (mCount == 0) {
+                mFirstOffset = offset;
+                mFirstLevel = values[LEVEL];
+                System.arraycopy(values, 0, mMin, 0, FIELDS);
+                System.arraycopy(values, 0, mMax, 0, FIELDS);
+            }
+            for (int f = 0; f < FIELDS; f++) {
+                mMin[f] = Math.min(mMin[f], values[f]);
+                mMax[f] = Math.max(mMax[f], values[f]);
+                mSum[f] += values[f];
+            }
+            System.arraycopy(values, 0, mLast, 0, FIELDS);
+            mLastOffset = offset;
+            mLastStatus = status;
+            mCount++;
+            if (isScreenOn) {
+                mScreenOnCount++;
+            }
+        }
+
+        public float getMean(int field) {
+            return mCount == 0 ? 0 : mSum[field] / (float) mCount;
+        }
+
+        public float getScreenOnFraction() {
+            return mCount == 0 ? 0 : mScreenOnCount / (float) mCount;
+        }
+
+        void write(ByteBuffer out, CRC32 crc) {
+            int position = out.position();
+            out.putLong(mStart).putInt(mCount).putInt(mScreenOnCount).putInt(mFirstOffset)
+                    .putInt(mLastOffset).putInt(mFirstLevel).putInt(mLastStatus);
+            for (int f = 0; f < FIELDS; f++) {
+                out.putInt(mMin[f]).putInt(mMax[f]).putInt(mLast[f]).putLong(mSum[f]);
+            }
+            crc.reset();
+            crc.update(out.array(), position, RECORD_SIZE - 4);
+            out.putInt((int) crc.getValue());
+        }
+
+        static Bucket read(byte[] record, int offset, CRC32 crc) {
+            crc.reset();
+            crc.update(record, offset, RECORD_SIZE - 4);
+            ByteBuffer in = ByteBuffer.wrap(record, offset, RECORD_SIZE);
+            if ((int) crc.getValue() != in.getInt(offset + RECORD_SIZE - 4)) {
+                return null;
+            }
+            Bucket bucket = new Bucket();
+            bucket.mStart = in.getLong();
+            bucket.mCount = in.getInt();
+            bucket.mScreenOnCount = in.getInt();
+            bucket.mFirstOffset = in.getInt();
+            bucket.mLastOffset = in.getInt();
+            bucket.mFirstLevel = in.getInt();
+            bucket.mLastStatus = in.getInt();
+            for (int f = 0; f < FIELDS; f++) {
+                bucket.mMin[f] = in.getInt();
+                bucket.mMax[f] = in.getInt();
+                bucket.mLast[f] = in.getInt();
+                bucket.mSum[f] = in.getLong();
+            }
+            return bucket;
+        }
+    }
+
+    public RollupTier(File file, long duration) {
+        mFile = file;
+        mDuration = duration;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Creates the file or drops a torn tail, and picks the newest bucket up again so that
+     * samples after a restart keep filling it.
+     *
+     * @return false if the file had to be created from scratch
+     */
+    public boolean open() throws IOException {
+        mOpen = null;
+        mOpenOffset = -1;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC
+                    || file.readInt() != FORMAT_VERSION || file.readLong() != mDuration) {
+                writeHeader(file);
+                return false;
+            }
+            long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            while (records > 0) {
+                file.seek(HEADER_SIZE + (records - 1) * RECORD_SIZE);
+                file.readFully(record);
+                mOpen = Bucket.read(record, 0, crc);
+                if (mOpen != null) {
+                    break;
+                }
+                records--;
+            }
+            file.setLength(HEADER_SIZE + records * RECORD_SIZE);
+            if (mOpen != null) {
+                mOpenOffset = HEADER_SIZE + (records - 1) * RECORD_SIZE;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops every bucket.
+     */
+    public void clear() throws IOException {
+        mOpen = null;
+        mOpenOffset = -1;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            writeHeader(file);
+        }
+    }
+
+    /**
+     * Folds one sample taken at wall-clock time {@code time} into its bucket, writing out the
+     * previous bucket once a sample lands past it.
+     *
+     * @param values level in hundredths of a percent, temperature, voltage and current
+     */
+    public void add(long time, int[] values, int status, boolean isScreenOn) throws IOException {
+        long start = bucketStart(time);
+        if (mOpen != null && start < mOpen.mStart) {
+            return;
+        }
+        if (mOpen != null && start > mOpen.mStart) {
+            flush();
+            mOpen = null;
+            mOpenOffset = -1;
+        }
+        if (mOpen == null) {
+            mOpen = new Bucket();
+            mOpen.mStart = start;
+        }
+        mOpen.add(time, values, status, isScreenOn);
+    }
+
+    /**
+     * Writes the bucket still filling up, in place if it was written before.
+     *
+     * @return the number of bytes written
+     */
+    public int flush() throws IOException {
+        if (mOpen == null) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+        mOpen.write(buffer, new CRC32());
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            long offset = mOpenOffset >= 0 ? mOpenOffset : file.length();
+            file.seek(offset);
+            file.write(buffer.array());
+            mOpenOffset = offset;
+        }
+        return RECORD_SIZE;
+    }
+
+    /**
+     * Reads the buckets overlapping the wall-clock range {@code [from, to]}, seeking to the
+     * first one by binary search. Records failing their checksum are skipped.
+     *
+     * @return the number of buckets read
+     */
+    public int read(long from, long to, List<Bucket> out) throws IOException {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        int read = 0;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            int size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            int low = lowerBound(file, size, bucketStart(from));
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            file.seek(HEADER_SIZE + (long) low * RECORD_SIZE);
+            for (int i = low; i < size; i++) {
+                file.readFully(record);
+                Bucket bucket = Bucket.read(record, 0, crc);
+                if (bucket == null) {
+                    continue;
+                }
+                if (bucket.mStart > to) {
+                    break;
+                }
+                out.add(bucket);
+                read++;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Drops buckets that start before {@code before} by rewriting the file, if there are any.
+     */
+    public void prune(long before) throws IOException {
+        int size;
+        int keepFrom;
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            size = (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE);
+            keepFrom = lowerBound(file, size, before);
+        }
+        if (keepFrom == 0) {
+            return;
+        }
+        byte[] kept = new byte[(size - keepFrom) * RECORD_SIZE];
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(mDuration);
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(HEADER_SIZE + (long) keepFrom * RECORD_SIZE);
+            file.readFully(kept);
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(header.array());
+            out.write(kept);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+        if (mOpenOffset >= 0) {
+            mOpenOffset -= (long) keepFrom * RECORD_SIZE;
+        }
+    }
+
+    /**
+     * Turns buckets into one chartable sample each, at the time of the bucket's last sample
+     * relative to {@code origin}: last level, mean temperature, voltage and current, and the
+     * screen state most of the bucket's samples had.
+     */
+    public static void toSamples(List<Bucket> buckets, long origin, SampleStore out) {
+        long screenOnTime = 0;
+        for (Bucket bucket : buckets) {
+            // Estimated from the share of samples taken with the screen on
+            screenOnTime += Math.round((bucket.mLastOffset - bucket.mFirstOffset)
+                    * (double) bucket.getScreenOnFraction());
+            out.add(bucket.mStart + bucket.mLastOffset - origin, bucket.mLast[LEVEL], LEVEL_SCALE,
+                    Math.round(bucket.getMean(TEMPERATURE)), Math.round(bucket.getMean(VOLTAGE)),
+                    bucket.mLastStatus, bucket.getScreenOnFraction() >= 0.5f,
+                    Math.round(bucket.getMean(CURRENT)), screenOnTime);
+        }
+    }
+
+    /**
+     * Sample {@code i} as the values a bucket aggregates, level in hundredths of a percent.
+     */
+    static void values(SampleStore.View samples, int i, int[] out) {
+        out[LEVEL] = samples.getScale(i) == 0 ? 0
+                : (int) ((long) samples.getLevel(i) * LEVEL_SCALE / samples.getScale(i));
+        out[TEMPERATURE] = samples.getTemperature(i);
+        out[VOLTAGE] = samples.getVoltage(i);
+        out[CURRENT] = samples.getCurrent(i);
+    }
+
+    private void writeHeader(RandomAccessFile file) throws IOException {
+        file.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(mDuration);
+        file.write(header.array());
+    }
+
+    private static int lowerBound(RandomAccessFile file, int size, long start) throws IOException {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            file.seek(HEADER_SIZE + (long) mid * RECORD_SIZE);
+            if (file.readLong() < start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    long bucketStart(long time) {
+        long local = time + TimeZone.getDefault().getOffset(time);
+        return time - Math.floorMod(local, mDuration);
+    }
+}
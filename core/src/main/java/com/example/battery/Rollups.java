@@ -0,0 +1,112 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rollup tiers kept next to the raw history: 1 minute, 15 minutes, 1 hour and 1 day,
+ * each in its own {@link RollupTier} file. Week- and month-scale views read a few hundred
+ * buckets from the coarsest tier that still has enough of them, instead of every raw
+ * sample.
+ */
+public class Rollups {
+
+    static final long[] DURATIONS = {
+            TimeUnit.MINUTES.toMillis(1),
+            TimeUnit.MINUTES.toMillis(15),
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.DAYS.toMillis(1),
+    };
+    // Fine tiers are only kept as long as the raw history they summarize
+    private static final long[] RETENTION = {
+            SampleHistory.RETENTION_MS,
+            TimeUnit.DAYS.toMillis(365),
+            TimeUnit.DAYS.toMillis(365),
+            Long.MAX_VALUE,
+    };
+
+    private final RollupTier[] mTiers = new RollupTier[DURATIONS.length];
+    private final int[] mValues = new int[RollupTier.FIELDS];
+
+    public Rollups(File dir) {
+        for (int i = 0; i < DURATIONS.length; i++) {
+            mTiers[i] = new RollupTier(new File(dir, "rollup_" + DURATIONS[i] / 1000 + "s.bin"),
+                    DURATIONS[i]);
+        }
+    }
+
+    /**
+     * Opens every tier. If any of them is missing or unreadable, all are emptied so they can
+     * be refilled from the raw history together.
+     *
+     * @return false if the tiers are empty and need {@link #add} from the start of history
+     */
+    public boolean open() throws IOException {
+        boolean intact = true;
+        for (RollupTier tier : mTiers) {
+            intact &= tier.open();
+        }
+        if (!intact) {
+            for (RollupTier tier : mTiers) {
+                tier.clear();
+            }
+        }
+        return intact;
+    }
+
+    /**
+     * Empties every tier.
+     */
+    public void clear() throws IOException {
+        for (RollupTier tier : mTiers) {
+            tier.clear();
+        }
+    }
+
+    /**
+     * Adds every sample of {@code samples}, whose pastTime is relative to {@code startTime},
+     * to every tier.
+     */
+    public void add(SampleStore.View samples, long startTime) throws IOException {
+        for (int i = 0; i < samples.size(); i++) {
+            RollupTier.values(samples, i, mValues);
+            for (RollupTier tier : mTiers) {
+                tier.add(startTime + samples.getPastTime(i), mValues, samples.getStatus(i),
+                        samples.isScreenOn(i));
+            }
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int flush() throws IOException {
+        int written = 0;
+        for (RollupTier tier : mTiers) {
+            written += tier.flush();
+        }
+        return written;
+    }
+
+    public void prune(long now) throws IOException {
+        for (int i = 0; i < mTiers.length; i++) {
+            if (RETENTION[i] != Long.MAX_VALUE) {
+                mTiers[i].prune(now - RETENTION[i]);
+            }
+        }
+    }
+
+    /**
+     * The coarsest tier that still has at least one bucket per pixel over a window of
+     * {@code window} ms, or {@code null} if only raw samples are fine enough.
+     */
+    public RollupTier select(long window, int pixels) {
+        for (int i = mTiers.length - 1; i >= 0; i--) {
+            if (window / DURATIONS[i] >= pixels) {
+                return mTiers[i];
+            }
+        }
+        return null;
+    }
+}
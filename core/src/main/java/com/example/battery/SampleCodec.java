@@ -0,0 +1,338 @@
+package com.example.battery;
+
+import java.util.Arrays;
+
+/**
+ * Compact variable-length encoding for blocks of samples.
+ * <p>
+ * A block starts with its sample count and a keyframe holding the first sample in full.
+ * Every following sample is a control byte that marks which fields changed, followed by
+ * those changes only: the timestamp as a zigzag varint delta-of-delta, numeric fields as
+ * zigzag varint deltas against the previous sample, and the packed status/screen byte
+ * verbatim. The screen-on time is predicted from the time step and the screen state and
+ * only stored when the prediction misses. A steady sample in which voltage and current
+ * drift a little takes four to six bytes instead of the 36 of a {@link SampleLog} record.
+ * <p>
+ * Blocks do not reference each other, so any block can be decoded on its own.
+ */
+public final class SampleCodec {
+
+    private static final int TIME = 1;
+    private static final int FLAGS = 1 << 1;
+    private static final int LEVEL = 1 << 2;
+    private static final int SCALE = 1 << 3;
+    private static final int TEMPERATURE = 1 << 4;
+    private static final int VOLTAGE = 1 << 5;
+    private static final int CURRENT = 1 << 6;
+    private static final int SCREEN_ON_TIME = 1 << 7;
+    private static final int SCREEN_ON_FLAG = 0x80;
+
+    private SampleCodec() {
+    }
+
+    /**
+     * Encodes samples {@code [from, to)} of {@code samples} as one block.
+     */
+    public static void encodeBlock(SampleStore.View samples, int from, int to, Buffer out) {
+        out.writeVarInt(to - from);
+        if (from >= to) {
+            return;
+        }
+        long time = samples.getPastTime(from);
+        int flags = samples.getFlags(from);
+        int level = samples.getLevel(from);
+        int scale = samples.getScale(from);
+        int temperature = samples.getTemperature(from);
+        int voltage = samples.getVoltage(from);
+        int current = samples.getCurrent(from);
+        long screenOnTime = samples.getScreenOnTime(from);
+        out.writeVarLong(zigzag(time));
+        out.writeByte(flags);
+        out.writeVarInt(zigzag(level));
+        out.writeVarInt(zigzag(scale));
+        out.writeVarInt(zigzag(temperature));
+        out.writeVarInt(zigzag(voltage));
+        out.writeVarInt(zigzag(current));
+        out.writeVarLong(zigzag(screenOnTime));
+
+        long delta = 0;
+        for (int i = from + 1; i < to; i++) {
+            long nextTime = samples.getPastTime(i);
+            long deltaOfDelta = nextTime - time - delta;
+            int nextFlags = samples.getFlags(i);
+            int nextLevel = samples.getLevel(i);
+            int nextScale = samples.getScale(i);
+            int nextTemperature = samples.getTemperature(i);
+            int nextVoltage = samples.getVoltage(i);
+            int nextCurrent = samples.getCurrent(i);
+            long timeMiss = samples.getScreenOnTime(i)
+                    - predictScreenOnTime(screenOnTime, flags, nextFlags, nextTime - time, false);
+
+            int control = (deltaOfDelta != 0 ? TIME : 0)
+                    | (nextFlags != flags ? FLAGS : 0)
+                    | (nextLevel != level ? LEVEL : 0)
+                    | (nextScale != scale ? SCALE : 0)
+                    | (nextTemperature != temperature ? TEMPERATURE : 0)
+                    | (nextVoltage != voltage ? VOLTAGE : 0)
+                    | (nextCurrent != current ? CURRENT : 0)
+                    | (timeMiss != 0 ? SCREEN_ON_TIME : 0);
+            out.writeByte(control);
+            if ((control & TIME) != 0) {
+                out.writeVarLong(zigzag(deltaOfDelta));
+            }
+            if ((control & FLAGS) != 0) {
+                out.writeByte(nextFlags);
+            }
+            if ((control & LEVEL) != 0) {
+                out.writeVarInt(zigzag(nextLevel - level));
+            }
+            if ((control & SCALE) != 0) {
+                out.writeVarInt(zigzag(nextScale - scale));
+            }
+            if ((control & TEMPERATURE) != 0) {
+                out.writeVarInt(zigzag(nextTemperature - temperature));
+            }
+            if ((control & VOLTAGE) != 0) {
+                out.writeVarInt(zigzag(nextVoltage - voltage));
+            }
+            if ((control & CURRENT) != 0) {
+                out.writeVarInt(zigzag(nextCurrent - current));
+            }
+            if ((control & SCREEN_ON_TIME) != 0) {
+                out.writeVarLong(zigzag(timeMiss));
+            }
+
+            delta = nextTime - time;
+            time = nextTime;
+            flags = nextFlags;
+            level = nextLevel;
+            scale = nextScale;
+            temperature = nextTemperature;
+            voltage = nextVoltage;
+            current = nextCurrent;
+            screenOnTime = samples.getScreenOnTime(i);
+        }
+    }
+
+    /**
+     * Decodes one block at the reader's position into {@code store}.
+     *
+     * @return the number of samples decoded
+     */
+    public static int decodeBlock(Reader in, SampleStore store) {
+        return decodeBlock(in, store, false);
+    }
+
+    /**
+     * Decodes one block written before the screen-on time replaced the per-sample screen-on
+     * counter if {@code legacyCounter} is set, converting the counter to ms.
+     */
+    public static int decodeBlock(Reader in, SampleStore store, boolean legacyCounter) {
+        int count = in.readVarInt();
+        if (count == 0) {
+            return 0;
+        }
+        long time = unzigzag(in.readVarLong());
+        int flags = in.readByte();
+        int level = unzigzag(in.readVarInt());
+        int scale = unzigzag(in.readVarInt());
+        int temperature = unzigzag(in.readVarInt());
+        int voltage = unzigzag(in.readVarInt());
+        int current = unzigzag(in.readVarInt());
+        long screenOnTime = unzigzag(in.readVarLong());
+        long screenOnUnit = legacyCounter ? BatteryData.LEGACY_SCREEN_ON_TICK_MS : 1;
+        add(store, time, flags, level, scale, temperature, voltage, current,
+                screenOnTime * screenOnUnit);
+
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            int control = in.readByte();
+            int previousFlags = flags;
+            if ((control & TIME) != 0) {
+                delta += unzigzag(in.readVarLong());
+            }
+            if ((control & FLAGS) != 0) {
+                flags = in.readByte();
+            }
+            if ((control & LEVEL) != 0) {
+                level += unzigzag(in.readVarInt());
+            }
+            if ((control & SCALE) != 0) {
+                scale += unzigzag(in.readVarInt());
+            }
+            if ((control & TEMPERATURE) != 0) {
+                temperature += unzigzag(in.readVarInt());
+            }
+            if ((control & VOLTAGE) != 0) {
+                voltage += unzigzag(in.readVarInt());
+            }
+            if ((control & CURRENT) != 0) {
+                current += unzigzag(in.readVarInt());
+            }
+            screenOnTime = predictScreenOnTime(screenOnTime, previousFlags, flags, delta,
+                    legacyCounter);
+            if ((control & SCREEN_ON_TIME) != 0) {
+                screenOnTime += unzigzag(in.readVarLong());
+            }
+            time += delta;
+            add(store, time, flags, level, scale, temperature, voltage, current,
+                    screenOnTime * screenOnUnit);
+        }
+        return count;
+    }
+
+    private static void add(SampleStore store, long time, int flags, int level, int scale,
+                            int temperature, int voltage, int current, long screenOnTime) {
+        // The store masks the status back out of the packed byte
+        store.add(time, level, scale, temperature, voltage, flags,
+                (flags & SCREEN_ON_FLAG) != 0, current, screenOnTime);
+    }
+
+    // The service credits the time since the previous sample to the screen state it had.
+    // Older encoders stored a counter of samples taken with the screen on.
+    private static long predictScreenOnTime(long previous, int previousFlags, int flags,
+                                            long delta, boolean legacyCounter) {
+        if (legacyCounter) {
+            return (flags & SCREEN_ON_FLAG) != 0 ? previous + 1 : previous;
+        }
+        return (previousFlags & SCREEN_ON_FLAG) != 0 ? previous + delta : previous;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte buffer the encoder writes into. Reusable through {@link #reset()}.
+     */
+    public static final class Buffer {
+        private byte[] mData;
+        private int mSize;
+
+        public Buffer() {
+            this(256);
+        }
+
+        public Buffer(int capacity) {
+            mData = new byte[Math.max(capacity, 16)];
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Backing array; only the first {@link #size()} bytes are valid.
+         */
+        public byte[] data() {
+            return mData;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mData, mSize);
+        }
+
+        public void reset() {
+            mSize = 0;
+        }
+
+        void writeByte(int value) {
+            ensure(1);
+            mData[mSize++] = (byte) value;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                mData[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mData[mSize++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mData[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mData[mSize++] = (byte) value;
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mSize + extra));
+            }
+        }
+    }
+
+    /**
+     * Cursor over encoded bytes.
+     */
+    public static final class Reader {
+        private final byte[] mData;
+        private final int mEnd;
+        private int mPosition;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int length) {
+            mData = data;
+            mPosition = offset;
+            mEnd = offset + length;
+        }
+
+        public int position() {
+            return mPosition;
+        }
+
+        public boolean hasRemaining() {
+            return mPosition < mEnd;
+        }
+
+        int readByte() {
+            if (mPosition >= mEnd) {
+                throw new IllegalStateException("Truncated sample block");
+            }
+            return mData[mPosition++] & 0xFF;
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("Malformed varint");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.example.battery;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Percentile sketches of temperature, voltage and power over a set of samples, updated in
+ * constant time per sample and mergeable across sessions and time windows.
+ * <p>
+ * Power is the instantaneous V·I drawn from the battery, in mW, and only counts samples
+ * taken while not charging. Not thread-safe.
+ */
+public final class SampleDistributions {
+
+    static final int ENCODED_SIZE = 3 * QuantileSketch.ENCODED_SIZE;
+
+    // Tenths of a degree Celsius, 0.5 °C bins from 0 to 64 °C
+    private final QuantileSketch mTemperature = new QuantileSketch(0, 5);
+    // Millivolts, 10 mV bins from 3.2 to 4.48 V
+    private final QuantileSketch mVoltage = new QuantileSketch(3200, 10);
+    // Milliwatts, 100 mW bins up to 12.8 W
+    private final QuantileSketch mPower = new QuantileSketch(0, 100);
+
+    public void add(int temperature, int voltage, int current, int status) {
+        mTemperature.add(temperature);
+        mVoltage.add(voltage);
+        if (!DrainPredictor.isCharging(status)) {
+            mPower.add((int) Math.abs((long) voltage * current / 1000));
+        }
+    }
+
+    public void add(SampleStore.View samples, int i) {
+        add(samples.getTemperature(i), samples.getVoltage(i), samples.getCurrent(i),
+                samples.getStatus(i));
+    }
+
+    public void add(BatteryData sample) {
+        add(sample.mTemperature, sample.mVoltage, sample.mCurrent, sample.mStatus);
+    }
+
+    public void addAll(SampleStore.View samples) {
+        for (int i = 0; i < samples.size(); i++) {
+            add(samples, i);
+        }
+    }
+
+    public void add(SampleDistributions other) {
+        mTemperature.add(other.mTemperature);
+        mVoltage.add(other.mVoltage);
+        mPower.add(other.mPower);
+    }
+
+    public void clear() {
+        mTemperature.clear();
+        mVoltage.clear();
+        mPower.clear();
+    }
+
+    public boolean isEmpty() {
+        return mTemperature.getCount() == 0;
+    }
+
+    public SampleDistributions copy() {
+        SampleDistributions copy = new SampleDistributions();
+        copy.add(this);
+        return copy;
+    }
+
+    public QuantileSketch getTemperature() {
+        return mTemperature;
+    }
+
+    public QuantileSketch getVoltage() {
+        return mVoltage;
+    }
+
+    public QuantileSketch getPower() {
+        return mPower;
+    }
+
+    void write(ByteBuffer out) {
+        mTemperature.write(out);
+        mVoltage.write(out);
+        mPower.write(out);
+    }
+
+    void read(ByteBuffer in) {
+        mTemperature.read(in);
+        mVoltage.read(in);
+        mPower.read(in);
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.battery;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Streams samples to an output stream as CSV or in a compact binary format, with
+ * wall-clock times. Samples go out as they are read, through one buffer of
+ * {@link #BUFFER_SIZE} bytes and one reused store of {@link #CHUNK_SIZE} samples, so memory
+ * stays constant however much history is exported.
+ * <p>
+ * The binary format is a header (magic, version) followed by blocks of up to
+ * {@link #CHUNK_SIZE} samples, each encoded with {@link SampleCodec} and prefixed by its
+ * length and CRC32; it reads back with {@link #readBinary}. The CSV has one header line and
+ * one line per sample.
+ * <p>
+ * Not thread-safe. The stream is flushed by {@link #finish()} but never closed.
+ */
+public class SampleExporter {
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    static final int MAGIC = 0x42455850; // "BEXP"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4)
+    static final int HEADER_SIZE = 8;
+    // length(4) + crc32(4)
+    static final int BLOCK_HEADER_SIZE = 8;
+    static final int BUFFER_SIZE = 64 * 1024;
+    // No valid block comes close; a larger length means the file is damaged
+    private static final int MAX_BLOCK_BYTES = 1 << 20;
+    static final int CHUNK_SIZE = PackedSegment.BLOCK_SIZE;
+    static final String CSV_HEADER =
+            "time,level,scale,temperature,voltage,status,screen_on,current,screen_on_time\n";
+
+    private final OutputStream mOut;
+    private final int mFormat;
+    // Samples of the binary block being filled, with wall-clock times
+    private final SampleStore mBlock = new SampleStore(CHUNK_SIZE);
+    // Records read from a history segment, one chunk at a time
+    private final SampleStore mRead = new SampleStore(CHUNK_SIZE);
+    private final SampleCodec.Buffer mEncoded = new SampleCodec.Buffer(CHUNK_SIZE * 8);
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mBlockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+    private final StringBuilder mLine = new StringBuilder(96);
+    private final byte[] mLineBytes = new byte[128];
+    private boolean mStarted;
+    private long mCount;
+
+    public SampleExporter(OutputStream out, int format) {
+        if (format != FORMAT_CSV && format != FORMAT_BINARY) {
+            throw new IllegalArgumentException("Unknown format " + format);
+        }
+        mOut = new BufferedOutputStream(out, BUFFER_SIZE);
+        mFormat = format;
+    }
+
+    /**
+     * Exports the samples of {@code samples} whose wall-clock time lies in
+     * {@code [from, to]}, their pastTime being relative to {@code startTime}. Pass
+     * {@code Long.MIN_VALUE, Long.MAX_VALUE} for all of them.
+     */
+    public void export(SampleStore.View samples, long startTime, long from, long to)
+            throws IOException {
+        int start = from == Long.MIN_VALUE ? 0 : samples.lowerBound(from - startTime);
+        int end = to == Long.MAX_VALUE ? samples.size() : samples.lowerBound(to - startTime + 1);
+        for (int i = start; i < end; i++) {
+            write(samples, i, startTime);
+        }
+    }
+
+    /**
+     * Exports records {@code [from, to)} of a history segment starting at {@code startTime},
+     * reading {@link #CHUNK_SIZE} of them at a time.
+     *
+     * @return the number of samples exported, without records that failed their checksum
+     */
+    int export(Segment segment, long startTime, int from, int to) throws IOException {
+        int exported = 0;
+        for (int chunk = from; chunk < to; chunk += CHUNK_SIZE) {
+            mRead.rewind();
+            segment.readRange(mRead, chunk, Math.min(to, chunk + CHUNK_SIZE));
+            SampleStore.View samples = mRead.view();
+            for (int i = 0; i < samples.size(); i++) {
+                write(samples, i, startTime);
+            }
+            exported += samples.size();
+        }
+        return exported;
+    }
+
+    /**
+     * Writes out what is still buffered, including the header if nothing was exported.
+     *
+     * @return the number of samples exported
+     */
+    public long finish() throws IOException {
+        start();
+        flushBlock();
+        mOut.flush();
+        return mCount;
+    }
+
+    private void start() throws IOException {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        if (mFormat == FORMAT_CSV) {
+            mOut.write(CSV_HEADER.getBytes(StandardCharsets.US_ASCII));
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION);
+            mOut.write(header.array());
+        }
+    }
+
+    private void write(SampleStore.View samples, int i, long startTime) throws IOException {
+        start();
+        mCount++;
+        long time = startTime + samples.getPastTime(i);
+        if (mFormat == FORMAT_BINARY) {
+            mBlock.add(time, samples.getLevel(i), samples.getScale(i), samples.getTemperature(i),
+                    samples.getVoltage(i), samples.getStatus(i), samples.isScreenOn(i),
+                    samples.getCurrent(i), samples.getScreenOnTime(i));
+            if (mBlock.size() == CHUNK_SIZE) {
+                flushBlock();
+            }
+            return;
+        }
+        StringBuilder line = mLine;
+        line.setLength(0);
+        line.append(time).append(',')
+                .append(samples.getLevel(i)).append(',')
+                .append(samples.getScale(i)).append(',')
+                .append(samples.getTemperature(i)).append(',')
+                .append(samples.getVoltage(i)).append(',')
+                .append(samples.getStatus(i)).append(',')
+                .append(samples.isScreenOn(i) ? 1 : 0).append(',')
+                .append(samples.getCurrent(i)).append(',')
+                .append(samples.getScreenOnTime(i)).append('\n');
+        // Only digits, signs and separators: one byte per char
+        int length = line.length();
+        for (int c = 0; c < length; c++) {
+            mLineBytes[c] = (byte) line.charAt(c);
+        }
+        mOut.write(mLineBytes, 0, length);
+    }
+
+    private void flushBlock() throws IOException {
+        if (mBlock.size() == 0) {
+            return;
+        }
+        SampleStore.View block = mBlock.view();
+        mEncoded.reset();
+        SampleCodec.encodeBlock(block, 0, block.size(), mEncoded);
+        mCrc.reset();
+        mCrc.update(mEncoded.data(), 0, mEncoded.size());
+        mBlockHeader.clear();
+        mBlockHeader.putInt(mEncoded.size()).putInt((int) mCrc.getValue());
+        mOut.write(mBlockHeader.array());
+        mOut.write(mEncoded.data(), 0, mEncoded.size());
+        // Encoded synchronously, nothing holds on to the view
+        mBlock.rewind();
+    }
+
+    /**
+     * Reads a binary export back into {@code store}, with wall-clock times as pastTime. Stops
+     * at a truncated tail; blocks failing their checksum are skipped.
+     *
+     * @return the number of samples read
+     */
+    public static int readBinary(InputStream in, SampleStore store) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a sample export");
+        }
+        CRC32 crc = new CRC32();
+        byte[] block = new byte[0];
+        int read = 0;
+        while (true) {
+            int length;
+            int checksum;
+            try {
+                length = data.readInt();
+                checksum = data.readInt();
+                if (length < 0 || length > MAX_BLOCK_BYTES) {
+                    break;
+                }
+                if (block.length < length) {
+                    block = new byte[length];
+                }
+                data.readFully(block, 0, length);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(block, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                continue;
+            }
+            read += SampleCodec.decodeBlock(new SampleCodec.Reader(block, 0, length), store);
+        }
+        return read;
+    }
+}
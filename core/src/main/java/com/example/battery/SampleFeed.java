@@ -0,0 +1,155 @@
+package com.example.battery;
+
+/**
+ * In-memory samples of the current session, written by the service and read by any number
+ * of consumers without locking.
+ * <p>
+ * Every mutation publishes an immutable snapshot (a {@link SampleStore.View} plus a version
+ * number) through a volatile field, so readers never wait for the collector and the
+ * collector never waits for a reader. Writers synchronize on the feed among themselves.
+ * <p>
+ * A version number that did not change means nothing changed. The epoch changes whenever
+ * sample indices shift (the feed is cleared, or history is spliced in front), which tells
+ * a {@link Cursor} it has to start over.
+ */
+public class SampleFeed {
+
+    private final SampleStore mStore = new SampleStore();
+    private volatile Snapshot mSnapshot = new Snapshot(mStore.view(), 0, 0);
+
+    private static final class Snapshot {
+        final SampleStore.View mView;
+        final long mVersion;
+        final long mEpoch;
+
+        Snapshot(SampleStore.View view, long version, long epoch) {
+            mView = view;
+            mVersion = version;
+            mEpoch = epoch;
+        }
+    }
+
+    /**
+     * Read position of one consumer, advanced by {@link #readSince}.
+     */
+    public static final class Cursor {
+        private long mVersion = -1;
+        private long mEpoch = -1;
+        private int mPosition;
+        private boolean mReset;
+
+        /**
+         * Whether the last read started over from the first sample because the feed was
+         * cleared or history was inserted in front. Anything read before is stale then.
+         */
+        public boolean isReset() {
+            return mReset;
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+
+    public synchronized void add(BatteryData sample) {
+        mStore.add(sample);
+        publish(false);
+    }
+
+    /**
+     * Inserts older samples in front of the ones already collected.
+     */
+    public synchronized void prepend(SampleStore.View head) {
+        mStore.prepend(head);
+        publish(true);
+    }
+
+    public synchronized void clear() {
+        mStore.clear();
+        publish(true);
+    }
+
+    /**
+     * Bytes held by the samples, spare capacity included.
+     */
+    public synchronized long heapBytes() {
+        return mStore.getHeapBytes();
+    }
+
+    /**
+     * Increases with every change.
+     */
+    public long version() {
+        return mSnapshot.mVersion;
+    }
+
+    /**
+     * Zero-copy view of the latest snapshot.
+     */
+    public SampleStore.View view() {
+        return mSnapshot.mView;
+    }
+
+    /**
+     * Copies the samples added since the cursor's previous read into {@code buffer}. Costs
+     * nothing when the version is unchanged and is proportional to the new samples
+     * otherwise, unless the cursor had to be reset.
+     *
+     * @return the number of samples copied
+     */
+    public int readSince(Cursor cursor, SampleStore buffer) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.mVersion == cursor.mVersion) {
+            cursor.mReset = false;
+            return 0;
+        }
+        cursor.mReset = snapshot.mEpoch != cursor.mEpoch;
+        int from = cursor.mReset ? 0 : cursor.mPosition;
+        int to = snapshot.mView.size();
+        buffer.addAll(snapshot.mView, from, to);
+        cursor.mPosition = to;
+        cursor.mVersion = snapshot.mVersion;
+        cursor.mEpoch = snapshot.mEpoch;
+        return to - from;
+    }
+
+    /**
+     * Moves the cursor to the latest snapshot without copying anything, for consumers that
+     * redraw from the whole view. {@link Cursor#isReset()} tells whether samples returned
+     * before are stale.
+     *
+     * @return the latest view, or {@code null} if nothing changed since the cursor's
+     * previous read
+     */
+    public SampleStore.View advance(Cursor cursor) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.mVersion == cursor.mVersion) {
+            cursor.mReset = false;
+            return null;
+        }
+        cursor.mReset = snapshot.mEpoch != cursor.mEpoch;
+        cursor.mPosition = snapshot.mView.size();
+        cursor.mVersion = snapshot.mVersion;
+        cursor.mEpoch = snapshot.mEpoch;
+        return snapshot.mView;
+    }
+
+    /**
+     * Copies the samples whose pastTime lies in {@code [from, to]} into {@code buffer}.
+     *
+     * @return the number of samples copied
+     */
+    public int readRange(long from, long to, SampleStore buffer) {
+        SampleStore.View view = mSnapshot.mView;
+        int start = view.lowerBound(from);
+        int end = to == Long.MAX_VALUE ? view.size() : view.lowerBound(to + 1);
+        buffer.addAll(view, start, end);
+        return end - start;
+    }
+
+    private void publish(boolean shifted) {
+        Snapshot previous = mSnapshot;
+        mSnapshot = new Snapshot(mStore.view(), previous.mVersion + 1,
+                shifted ? previous.mEpoch + 1 : previous.mEpoch);
+    }
+}
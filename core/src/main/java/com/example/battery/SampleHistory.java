@@ -0,0 +1,769 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-session sample history stored as rolling segment files.
+ * <p>
+ * Every segment is written as a {@link SampleLog} whose pastTime values are relative to the
+ * segment's start time. A new segment is started for each local day, whenever the timeline
+ * is re-based (service restart), and for every new session (clearData); the segment it
+ * replaces is sealed by compacting it into a {@link PackedSegment}. A {@link SegmentIndex}
+ * maps sessions and wall-clock ranges to segments, so any past session or time range can be
+ * read by seeking straight to it instead of loading the whole history. Each segment also
+ * has an {@link EnergyIndex} for charge and energy totals over arbitrary ranges, and every
+ * sample is folded into the {@link Rollups} for long-range views, the
+ * {@link DistributionTiers} for percentiles and the {@link ChargeSessions} summaries.
+ * <p>
+ * Index access is synchronized; file reads work on index snapshots and may run on any
+ * thread. Appends are expected from a single writer thread.
+ */
+public class SampleHistory {
+
+    static final String INDEX_FILENAME = "index.bin";
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String PACKED_SUFFIX = ".segz";
+    static final String ENERGY_SUFFIX = ".nrg";
+    static final String CHARGE_SESSIONS_FILENAME = "charge_sessions.bin";
+    // Present while a summary store is missing samples after a write error
+    static final String ROLLUPS_STALE_FILENAME = "rollups.stale";
+    static final String DISTRIBUTIONS_STALE_FILENAME = "distributions.stale";
+    static final String CHARGE_SESSIONS_STALE_FILENAME = "charge_sessions.stale";
+    static final long RETENTION_MS = TimeUnit.DAYS.toMillis(30);
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    // Whole packed blocks, so no block is decoded twice
+    private static final int READ_CHUNK_SIZE = 8 * PackedSegment.BLOCK_SIZE;
+
+    private final File mDir;
+    private final SegmentIndex mIndex;
+    private SegmentIndex.Entry mActive;
+    private SampleLog mActiveLog;
+    private EnergyIndex mActiveEnergy;
+    // Running prefix sums of the current session, written next to the active segment
+    private final EnergyIndex.Accumulator mEnergy = new EnergyIndex.Accumulator();
+    // mEnergy before the batch being flushed, restored if its samples are not written
+    private final EnergyIndex.Accumulator mEnergyBefore = new EnergyIndex.Accumulator();
+    private final Rollups mRollups;
+    private final DistributionTiers mDistributions;
+    private final ChargeSessions mChargeSessions;
+    // Set when the rollup tiers or session summaries were lost, or missed samples, and have
+    // to be refilled from the segments
+    private boolean mRollupsStale;
+    private boolean mDistributionsStale;
+    private boolean mChargeSessionsStale;
+    private int mSession;
+    private long mStartTime;
+    private final Metrics.Counter mSummaryErrors = Metrics.get().counter("history.summary_errors");
+
+    public SampleHistory(File dir) {
+        mDir = dir;
+        mIndex = new SegmentIndex(new File(dir, INDEX_FILENAME));
+        mRollups = new Rollups(dir);
+        mDistributions = new DistributionTiers(dir);
+        mChargeSessions = new ChargeSessions(new File(dir, CHARGE_SESSIONS_FILENAME));
+    }
+
+    /**
+     * Loads the index and recovers the segment that was being written last.
+     */
+    public synchronized SampleLog.Recovery open() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Unable to create " + mDir);
+        }
+        try {
+            mIndex.load();
+        } catch (IOException e) {
+            rebuildIndex();
+        }
+        try {
+            boolean intact = mRollups.open();
+            if (intact && isMarkedStale(ROLLUPS_STALE_FILENAME)) {
+                mRollups.clear();
+                intact = false;
+            }
+            mRollupsStale = !intact && !mIndex.isEmpty();
+        } catch (IOException e) {
+            // Long-range views fall back to raw samples
+        }
+        try {
+            boolean intact = mDistributions.open();
+            if (intact && isMarkedStale(DISTRIBUTIONS_STALE_FILENAME)) {
+                mDistributions.clear();
+                intact = false;
+            }
+            mDistributionsStale = !intact && !mIndex.isEmpty();
+        } catch (IOException e) {
+            // Percentiles stay empty until the next open
+        }
+        try {
+            boolean intact = mChargeSessions.open();
+            if (intact && isMarkedStale(CHARGE_SESSIONS_STALE_FILENAME)) {
+                mChargeSessions.clear();
+                intact = false;
+            }
+            mChargeSessionsStale = !intact && !mIndex.isEmpty();
+        } catch (IOException e) {
+            // Listed without summaries until the next open
+        }
+        if (mIndex.isEmpty()) {
+            // Nothing to refill them from, they are as complete as they get
+            clearStaleMarks();
+        }
+        SegmentIndex.Entry last = mIndex.last();
+        if (last == null) {
+            return new SampleLog.Recovery(0, 0, false);
+        }
+        mSession = last.mSession;
+        if (isPacked(last.mId)) {
+            // Sealed before the index caught up with the next segment, nothing to recover
+            return new SampleLog.Recovery(last.mCount, 0, false);
+        }
+        SampleLog log = log(last.mId);
+        SampleLog.Recovery recovery = log.recover();
+        refresh(last, log);
+        EnergyIndex energy = energy(last.mId);
+        if (energy.size() != last.mCount) {
+            // Torn along with the log, or never written
+            energy.rebuild(log);
+        }
+        return recovery;
+    }
+
+    /**
+     * Moves a standalone sample log into the history as a session of its own.
+     */
+    public synchronized void adopt(File file) throws IOException {
+        SampleLog log = new SampleLog(file);
+        long startTime = log.readStartTime();
+        SegmentIndex.Entry last = mIndex.last();
+        mSession = last == null ? 0 : last.mSession + 1;
+        SegmentIndex.Entry entry = mIndex.add(mSession, startTime);
+        if (!file.renameTo(logFile(entry.mId))) {
+            mIndex.remove(entry);
+            throw new IOException("Unable to move " + file + " into history");
+        }
+        refresh(entry, log(entry.mId));
+        mIndex.save();
+    }
+
+    /**
+     * Continues the current session on a timeline that starts at {@code startTime}.
+     */
+    public synchronized void resume(long startTime) {
+        mStartTime = startTime;
+    }
+
+    /**
+     * Starts a new session. Older sessions stay available for playback.
+     */
+    public synchronized void newSession(long startTime) {
+        SegmentIndex.Entry last = mIndex.last();
+        mSession = last == null ? 0 : last.mSession + 1;
+        mStartTime = startTime;
+        mActive = null;
+        mActiveLog = null;
+        mActiveEnergy = null;
+        mEnergy.reset();
+    }
+
+    public synchronized int getCurrentSession() {
+        return mSession;
+    }
+
+    public synchronized List<SegmentIndex.Session> sessions() {
+        return mIndex.sessions();
+    }
+
+    public synchronized List<SegmentIndex.Entry> segmentsOf(int session) {
+        return mIndex.segmentsOf(session);
+    }
+
+    /**
+     * Latest sample of the current session, or {@code null} if it has none.
+     */
+    public synchronized BatteryData readLast() throws IOException {
+        List<SegmentIndex.Entry> entries = mIndex.entries();
+        for (int i = entries.size() - 1; i >= 0 && entries.get(i).mSession == mSession; i--) {
+            if (entries.get(i).mCount > 0) {
+                return segment(entries.get(i).mId).readLast();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends samples of the current session, starting a new segment at day boundaries or
+     * when the timeline has been re-based. A segment takes either all of its share of the
+     * batch or none of it; if an append fails, the samples already written are removed from
+     * {@code samples}, so the rest can be passed again.
+     *
+     * @return the number of bytes appended to the segment, energy and rollup files
+     */
+    public synchronized long append(List<BatteryData> samples) throws IOException {
+        long written = 0;
+        int from = 0;
+        try {
+            for (int i = 0; i < samples.size(); i++) {
+                long time = mStartTime + samples.get(i).mPastTime;
+                // Samples [from, i) are not flushed yet but already belong to the active segment
+                long segmentStart = mActive != null && mActive.mCount > 0
+                        ? mActive.mFirstTime : mStartTime + samples.get(from).mPastTime;
+                if (needsRoll(time, segmentStart)) {
+                    written += flush(samples, from, i);
+                    from = i;
+                    roll();
+                }
+            }
+            written += flush(samples, from, samples.size());
+        } catch (IOException e) {
+            samples.subList(0, from).clear();
+            throw e;
+        }
+        // A failed flush is retried with the next batch, but a crash before then would lose
+        // the open bucket, so the store is refilled on the next open either way
+        try {
+            written += mRollups.flush();
+        } catch (IOException e) {
+            markStale(ROLLUPS_STALE_FILENAME);
+        }
+        try {
+            written += mDistributions.flush();
+        } catch (IOException e) {
+            markStale(DISTRIBUTIONS_STALE_FILENAME);
+        }
+        try {
+            written += mChargeSessions.flush();
+        } catch (IOException e) {
+            markStale(CHARGE_SESSIONS_STALE_FILENAME);
+        }
+        return written;
+    }
+
+    /**
+     * Reads the given segments, as returned by {@link #segmentsOf}, into {@code store}. Only
+     * the records covered by each snapshot are read.
+     */
+    public int readSegments(List<SegmentIndex.Entry> segments, SampleStore store) throws IOException {
+        int read = 0;
+        for (SegmentIndex.Entry entry : segments) {
+            read += segment(entry.mId).readRange(store, 0, entry.mCount);
+        }
+        return read;
+    }
+
+    /**
+     * Reads the samples whose wall-clock time lies in {@code [from, to]}, seeking into each
+     * overlapping segment with a binary search on pastTime.
+     */
+    public int readRange(long from, long to, SampleStore store) throws IOException {
+        List<SegmentIndex.Entry> segments;
+        synchronized (this) {
+            segments = mIndex.segmentsBetween(from, to);
+        }
+        int read = 0;
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            int start = segment.lowerBound(from - entry.mStartTime);
+            int end = Math.min(segment.lowerBound(to - entry.mStartTime + 1), entry.mCount);
+            read += segment.readRange(store, start, end);
+        }
+        return read;
+    }
+
+    /**
+     * Like {@link #readRange}, but with wall-clock times as pastTime, so samples of segments
+     * with different start times line up in one store. Pass
+     * {@code Long.MIN_VALUE, Long.MAX_VALUE} for the whole history.
+     */
+    public int readWallClock(long from, long to, SampleStore store) throws IOException {
+        List<SegmentIndex.Entry> segments;
+        synchronized (this) {
+            segments = mIndex.segmentsBetween(from, to);
+        }
+        int read = 0;
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            int start = from == Long.MIN_VALUE ? 0 : segment.lowerBound(from - entry.mStartTime);
+            int end = to == Long.MAX_VALUE ? entry.mCount
+                    : Math.min(segment.lowerBound(to - entry.mStartTime + 1), entry.mCount);
+            if (start < end) {
+                int before = store.size();
+                read += segment.readRange(store, start, end);
+                store.shiftPastTime(before, entry.mStartTime);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Streams the samples whose wall-clock time lies in {@code [from, to]} to
+     * {@code exporter}, segment by segment and a chunk at a time. Pass
+     * {@code Long.MIN_VALUE, Long.MAX_VALUE} for the whole history. Covers what has been
+     * written so far.
+     *
+     * @return the number of samples exported
+     */
+    public long export(long from, long to, SampleExporter exporter) throws IOException {
+        List<SegmentIndex.Entry> segments;
+        synchronized (this) {
+            segments = mIndex.segmentsBetween(from, to);
+        }
+        long exported = 0;
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            int start = from == Long.MIN_VALUE ? 0 : segment.lowerBound(from - entry.mStartTime);
+            int end = to == Long.MAX_VALUE ? entry.mCount
+                    : Math.min(segment.lowerBound(to - entry.mStartTime + 1), entry.mCount);
+            if (start < end) {
+                exported += exporter.export(segment, entry.mStartTime, start, end);
+            }
+        }
+        return exported;
+    }
+
+    /**
+     * Refills rollup tiers, distributions and session summaries that were lost from every
+     * segment in the history. Must run on the writer thread before it appends anything,
+     * since they only accept samples in time order; does nothing if they are intact.
+     */
+    public void rebuildSummaries() throws IOException {
+        List<SegmentIndex.Entry> segments;
+        boolean rollups;
+        boolean distributions;
+        boolean chargeSessions;
+        synchronized (this) {
+            rollups = mRollupsStale;
+            distributions = mDistributionsStale;
+            chargeSessions = mChargeSessionsStale;
+            if (!rollups && !distributions && !chargeSessions) {
+                return;
+            }
+            mRollupsStale = false;
+            mDistributionsStale = false;
+            mChargeSessionsStale = false;
+            segments = new ArrayList<>(mIndex.entries());
+        }
+        for (SegmentIndex.Entry entry : segments) {
+            SampleStore store = new SampleStore(Math.max(entry.mCount, 1));
+            segment(entry.mId).readRange(store, 0, entry.mCount);
+            if (rollups) {
+                mRollups.add(store.view(), entry.mStartTime);
+            }
+            if (distributions) {
+                mDistributions.add(store.view(), entry.mStartTime);
+            }
+            if (chargeSessions) {
+                mChargeSessions.add(store.view(), entry.mStartTime);
+            }
+        }
+        mRollups.flush();
+        mDistributions.flush();
+        mChargeSessions.flush();
+        clearStaleMarks();
+    }
+
+    /**
+     * Temperature, voltage and power percentiles of exactly the given segments, as returned
+     * by {@link #segmentsOf}, read from the raw samples a chunk at a time. Unlike
+     * {@link #distributionsBetween} nothing from before or after them leaks in.
+     */
+    public SampleDistributions distributionsOf(List<SegmentIndex.Entry> segments)
+            throws IOException {
+        SampleDistributions distributions = new SampleDistributions();
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            for (int from = 0; from < entry.mCount; from += READ_CHUNK_SIZE) {
+                SampleStore chunk = new SampleStore(READ_CHUNK_SIZE);
+                segment.readRange(chunk, from, Math.min(entry.mCount, from + READ_CHUNK_SIZE));
+                distributions.addAll(chunk.view());
+            }
+        }
+        return distributions;
+    }
+
+    /**
+     * The buckets of {@code tier} over exactly the given segments, as returned by
+     * {@link #segmentsOf}. The first and last bucket can also hold samples of neighbouring
+     * sessions, so those two are rebuilt from the segments' raw samples.
+     */
+    public List<RollupTier.Bucket> bucketsOf(RollupTier tier, List<SegmentIndex.Entry> segments)
+            throws IOException {
+        List<RollupTier.Bucket> buckets = new ArrayList<>();
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (SegmentIndex.Entry entry : segments) {
+            if (entry.mCount > 0) {
+                first = Math.min(first, entry.mFirstTime);
+                last = Math.max(last, entry.mLastTime);
+            }
+        }
+        if (first > last) {
+            return buckets;
+        }
+        tier.read(first, last, buckets);
+        if (!buckets.isEmpty()) {
+            clipEdge(tier, segments, buckets, buckets.size() - 1, first, last);
+        }
+        if (!buckets.isEmpty()) {
+            clipEdge(tier, segments, buckets, 0, first, last);
+        }
+        return buckets;
+    }
+
+    /**
+     * Temperature, voltage and power percentiles between the wall-clock times {@code from}
+     * and {@code to}, merged from hourly or daily sketches and widened to whole buckets.
+     * Covers what has been written so far.
+     */
+    public SampleDistributions distributionsBetween(long from, long to) throws IOException {
+        SampleDistributions distributions = new SampleDistributions();
+        mDistributions.read(from, to, distributions);
+        return distributions;
+    }
+
+    /**
+     * Summaries of every charge and discharge session, oldest first, read from their cache
+     * file. The running session is included as far as it has been written.
+     */
+    public List<ChargeSessions.Summary> chargeSessions() throws IOException {
+        List<ChargeSessions.Summary> sessions = new ArrayList<>();
+        mChargeSessions.read(sessions);
+        return sessions;
+    }
+
+    /**
+     * The running charge or discharge session as far as it has been appended, or
+     * {@code null}. Call it on the writer thread, or before appending.
+     */
+    public ChargeSessions.Summary currentChargeSession() {
+        return mChargeSessions.current();
+    }
+
+    /**
+     * The coarsest rollup tier with at least one bucket per pixel over {@code window} ms, or
+     * {@code null} when raw samples are needed.
+     */
+    public RollupTier selectRollup(long window, int pixels) {
+        return mRollups.select(window, pixels);
+    }
+
+    /**
+     * Charge, energy and time between the wall-clock times {@code from} and {@code to}, from
+     * two binary searches and two index reads per overlapping segment. Covers what has been
+     * written so far; samples still queued in the writer are not included.
+     */
+    public EnergyIndex.Totals energyBetween(long from, long to) throws IOException {
+        List<SegmentIndex.Entry> segments;
+        synchronized (this) {
+            segments = mIndex.segmentsBetween(from, to);
+        }
+        EnergyIndex.Totals total = EnergyIndex.Totals.ZERO;
+        boolean first = true;
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            int start = segment.lowerBound(from - entry.mStartTime);
+            int end = Math.min(segment.lowerBound(to - entry.mStartTime + 1), entry.mCount) - 1;
+            if (end < start) {
+                continue;
+            }
+            EnergyIndex energy = energy(entry.mId);
+            // Against the segment as it is now and under the lock, so a batch the writer is
+            // halfway through appending, or one appended since the snapshot, is no mismatch
+            synchronized (this) {
+                Segment current = segment(entry.mId);
+                if (energy.size() != current.size()) {
+                    energy.rebuild(current);
+                }
+            }
+            // Once the range has begun, the interval leading into a segment belongs to it too
+            total = total.plus(energy.between(start == 0 && !first ? -1 : start, end));
+            first = false;
+        }
+        return total;
+    }
+
+    /**
+     * Rebuilds bucket {@code index} from the raw samples of {@code segments} if it reaches
+     * outside {@code [first, last]}, or drops it if none of them fall into it.
+     */
+    private void clipEdge(RollupTier tier, List<SegmentIndex.Entry> segments,
+                          List<RollupTier.Bucket> buckets, int index, long first, long last)
+            throws IOException {
+        RollupTier.Bucket bucket = buckets.get(index);
+        if (bucket.mStart + bucket.mFirstOffset >= first
+                && bucket.mStart + bucket.mLastOffset <= last) {
+            return;
+        }
+        RollupTier.Bucket clipped = bucketOf(segments, bucket.mStart,
+                Math.max(first, bucket.mStart),
+                Math.min(last, bucket.mStart + tier.getDuration() - 1));
+        if (clipped.mCount > 0) {
+            buckets.set(index, clipped);
+        } else {
+            buckets.remove(index);
+        }
+    }
+
+    /**
+     * Aggregates the samples of the given segments between the wall-clock times {@code from}
+     * and {@code to}, all within the bucket starting at {@code start}.
+     */
+    private RollupTier.Bucket bucketOf(List<SegmentIndex.Entry> segments, long start, long from,
+                                       long to) throws IOException {
+        RollupTier.Bucket bucket = new RollupTier.Bucket();
+        bucket.mStart = start;
+        int[] values = new int[RollupTier.FIELDS];
+        for (SegmentIndex.Entry entry : segments) {
+            Segment segment = segment(entry.mId);
+            int begin = segment.lowerBound(from - entry.mStartTime);
+            int end = Math.min(segment.lowerBound(to - entry.mStartTime + 1), entry.mCount);
+            if (begin >= end) {
+                continue;
+            }
+            SampleStore store = new SampleStore(end - begin);
+            segment.readRange(store, begin, end);
+            SampleStore.View samples = store.view();
+            for (int i = 0; i < samples.size(); i++) {
+                RollupTier.values(samples, i, values);
+                bucket.add(entry.mStartTime + samples.getPastTime(i), values,
+                        samples.getStatus(i), samples.isScreenOn(i));
+            }
+        }
+        return bucket;
+    }
+
+    private boolean needsRoll(long time, long segmentStart) {
+        return mActive == null || mActive.mStartTime != mStartTime || mActive.mSession != mSession
+                || dayOf(time) != dayOf(segmentStart);
+    }
+
+    private long flush(List<BatteryData> samples, int from, int to) throws IOException {
+        if (from >= to) {
+            return 0;
+        }
+        long written = 0;
+        // Index first: a reader that sees the new count must find the records behind it
+        mEnergyBefore.set(mEnergy);
+        try {
+            mActiveEnergy.append(mEnergy, mActive.mStartTime, samples, from, to);
+            written += (long) (to - from) * EnergyIndex.RECORD_SIZE;
+        } catch (IOException e) {
+            // Derived data, rebuilt from the segment when found short
+        }
+        try {
+            mActiveLog.append(samples.subList(from, to));
+        } catch (IOException e) {
+            // The log is back where it was; take the energy records of the batch back too,
+            // or every later one would be credited to the wrong sample
+            mEnergy.set(mEnergyBefore);
+            try {
+                mActiveEnergy.truncate(mActive.mCount);
+            } catch (IOException truncateError) {
+                // Found longer than the segment and rebuilt
+            }
+            throw e;
+        }
+        written += (long) (to - from) * SampleLog.RECORD_SIZE;
+        if (mActive.mCount == 0) {
+            mActive.mFirstTime = mActive.mStartTime + samples.get(from).mPastTime;
+        }
+        mActive.mLastTime = mActive.mStartTime + samples.get(to - 1).mPastTime;
+        mActive.mCount += to - from;
+        SampleStore batch = new SampleStore(to - from);
+        for (int i = from; i < to; i++) {
+            batch.add(samples.get(i));
+        }
+        // The summaries only summarize, the samples themselves are safe. A store that fails
+        // has skipped the rest of the batch, so it is refilled on the next open.
+        try {
+            mRollups.add(batch.view(), mActive.mStartTime);
+        } catch (IOException e) {
+            markStale(ROLLUPS_STALE_FILENAME);
+        }
+        try {
+            mDistributions.add(batch.view(), mActive.mStartTime);
+        } catch (IOException e) {
+            markStale(DISTRIBUTIONS_STALE_FILENAME);
+        }
+        try {
+            mChargeSessions.add(batch.view(), mActive.mStartTime);
+        } catch (IOException e) {
+            markStale(CHARGE_SESSIONS_STALE_FILENAME);
+        }
+        return written;
+    }
+
+    /**
+     * Records that a summary store missed samples, so that {@link #open} empties it and
+     * {@link #rebuildSummaries} refills it. Until then it keeps taking samples, slightly
+     * incomplete.
+     */
+    private void markStale(String marker) {
+        mSummaryErrors.increment();
+        try {
+            new File(mDir, marker).createNewFile();
+        } catch (IOException e) {
+            // Counted above; without the mark the gap stays until the store is lost
+        }
+    }
+
+    private boolean isMarkedStale(String marker) {
+        return new File(mDir, marker).exists();
+    }
+
+    private void clearStaleMarks() {
+        new File(mDir, ROLLUPS_STALE_FILENAME).delete();
+        new File(mDir, DISTRIBUTIONS_STALE_FILENAME).delete();
+        new File(mDir, CHARGE_SESSIONS_STALE_FILENAME).delete();
+    }
+
+    private void roll() throws IOException {
+        SegmentIndex.Entry last = mIndex.last();
+        if (last != null && last.mCount == 0) {
+            // Never written to, reuse its slot instead of leaving an empty segment behind
+            mIndex.remove(last);
+            delete(last.mId);
+        } else if (last != null) {
+            if (!mEnergy.hasLast() && last.mSession == mSession) {
+                // Resuming the session: keep integrating from its latest sample
+                BatteryData latest = readLast();
+                if (latest != null) {
+                    mEnergy.seed(last.mStartTime + latest.mPastTime, latest.mIsScreenOn);
+                }
+            }
+            seal(last);
+        }
+        mActive = mIndex.add(mSession, mStartTime);
+        mActiveLog = log(mActive.mId);
+        mActiveLog.create(mStartTime);
+        mActiveEnergy = energy(mActive.mId);
+        mActiveEnergy.create();
+        mEnergy.startSegment();
+        prune(System.currentTimeMillis());
+        mIndex.save();
+        try {
+            mRollups.prune(System.currentTimeMillis());
+            mDistributions.prune(System.currentTimeMillis());
+        } catch (IOException e) {
+            // Old buckets stay a little longer
+        }
+    }
+
+    private void prune(long now) {
+        for (SegmentIndex.Entry entry : mIndex.entries().toArray(new SegmentIndex.Entry[0])) {
+            if (entry.mSession != mSession && entry.mLastTime < now - RETENTION_MS) {
+                mIndex.remove(entry);
+                delete(entry.mId);
+            }
+        }
+    }
+
+    /**
+     * Compacts a segment that will not be appended to any more. The log is only deleted
+     * once the packed copy is in place; if packing fails the segment simply stays a log.
+     */
+    private void seal(SegmentIndex.Entry entry) {
+        if (isPacked(entry.mId)) {
+            // Packed by an earlier run that stopped before deleting the log
+            logFile(entry.mId).delete();
+            return;
+        }
+        try {
+            SampleStore store = new SampleStore(entry.mCount);
+            log(entry.mId).readRange(store, 0, entry.mCount);
+            PackedSegment.write(packedFile(entry.mId), entry.mStartTime, store.view());
+            logFile(entry.mId).delete();
+        } catch (IOException e) {
+            packedFile(entry.mId).delete();
+        }
+    }
+
+    /**
+     * Recreates a lost or damaged index from the segment files. Session boundaries cannot be
+     * recovered, so every segment becomes a session of its own.
+     */
+    private void rebuildIndex() throws IOException {
+        mIndex.clear();
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX)
+                || name.endsWith(PACKED_SUFFIX));
+        int[] ids = new int[files == null ? 0 : files.length];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            try {
+                ids[count] = Integer.parseInt(name.substring(0, name.lastIndexOf('.')));
+                count++;
+            } catch (NumberFormatException ignored) {
+                // Not one of ours
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        int session = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && ids[i] == ids[i - 1]) {
+                // Both forms of a segment that was being sealed
+                continue;
+            }
+            try {
+                if (!isPacked(ids[i])) {
+                    log(ids[i]).recover();
+                }
+                Segment segment = segment(ids[i]);
+                SegmentIndex.Entry entry = mIndex.add(ids[i], session++, segment.readStartTime());
+                refresh(entry, segment);
+            } catch (IOException e) {
+                // Unreadable segment, leave it out of the index
+            }
+        }
+        mIndex.save();
+    }
+
+    private void refresh(SegmentIndex.Entry entry, Segment segment) throws IOException {
+        entry.mCount = segment.size();
+        if (entry.mCount > 0) {
+            entry.mFirstTime = entry.mStartTime + segment.readAt(0).mPastTime;
+            entry.mLastTime = entry.mStartTime + segment.readLast().mPastTime;
+        }
+    }
+
+    private Segment segment(int id) {
+        File packed = packedFile(id);
+        return packed.exists() ? new PackedSegment(packed) : log(id);
+    }
+
+    private boolean isPacked(int id) {
+        return packedFile(id).exists();
+    }
+
+    private SampleLog log(int id) {
+        return new SampleLog(logFile(id));
+    }
+
+    private File logFile(int id) {
+        return new File(mDir, id + SEGMENT_SUFFIX);
+    }
+
+    private File packedFile(int id) {
+        return new File(mDir, id + PACKED_SUFFIX);
+    }
+
+    private EnergyIndex energy(int id) {
+        return new EnergyIndex(new File(mDir, id + ENERGY_SUFFIX));
+    }
+
+    private void delete(int id) {
+        logFile(id).delete();
+        packedFile(id).delete();
+        new File(mDir, id + ENERGY_SUFFIX).delete();
+    }
+
+    private static long dayOf(long time) {
+        return (time + TimeZone.getDefault().getOffset(time)) / DAY_MS;
+    }
+}
@@ -0,0 +1,467 @@
+package com.example.battery;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of battery samples.
+ * <p>
+ * The file starts with a small header (magic, format version, start time) followed by
+ * fixed-width records, so a save only has to append the samples collected since the
+ * previous one instead of rewriting the whole history.
+ * <p>
+ * Every record carries a CRC32, which makes the log its own write-ahead journal: a write
+ * torn by a crash can only damage the tail, and {@link #recover()} cuts it back to the last
+ * intact record by scanning backwards from the end. An append that fails is cut back off,
+ * so records stay at fixed offsets for the appends after it. Anything that replaces the
+ * header is written to a temporary file and renamed over the log, so the log is never
+ * half-rewritten.
+ */
+public class SampleLog implements Segment {
+
+    static final int MAGIC = 0x42415454; // "BATT"
+    // Versions 1 and 2 carry a screen-on sample counter instead of the screen-on time
+    static final int FORMAT_VERSION = 3;
+    // magic(4) + version(4) + startTime(8)
+    static final int HEADER_SIZE = 16;
+    // pastTime(8) + level(2) + scale(2) + temperature(2) + voltage(4) + flags(1)
+    // + current(4) + screenOnTime(8) + reserved(1) + crc32(4)
+    static final int RECORD_SIZE = 36;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final int SCREEN_ON_FLAG = 0x80;
+    private static final int STATUS_MASK = 0x7F;
+    // Version 1 records: no checksum, separate status and screen bytes
+    private static final int RECORD_SIZE_V1 = 32;
+    private static final int READ_CHUNK_RECORDS = 2048;
+
+    private final File mFile;
+
+    /**
+     * Outcome of {@link #recover()}.
+     */
+    public static final class Recovery {
+        public final int mRecovered;
+        public final long mTruncatedBytes;
+        public final boolean mUpgraded;
+
+        Recovery(int recovered, long truncatedBytes, boolean upgraded) {
+            mRecovered = recovered;
+            mTruncatedBytes = truncatedBytes;
+            mUpgraded = upgraded;
+        }
+    }
+
+    public SampleLog(File file) {
+        mFile = file;
+    }
+
+    public boolean exists() {
+        return mFile.exists() && mFile.length() >= HEADER_SIZE;
+    }
+
+    /**
+     * Number of complete records currently in the file.
+     */
+    @Override
+    public int size() {
+        long length = mFile.length() - HEADER_SIZE;
+        return length > 0 ? (int) (length / RECORD_SIZE) : 0;
+    }
+
+    /**
+     * Atomically replaces the log with an empty one.
+     */
+    public void create(long startTime) throws IOException {
+        rewrite(startTime, null);
+    }
+
+    /**
+     * Atomically replaces the log with {@code samples}, written to a temporary file first.
+     */
+    public void rewrite(long startTime, SampleStore.View samples) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(startTime);
+            out.write(header.array());
+            if (samples != null && !samples.isEmpty()) {
+                out.write(encode(samples, 0, samples.size()).array());
+            }
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    /**
+     * Reads the start time stored in the header.
+     */
+    @Override
+    public long readStartTime() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            readReadableVersion(in);
+            return in.readLong();
+        }
+    }
+
+    /**
+     * Appends samples {@code [from, to)} of {@code samples} to the end of the log, all or
+     * nothing.
+     */
+    public void append(SampleStore.View samples, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        write(encode(samples, from, to));
+    }
+
+    /**
+     * Appends {@code samples} to the end of the log with a single write, all or nothing.
+     */
+    public void append(List<BatteryData> samples) throws IOException {
+        if (samples.isEmpty()) {
+            return;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(samples.size() * RECORD_SIZE);
+        for (BatteryData sample : samples) {
+            writeRecord(buffer, crc, sample.mPastTime, sample.mLevel, sample.mScale,
+                    sample.mTemperature, sample.mVoltage, sample.mStatus, sample.mIsScreenOn,
+                    sample.mCurrent, sample.mScreenOnTime);
+        }
+        write(buffer);
+    }
+
+    /**
+     * Brings the log into a consistent state after an unclean shutdown: drops a partially
+     * written trailing record, then walks backwards over records whose checksum does not
+     * match and truncates them. The cost is proportional to the damaged tail, not to the
+     * size of the log. An older version is upgraded in place, and a log whose header is
+     * unreadable is moved aside so that collection can start over.
+     */
+    public Recovery recover() throws IOException {
+        if (!mFile.exists()) {
+            return new Recovery(0, 0, false);
+        }
+        int version;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            version = in.readInt() == MAGIC ? in.readInt() : -1;
+        } catch (IOException e) {
+            version = -1;
+        }
+        if (version == 1 || version == 2) {
+            return new Recovery(upgrade(version), 0, true);
+        }
+        if (version != FORMAT_VERSION) {
+            File corrupt = new File(mFile.getPath() + ".corrupt");
+            if (!mFile.renameTo(corrupt)) {
+                throw new IOException("Unable to move aside unreadable " + mFile);
+            }
+            return new Recovery(0, corrupt.length(), false);
+        }
+
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            long length = file.length();
+            int records = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+            byte[] record = new byte[RECORD_SIZE];
+            while (records > 0) {
+                file.seek(HEADER_SIZE + (long) (records - 1) * RECORD_SIZE);
+                file.readFully(record);
+                if (isValid(record, 0, crc)) {
+                    break;
+                }
+                records--;
+            }
+            long validLength = HEADER_SIZE + (long) records * RECORD_SIZE;
+            if (validLength < length) {
+                file.setLength(validLength);
+                file.getFD().sync();
+            }
+            return new Recovery(records, length - validLength, false);
+        }
+    }
+
+    /**
+     * Decodes the last complete record without touching the rest of the file.
+     *
+     * @return the latest sample, or {@code null} if the log holds no records
+     */
+    @Override
+    public BatteryData readLast() throws IOException {
+        int size = size();
+        return size == 0 ? null : readAt(size - 1);
+    }
+
+    /**
+     * Decodes record {@code index} with a single seek.
+     */
+    @Override
+    public BatteryData readAt(int index) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(4);
+            boolean legacyCounter = file.readInt() == 2;
+            byte[] record = new byte[RECORD_SIZE];
+            file.seek(HEADER_SIZE + (long) index * RECORD_SIZE);
+            file.readFully(record);
+            if (!isValid(record, 0, new CRC32())) {
+                throw new IOException("Corrupt record " + index + " in " + mFile);
+            }
+            SampleStore store = new SampleStore(1);
+            readRecord(ByteBuffer.wrap(record), store, legacyCounter);
+            return store.view().get(0);
+        }
+    }
+
+    /**
+     * Streams the first {@code count} records of the log straight into {@code store}, decoding
+     * them chunk by chunk. Records appended after {@code count} are left alone, so the log
+     * may keep growing while it is being read. A truncated tail ends the read early, and
+     * records failing their checksum are skipped.
+     *
+     * @return the number of samples read
+     */
+    public int readInto(SampleStore store, int count) throws IOException {
+        return readRange(store, 0, count);
+    }
+
+    /**
+     * Like {@link #readInto}, but starts at record {@code from} by seeking straight to it.
+     *
+     * @return the number of samples read
+     */
+    @Override
+    public int readRange(SampleStore store, int from, int to) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[RECORD_SIZE * READ_CHUNK_RECORDS];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        int read = 0;
+        int position = from;
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            boolean legacyCounter = readReadableVersion(new DataInputStream(in)) == 2;
+            in.getChannel().position(HEADER_SIZE + (long) from * RECORD_SIZE);
+            while (position < to) {
+                int records = Math.min(READ_CHUNK_RECORDS, to - position);
+                int bytes = readFully(in, chunk, records * RECORD_SIZE);
+                records = bytes / RECORD_SIZE;
+                for (int i = 0; i < records; i++) {
+                    int offset = i * RECORD_SIZE;
+                    if (isValid(chunk, offset, crc)) {
+                        buffer.position(offset);
+                        readRecord(buffer, store, legacyCounter);
+                        read++;
+                    }
+                }
+                position += records;
+                if (bytes < chunk.length && position < to) {
+                    break;
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Binary-searches the records for the first one whose pastTime is not less than
+     * {@code pastTime}, reading one timestamp per step.
+     *
+     * @return a record index in {@code [0, size()]}
+     */
+    @Override
+    public int lowerBound(long pastTime) throws IOException {
+        int low = 0;
+        int high = size();
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                file.seek(HEADER_SIZE + (long) mid * RECORD_SIZE);
+                if (file.readLong() < pastTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Writes {@code buffer} at the end of the file. On failure the file is truncated back to
+     * its previous length, so the bytes that did get written cannot shift the next append.
+     */
+    private void write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE)) {
+            long length = channel.size();
+            try {
+                channel.position(length);
+                writeTo(channel, buffer);
+                channel.force(false);
+            } catch (IOException e) {
+                try {
+                    channel.truncate(length);
+                    channel.force(false);
+                } catch (IOException truncateError) {
+                    // The tail stays until recover() on the next open
+                    e.addSuppressed(truncateError);
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes the rest of {@code buffer} at the channel's position; tests fail it midway.
+     */
+    void writeTo(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer encode(SampleStore.View samples, int from, int to) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate((to - from) * RECORD_SIZE);
+        for (int i = from; i < to; i++) {
+            writeRecord(buffer, crc, samples.getPastTime(i), samples.getLevel(i),
+                    samples.getScale(i), samples.getTemperature(i), samples.getVoltage(i),
+                    samples.getStatus(i), samples.isScreenOn(i), samples.getCurrent(i),
+                    samples.getScreenOnTime(i));
+        }
+        return buffer;
+    }
+
+    /**
+     * Rewrites a version 1 or 2 log in the current format, converting the screen-on counter
+     * to ms. Version 2 records failing their checksum are dropped.
+     */
+    private int upgrade(int version) throws IOException {
+        SampleStore store = new SampleStore();
+        long startTime;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            startTime = readHeader(in, version);
+            int size = version == 1 ? RECORD_SIZE_V1 : RECORD_SIZE;
+            byte[] record = new byte[size];
+            CRC32 crc = new CRC32();
+            while (readFully(in, record, size) == size) {
+                if (version == 2) {
+                    if (isValid(record, 0, crc)) {
+                        readRecord(ByteBuffer.wrap(record), store, true);
+                    }
+                    continue;
+                }
+                ByteBuffer v1 = ByteBuffer.wrap(record);
+                long pastTime = v1.getLong();
+                int level = v1.getShort();
+                int scale = v1.getShort();
+                int temperature = v1.getShort();
+                int voltage = v1.getInt();
+                int status = v1.get();
+                boolean isScreenOn = v1.get() != 0;
+                int current = v1.getInt();
+                long screenOnCount = v1.getLong();
+                store.add(pastTime, level, scale, temperature, voltage, status, isScreenOn,
+                        current, screenOnCount * BatteryData.LEGACY_SCREEN_ON_TICK_MS);
+            }
+        }
+        rewrite(startTime, store.view());
+        return store.size();
+    }
+
+    private static boolean isValid(byte[] record, int offset, CRC32 crc) {
+        crc.reset();
+        crc.update(record, offset, CRC_OFFSET);
+        return (int) crc.getValue() == ByteBuffer.wrap(record, offset + CRC_OFFSET, 4).getInt();
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Reads the magic and version of a log whose records can be read as they are: the
+     * current version, or version 2 which only differs in its screen-on counter. Older
+     * segments of the history are never recovered, so they may still be in version 2.
+     */
+    private static int readReadableVersion(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a battery sample log");
+        }
+        int version = in.readInt();
+        if (version != 2 && version != FORMAT_VERSION) {
+            throw new IOException("Unsupported sample log version " + version);
+        }
+        return version;
+    }
+
+    private static long readHeader(DataInputStream in, int expectedVersion) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a battery sample log");
+        }
+        int version = in.readInt();
+        if (version != expectedVersion) {
+            throw new IOException("Unsupported sample log version " + version);
+        }
+        return in.readLong();
+    }
+
+    private static void writeRecord(ByteBuffer out, CRC32 crc, long pastTime, int level, int scale,
+                                    int temperature, int voltage, int status, boolean isScreenOn,
+                                    int current, long screenOnTime) {
+        int start = out.position();
+        out.putLong(pastTime);
+        out.putShort((short) level);
+        out.putShort((short) scale);
+        out.putShort((short) temperature);
+        out.putInt(voltage);
+        out.put((byte) ((status & STATUS_MASK) | (isScreenOn ? SCREEN_ON_FLAG : 0)));
+        out.putInt(current);
+        out.putLong(screenOnTime);
+        out.put((byte) 0);
+        crc.reset();
+        crc.update(out.array(), start, CRC_OFFSET);
+        out.putInt((int) crc.getValue());
+    }
+
+    /**
+     * @param legacyCounter whether the record holds a version 2 screen-on counter
+     */
+    private static void readRecord(ByteBuffer in, SampleStore store, boolean legacyCounter) {
+        long pastTime = in.getLong();
+        int level = in.getShort();
+        int scale = in.getShort();
+        int temperature = in.getShort();
+        int voltage = in.getInt();
+        int flags = in.get() & 0xFF;
+        int current = in.getInt();
+        long screenOnTime = in.getLong();
+        if (legacyCounter) {
+            screenOnTime *= BatteryData.LEGACY_SCREEN_ON_TICK_MS;
+        }
+        int status = flags & STATUS_MASK;
+        store.add(pastTime, level, scale, temperature, voltage,
+                status == STATUS_MASK ? -1 : status, (flags & SCREEN_ON_FLAG) != 0, current,
+                screenOnTime);
+        in.position(in.position() + 5);
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.battery;
+
+import java.util.Arrays;
+
+/**
+ * Growable columnar store of battery samples, one primitive array per field.
+ * <p>
+ * Arrays are only ever written past the current size, and growing or clearing the store
+ * allocates new arrays, so a {@link View} taken at any point stays valid without copying.
+ * Mutations must be externally synchronized; views may be read from any thread once
+ * handed over.
+ */
+public class SampleStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Bytes per sample over all columns
+    static final int SAMPLE_BYTES = 8 + 2 + 2 + 2 + 4 + 4 + 1 + 8;
+    private static final int SCREEN_ON_FLAG = 0x80;
+    private static final int STATUS_MASK = 0x7F;
+
+    private long[] mPastTime;
+    private short[] mLevel;
+    private short[] mScale;
+    private short[] mTemperature;
+    private int[] mVoltage;
+    private int[] mCurrent;
+    // Battery status in the low 7 bits, screen state in the high bit
+    private byte[] mFlags;
+    private long[] mScreenOnTime;
+    private int mSize;
+
+    public SampleStore() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public SampleStore(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Bytes held by the column arrays, spare capacity included.
+     */
+    public long getHeapBytes() {
+        return (long) mPastTime.length * SAMPLE_BYTES;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void add(long pastTime, int level, int scale, int temperature, int voltage, int status,
+                    boolean isScreenOn, int current, long screenOnTime) {
+        if (mSize == mPastTime.length) {
+            grow(mSize + 1);
+        }
+        int i = mSize;
+        mPastTime[i] = pastTime;
+        mLevel[i] = (short) level;
+        mScale[i] = (short) scale;
+        mTemperature[i] = (short) temperature;
+        mVoltage[i] = voltage;
+        mCurrent[i] = current;
+        mFlags[i] = (byte) ((status & STATUS_MASK) | (isScreenOn ? SCREEN_ON_FLAG : 0));
+        mScreenOnTime[i] = screenOnTime;
+        mSize = i + 1;
+    }
+
+    public void add(BatteryData data) {
+        add(data.mPastTime, data.mLevel, data.mScale, data.mTemperature, data.mVoltage,
+                data.mStatus, data.mIsScreenOn, data.mCurrent, data.mScreenOnTime);
+    }
+
+    /**
+     * Appends samples {@code [from, to)} of {@code source}.
+     */
+    public void addAll(View source, int from, int to) {
+        int count = to - from;
+        if (mSize + count > mPastTime.length) {
+            grow(mSize + count);
+        }
+        System.arraycopy(source.mPastTime, from, mPastTime, mSize, count);
+        System.arraycopy(source.mLevel, from, mLevel, mSize, count);
+        System.arraycopy(source.mScale, from, mScale, mSize, count);
+        System.arraycopy(source.mTemperature, from, mTemperature, mSize, count);
+        System.arraycopy(source.mVoltage, from, mVoltage, mSize, count);
+        System.arraycopy(source.mCurrent, from, mCurrent, mSize, count);
+        System.arraycopy(source.mFlags, from, mFlags, mSize, count);
+        System.arraycopy(source.mScreenOnTime, from, mScreenOnTime, mSize, count);
+        mSize += count;
+    }
+
+    /**
+     * Inserts {@code head} in front of the samples already in the store. Used to splice
+     * lazily loaded history ahead of samples collected while it was loading. New arrays are
+     * allocated, so existing views are unaffected.
+     */
+    public void prepend(View head) {
+        int size = head.mSize + mSize;
+        int capacity = Math.max(size + (size >> 1), INITIAL_CAPACITY);
+        long[] pastTime = new long[capacity];
+        short[] level = new short[capacity];
+        short[] scale = new short[capacity];
+        short[] temperature = new short[capacity];
+        int[] voltage = new int[capacity];
+        int[] current = new int[capacity];
+        byte[] flags = new byte[capacity];
+        long[] screenOnTime = new long[capacity];
+        System.arraycopy(head.mPastTime, 0, pastTime, 0, head.mSize);
+        System.arraycopy(head.mLevel, 0, level, 0, head.mSize);
+        System.arraycopy(head.mScale, 0, scale, 0, head.mSize);
+        System.arraycopy(head.mTemperature, 0, temperature, 0, head.mSize);
+        System.arraycopy(head.mVoltage, 0, voltage, 0, head.mSize);
+        System.arraycopy(head.mCurrent, 0, current, 0, head.mSize);
+        System.arraycopy(head.mFlags, 0, flags, 0, head.mSize);
+        System.arraycopy(head.mScreenOnTime, 0, screenOnTime, 0, head.mSize);
+        System.arraycopy(mPastTime, 0, pastTime, head.mSize, mSize);
+        System.arraycopy(mLevel, 0, level, head.mSize, mSize);
+        System.arraycopy(mScale, 0, scale, head.mSize, mSize);
+        System.arraycopy(mTemperature, 0, temperature, head.mSize, mSize);
+        System.arraycopy(mVoltage, 0, voltage, head.mSize, mSize);
+        System.arraycopy(mCurrent, 0, current, head.mSize, mSize);
+        System.arraycopy(mFlags, 0, flags, head.mSize, mSize);
+        System.arraycopy(mScreenOnTime, 0, screenOnTime, head.mSize, mSize);
+        mPastTime = pastTime;
+        mLevel = level;
+        mScale = scale;
+        mTemperature = temperature;
+        mVoltage = voltage;
+        mCurrent = current;
+        mFlags = flags;
+        mScreenOnTime = screenOnTime;
+        mSize = size;
+    }
+
+    /**
+     * Adds {@code delta} to the pastTime of the samples from {@code from} on, such as to turn
+     * times relative to a segment's start into wall-clock times. Existing views see it.
+     */
+    void shiftPastTime(int from, long delta) {
+        for (int i = from; i < mSize; i++) {
+            mPastTime[i] += delta;
+        }
+    }
+
+    /**
+     * Drops every sample. Existing views keep the old arrays.
+     */
+    public void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Drops every sample but keeps the arrays, so the samples added next overwrite what
+     * existing views show. Only for scratch stores whose views are done with by then.
+     */
+    void rewind() {
+        mSize = 0;
+    }
+
+    /**
+     * Zero-copy, read-only view of the samples currently in the store.
+     */
+    public View view() {
+        return new View(this);
+    }
+
+    private void allocate(int capacity) {
+        mPastTime = new long[capacity];
+        mLevel = new short[capacity];
+        mScale = new short[capacity];
+        mTemperature = new short[capacity];
+        mVoltage = new int[capacity];
+        mCurrent = new int[capacity];
+        mFlags = new byte[capacity];
+        mScreenOnTime = new long[capacity];
+        mSize = 0;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(mPastTime.length + (mPastTime.length >> 1), minCapacity);
+        mPastTime = Arrays.copyOf(mPastTime, capacity);
+        mLevel = Arrays.copyOf(mLevel, capacity);
+        mScale = Arrays.copyOf(mScale, capacity);
+        mTemperature = Arrays.copyOf(mTemperature, capacity);
+        mVoltage = Arrays.copyOf(mVoltage, capacity);
+        mCurrent = Arrays.copyOf(mCurrent, capacity);
+        mFlags = Arrays.copyOf(mFlags, capacity);
+        mScreenOnTime = Arrays.copyOf(mScreenOnTime, capacity);
+    }
+
+    public static final class View {
+        private final long[] mPastTime;
+        private final short[] mLevel;
+        private final short[] mScale;
+        private final short[] mTemperature;
+        private final int[] mVoltage;
+        private final int[] mCurrent;
+        private final byte[] mFlags;
+        private final long[] mScreenOnTime;
+        private final int mSize;
+
+        private View(SampleStore store) {
+            mPastTime = store.mPastTime;
+            mLevel = store.mLevel;
+            mScale = store.mScale;
+            mTemperature = store.mTemperature;
+            mVoltage = store.mVoltage;
+            mCurrent = store.mCurrent;
+            mFlags = store.mFlags;
+            mScreenOnTime = store.mScreenOnTime;
+            mSize = store.mSize;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        public long getPastTime(int i) {
+            return mPastTime[i];
+        }
+
+        public int getLevel(int i) {
+            return mLevel[i];
+        }
+
+        public int getScale(int i) {
+            return mScale[i];
+        }
+
+        /**
+         * Battery level in percent.
+         */
+        public float getLevelPercent(int i) {
+            return (mLevel[i] / (float) mScale[i]) * 100;
+        }
+
+        public int getTemperature(int i) {
+            return mTemperature[i];
+        }
+
+        public int getVoltage(int i) {
+            return mVoltage[i];
+        }
+
+        public int getCurrent(int i) {
+            return mCurrent[i];
+        }
+
+        public int getStatus(int i) {
+            int status = mFlags[i] & STATUS_MASK;
+            return status == STATUS_MASK ? -1 : status;
+        }
+
+        public boolean isScreenOn(int i) {
+            return (mFlags[i] & SCREEN_ON_FLAG) != 0;
+        }
+
+        /**
+         * Status and screen state packed the way they are stored.
+         */
+        int getFlags(int i) {
+            return mFlags[i] & 0xFF;
+        }
+
+        public long getScreenOnTime(int i) {
+            return mScreenOnTime[i];
+        }
+
+        /**
+         * First sample whose pastTime is not less than {@code pastTime}, by binary search.
+         *
+         * @return an index in {@code [0, size()]}
+         */
+        public int lowerBound(long pastTime) {
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (mPastTime[mid] < pastTime) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Materializes sample {@code i} as a {@link BatteryData}.
+         */
+        public BatteryData get(int i) {
+            return new BatteryData(mPastTime[i], getLevel(i), getScale(i),
+                    getTemperature(i), mVoltage[i], getStatus(i), isScreenOn(i), mCurrent[i],
+                    mScreenOnTime[i]);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.battery;
+
+/**
+ * How often the service polls the average current, depending on what the device is doing.
+ * <p>
+ * Each state has its own interval: short with the screen on, where the load changes by the
+ * second and the device is awake anyway, long with the screen off, and in between while
+ * charging. Screen-off polls are batched with wakeups that happen anyway: a battery
+ * broadcast arriving in the second half of the interval takes the poll along, and the next
+ * one is counted from there.
+ */
+public class SamplingPolicy {
+
+    // Part of a screen-off interval by which a poll may run early to share a wakeup
+    static final float EARLY_FRACTION = 0.5f;
+
+    private final long mScreenOnMs;
+    private final long mScreenOffMs;
+    private final long mChargingMs;
+
+    public SamplingPolicy(long screenOnMs, long screenOffMs, long chargingMs) {
+        mScreenOnMs = screenOnMs;
+        mScreenOffMs = screenOffMs;
+        mChargingMs = chargingMs;
+    }
+
+    public static SamplingPolicy defaults() {
+        return new SamplingPolicy(Constant.SCREEN_ON_POLL_MS, Constant.SCREEN_OFF_POLL_MS,
+                Constant.CHARGING_POLL_MS);
+    }
+
+    /**
+     * The poll interval in a state; charging never makes it longer than the screen needs.
+     */
+    public long getInterval(boolean isScreenOn, boolean isCharging) {
+        long interval = isScreenOn ? mScreenOnMs : mScreenOffMs;
+        return isCharging ? Math.min(interval, mChargingMs) : interval;
+    }
+
+    /**
+     * Delay from {@code now} until the next poll, given the last one at {@code lastPoll}.
+     */
+    public long getDelay(long now, long lastPoll, boolean isScreenOn, boolean isCharging) {
+        return Math.max(0, lastPoll + getInterval(isScreenOn, isCharging) - now);
+    }
+
+    /**
+     * Whether a wakeup that happens at {@code now} anyway should poll right away instead of
+     * leaving the poll to a wakeup of its own.
+     */
+    public boolean shouldPollEarly(long now, long lastPoll, boolean isScreenOn, boolean isCharging) {
+        long interval = getInterval(isScreenOn, isCharging);
+        long slack = isScreenOn ? 0 : (long) (interval * EARLY_FRACTION);
+        return now - lastPoll >= interval - slack;
+    }
+}
@@ -0,0 +1,23 @@
+package com.example.battery;
+
+import java.io.IOException;
+
+/**
+ * Read side shared by the segment formats of {@link SampleHistory}: the append-only
+ * {@link SampleLog} a segment is written as, and the {@link PackedSegment} it is compacted
+ * into once sealed.
+ */
+interface Segment {
+
+    long readStartTime() throws IOException;
+
+    int size() throws IOException;
+
+    BatteryData readAt(int index) throws IOException;
+
+    BatteryData readLast() throws IOException;
+
+    int readRange(SampleStore store, int from, int to) throws IOException;
+
+    int lowerBound(long pastTime) throws IOException;
+}
@@ -0,0 +1,226 @@
+package com.example.battery;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Compact index over the history segments: for each segment, the session it belongs to and
+ * the wall-clock range it covers. Kept in memory and rewritten atomically whenever a
+ * segment is opened or sealed, so finding the segments for a session or a time range never
+ * touches the segment files themselves.
+ */
+public class SegmentIndex {
+
+    static final int MAGIC = 0x42494458; // "BIDX"
+    static final int FORMAT_VERSION = 1;
+    // magic(4) + version(4) + count(4)
+    private static final int HEADER_SIZE = 12;
+    // id(4) + session(4) + startTime(8) + firstTime(8) + lastTime(8) + count(4)
+    private static final int ENTRY_SIZE = 36;
+
+    private final File mFile;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public static final class Entry {
+        public final int mId;
+        public final int mSession;
+        // Wall-clock time that the segment's pastTime values are relative to
+        public final long mStartTime;
+        public long mFirstTime;
+        public long mLastTime;
+        public int mCount;
+
+        Entry(int id, int session, long startTime, long firstTime, long lastTime, int count) {
+            mId = id;
+            mSession = session;
+            mStartTime = startTime;
+            mFirstTime = firstTime;
+            mLastTime = lastTime;
+            mCount = count;
+        }
+
+        Entry copy() {
+            return new Entry(mId, mSession, mStartTime, mFirstTime, mLastTime, mCount);
+        }
+
+        boolean overlaps(long from, long to) {
+            return mCount > 0 && mFirstTime <= to && mLastTime >= from;
+        }
+    }
+
+    /**
+     * Summary of one session, folded from its segments.
+     */
+    public static final class Session {
+        public final int mId;
+        public final long mFirstTime;
+        public final long mLastTime;
+        public final int mCount;
+
+        Session(int id, long firstTime, long lastTime, int count) {
+            mId = id;
+            mFirstTime = firstTime;
+            mLastTime = lastTime;
+            mCount = count;
+        }
+    }
+
+    public SegmentIndex(File file) {
+        mFile = file;
+    }
+
+    public void load() throws IOException {
+        mEntries.clear();
+        if (!mFile.exists()) {
+            return;
+        }
+        byte[] bytes = new byte[(int) mFile.length()];
+        try (FileInputStream in = new FileInputStream(mFile)) {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < HEADER_SIZE + 4 || buffer.getInt() != MAGIC
+                || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("Not a segment index");
+        }
+        int count = buffer.getInt();
+        if (bytes.length != HEADER_SIZE + count * ENTRY_SIZE + 4) {
+            throw new IOException("Truncated segment index");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+            throw new IOException("Corrupt segment index");
+        }
+        for (int i = 0; i < count; i++) {
+            mEntries.add(new Entry(buffer.getInt(), buffer.getInt(), buffer.getLong(),
+                    buffer.getLong(), buffer.getLong(), buffer.getInt()));
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it into place.
+     */
+    public void save() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mEntries.size() * ENTRY_SIZE + 4);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(mEntries.size());
+        for (Entry entry : mEntries) {
+            buffer.putInt(entry.mId).putInt(entry.mSession).putLong(entry.mStartTime)
+                    .putLong(entry.mFirstTime).putLong(entry.mLastTime).putInt(entry.mCount);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + mFile);
+        }
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    public Entry last() {
+        return mEntries.isEmpty() ? null : mEntries.get(mEntries.size() - 1);
+    }
+
+    public Entry add(int session, long startTime) {
+        Entry last = last();
+        return add(last == null ? 0 : last.mId + 1, session, startTime);
+    }
+
+    Entry add(int id, int session, long startTime) {
+        Entry entry = new Entry(id, session, startTime, 0, 0, 0);
+        mEntries.add(entry);
+        return entry;
+    }
+
+    public void clear() {
+        mEntries.clear();
+    }
+
+    public void remove(Entry entry) {
+        mEntries.remove(entry);
+    }
+
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    /**
+     * Copies of the segments belonging to {@code session}, oldest first.
+     */
+    public List<Entry> segmentsOf(int session) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.mSession == session) {
+                result.add(entry.copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies of the segments holding samples in the wall-clock range {@code [from, to]}.
+     */
+    public List<Entry> segmentsBetween(long from, long to) {
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : mEntries) {
+            if (entry.overlaps(from, to)) {
+                result.add(entry.copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One summary per session that holds samples, oldest first.
+     */
+    public List<Session> sessions() {
+        List<Session> sessions = new ArrayList<>();
+        int id = -1;
+        long first = 0;
+        long last = 0;
+        int count = 0;
+        for (Entry entry : mEntries) {
+            if (entry.mCount == 0) {
+                continue;
+            }
+            if (entry.mSession != id) {
+                if (count > 0) {
+                    sessions.add(new Session(id, first, last, count));
+                }
+                id = entry.mSession;
+                first = entry.mFirstTime;
+                count = 0;
+            }
+            last = entry.mLastTime;
+            count += entry.mCount;
+        }
+        if (count > 0) {
+            sessions.add(new Session(id, first, last, count));
+        }
+        return sessions;
+    }
+}
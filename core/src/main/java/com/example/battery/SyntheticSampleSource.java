@@ -0,0 +1,131 @@
+package com.example.battery;
+
+import java.util.Random;
+
+/**
+ * Generates a realistic battery trace of any length from a seed, for load tests and
+ * benchmarks at sizes that would take months to record.
+ * <p>
+ * A 4000 mAh battery is drained by a screen that turns on for minutes and off for most of
+ * an hour, with a wandering load while it is on, and charged at a constant current up to
+ * 80% that tapers towards full, from a random low level up to a random high one. The level
+ * follows the charge that went in and out, voltage the level and the load, temperature
+ * the power with a lag of minutes. Samples are spaced as {@link SamplingPolicy} would poll,
+ * with a little jitter, and the same seed always gives the same trace.
+ */
+public class SyntheticSampleSource extends PacedSampleSource {
+
+    static final int CAPACITY_MAH = 4000;
+    // Same values as BatteryManager.BATTERY_STATUS_*
+    static final int STATUS_CHARGING = 2;
+    static final int STATUS_DISCHARGING = 3;
+    static final int STATUS_FULL = 5;
+    private static final long SCREEN_ON_MEAN_MS = 6 * 60_000;
+    private static final long SCREEN_OFF_MEAN_MS = 45 * 60_000;
+    // Time constant of the temperature following the power
+    private static final double THERMAL_MS = 10 * 60_000;
+
+    private final SamplingPolicy mPolicy = SamplingPolicy.defaults();
+    private final Random mRandom;
+    private final long mCount;
+    private long mGenerated;
+    private long mTime;
+    private double mChargeMah = CAPACITY_MAH * 0.9;
+    private double mTemperature = 280;
+    private boolean mScreenOn = true;
+    private long mScreenOnTime;
+    private long mNextScreenFlip;
+    private double mLoad = 500;
+    private boolean mCharging;
+    private int mPlugLevel;
+    private int mUnplugLevel;
+
+    /**
+     * @param count the number of samples to generate, or {@link Long#MAX_VALUE} for no end
+     * @param speed how many times faster than real time to deliver them, see
+     *              {@link PacedSampleSource}
+     */
+    public SyntheticSampleSource(long seed, long count, double speed) {
+        super(speed);
+        mRandom = new Random(seed);
+        mCount = count;
+        mNextScreenFlip = exponential(SCREEN_ON_MEAN_MS);
+        mPlugLevel = 10 + mRandom.nextInt(20);
+        mUnplugLevel = 80 + mRandom.nextInt(21);
+    }
+
+    /**
+     * A trace of {@code count} samples, pastTime starting near 0.
+     */
+    public static SampleStore generate(int count, long seed) {
+        SyntheticSampleSource source = new SyntheticSampleSource(seed, count, Double.POSITIVE_INFINITY);
+        SampleStore store = new SampleStore(count);
+        while (source.mGenerated < count) {
+            source.next(store);
+        }
+        return store;
+    }
+
+    @Override
+    int fill(SampleStore chunk) {
+        int filled = 0;
+        while (filled < CHUNK_SIZE && mGenerated < mCount) {
+            next(chunk);
+            filled++;
+        }
+        return filled;
+    }
+
+    private void next(SampleStore out) {
+        long interval = mPolicy.getInterval(mScreenOn, mCharging);
+        long step = interval + (long) (interval * 0.01 * (mRandom.nextDouble() * 2 - 1));
+        mTime += step;
+        // The step is credited to the screen state it was spent in
+        if (mScreenOn) {
+            mScreenOnTime += step;
+        }
+        if (mTime >= mNextScreenFlip) {
+            mScreenOn = !mScreenOn;
+            mNextScreenFlip = mTime + exponential(mScreenOn ? SCREEN_ON_MEAN_MS : SCREEN_OFF_MEAN_MS);
+        }
+
+        int level = level();
+        int current;
+        if (mCharging) {
+            // Constant current, then tapering off towards full
+            current = level < 80 ? 2500 : Math.max(50, 2500 - (level - 80) * 120);
+        } else if (mScreenOn) {
+            mLoad = Math.max(150, Math.min(1500, mLoad + mRandom.nextGaussian() * 40));
+            current = -(int) mLoad;
+        } else {
+            current = -(20 + mRandom.nextInt(30));
+        }
+        mChargeMah = Math.max(0, Math.min(CAPACITY_MAH, mChargeMah + current * step / 3.6e6));
+        level = level();
+        // As the charger reported it over the step; plugging in shows from the next one
+        int status = !mCharging ? STATUS_DISCHARGING : level >= 100 ? STATUS_FULL : STATUS_CHARGING;
+        if (!mCharging && level <= mPlugLevel) {
+            mCharging = true;
+            mUnplugLevel = 80 + mRandom.nextInt(21);
+        } else if (mCharging && level >= mUnplugLevel) {
+            mCharging = false;
+            mPlugLevel = 10 + mRandom.nextInt(20);
+        }
+
+        int voltage = (int) (3450 + level * 7.5 + current * 0.08 + mRandom.nextInt(7) - 3);
+        double power = Math.abs((double) voltage * current) / 1e6;
+        double target = 250 + power * 25;
+        mTemperature += (target - mTemperature) * Math.min(1, step / THERMAL_MS);
+        out.add(mTime, level, 100, (int) Math.round(mTemperature), voltage, status, mScreenOn,
+                current, mScreenOnTime);
+        mGenerated++;
+    }
+
+    private int level() {
+        return (int) Math.round(mChargeMah * 100 / CAPACITY_MAH);
+    }
+
+    private long exponential(long mean) {
+        return (long) (-Math.log(1 - mRandom.nextDouble()) * mean);
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppEnergyTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void attributesIntervalsToWhateverWasInFront() {
+        PackageTable packages = new PackageTable();
+        int maps = packages.intern("com.example.maps");
+        int chat = packages.intern("com.example.chat");
+        assertEquals(maps, packages.intern("com.example.maps"));
+
+        AppEnergy energy = new AppEnergy();
+        // Nothing known in front yet
+        energy.onSample(0, 4000, 500, true);
+        energy.onForeground(10_000, maps);
+        // 20 s of maps at 2 W, then 30 s of chat at 2 W and 10 s at 1 W
+        energy.onForeground(30_000, chat);
+        energy.onSample(60_000, 4000, 250, true);
+        energy.onSample(70_000, 4000, 250, false);
+        // Screen off at 1 W for 60 s, then a gap too long to credit
+        energy.onSample(130_000, 4000, 250, false);
+        energy.onSample(130_000 + BatteryStats.MAX_GAP_MS + 1, 4000, 250, true);
+
+        List<AppEnergy.Usage> usage = energy.getUsage(packages);
+        assertEquals(3, usage.size());
+        AppEnergy.Usage top = usage.get(0);
+        assertEquals(chat, top.mAppId);
+        assertEquals("com.example.chat", top.mPackageName);
+        assertEquals(40_000, top.mDurationMs);
+        // 2 W * 30 s + 1 W * 10 s = 70 J
+        assertEquals(19_444, top.mEnergyUwh, 2);
+        AppEnergy.Usage off = usage.get(1);
+        assertEquals(AppEnergy.SCREEN_OFF, off.mAppId);
+        assertEquals(60_000, off.mDurationMs);
+        assertEquals(1f, off.getAveragePower(), 0.01f);
+        assertEquals(maps, usage.get(2).mAppId);
+        assertEquals(2f, usage.get(2).getAveragePower(), 0.01f);
+    }
+
+    @Test
+    public void timelineSurvivesReopenAndReplays() throws Exception {
+        File dir = mFolder.newFolder();
+        PackageTable packages = new PackageTable();
+        AppTimeline timeline = new AppTimeline(dir, packages);
+        timeline.open();
+        timeline.append(1_000, packages.intern("a"));
+        timeline.append(5_000, packages.intern("b"));
+        timeline.append(9_000, packages.intern("a"));
+        // A torn record after the last intact one
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, AppTimeline.TIMELINE_FILENAME), "rw")) {
+            file.seek(file.length());
+            file.write(new byte[7]);
+        }
+
+        PackageTable reloaded = new PackageTable();
+        AppTimeline reopened = new AppTimeline(dir, reloaded);
+        reopened.open();
+        assertEquals(2, reloaded.size());
+        assertEquals("b", reloaded.name(1));
+        AppTimeline.Transitions transitions = reopened.read(6_000, 20_000);
+        // The change before the range says who was in front when it starts
+        assertEquals(2, transitions.mSize);
+        assertEquals(5_000, transitions.mTimes[0]);
+        assertEquals(1, transitions.mAppIds[0]);
+
+        SampleStore samples = new SampleStore();
+        for (long t = 0; t <= 12_000; t += 1_000) {
+            samples.add(t, 50, 100, 300, 4000, 3, true, 250, 0);
+        }
+        AppEnergy energy = new AppEnergy();
+        energy.replay(samples.view(), 0, samples.size(), 0, reopened.read(0, 12_000));
+        List<AppEnergy.Usage> usage = energy.getUsage(reloaded);
+        assertEquals(2, usage.size());
+        assertEquals("a", usage.get(0).mPackageName);
+        assertEquals(4_000 + 3_000, usage.get(0).mDurationMs);
+        assertEquals(4_000, usage.get(1).mDurationMs);
+
+        reopened.prune(8_000);
+        assertEquals(2, reopened.read(0, Long.MAX_VALUE).mSize);
+    }
+}
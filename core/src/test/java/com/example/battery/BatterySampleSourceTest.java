@@ -0,0 +1,119 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class BatterySampleSourceTest {
+
+    /**
+     * Collects what a source delivers into a store, pastTime being the delivered time.
+     */
+    private static BatterySampleSource.Listener into(SampleStore store) {
+        return (time, level, scale, temperature, voltage, status, isScreenOn, current) ->
+                store.add(time, level, scale, temperature, voltage, status, isScreenOn, current, 0);
+    }
+
+    @Test
+    public void synthetic_isRepeatableAndCyclesTheBattery() {
+        SampleStore.View samples = SyntheticSampleSource.generate(20_000, 7).view();
+        SampleStore.View again = SyntheticSampleSource.generate(20_000, 7).view();
+        assertEquals(20_000, samples.size());
+        ChargeSessions.Detector detector = new ChargeSessions.Detector();
+        int sessions = 0;
+        boolean screenOn = false;
+        boolean screenOff = false;
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(samples.getPastTime(i), again.getPastTime(i));
+            assertEquals(samples.getCurrent(i), again.getCurrent(i));
+            if (i > 0) {
+                assertTrue(samples.getPastTime(i) > samples.getPastTime(i - 1));
+            }
+            assertTrue(samples.getLevel(i) >= 0 && samples.getLevel(i) <= 100);
+            screenOn |= samples.isScreenOn(i);
+            screenOff |= !samples.isScreenOn(i);
+            if (detector.add(samples.getPastTime(i), samples.getLevel(i), samples.getScale(i),
+                    samples.getTemperature(i), samples.getVoltage(i), samples.getStatus(i),
+                    samples.isScreenOn(i), samples.getCurrent(i)) != null) {
+                sessions++;
+            }
+        }
+        assertTrue(screenOn && screenOff);
+        // Several days of use, so several times plugged in and out
+        assertTrue("sessions: " + sessions, sessions >= 4);
+        assertNotEquals(samples.getCurrent(100),
+                SyntheticSampleSource.generate(200, 8).view().getCurrent(100));
+    }
+
+    @Test
+    public void play_deliversOnTheWallClock() {
+        SampleStore.View expected = SyntheticSampleSource.generate(3000, 3).view();
+        SampleStore delivered = new SampleStore();
+        long before = System.currentTimeMillis();
+        long count = new SyntheticSampleSource(3, 3000, Double.POSITIVE_INFINITY)
+                .play(into(delivered));
+        long after = System.currentTimeMillis();
+        assertEquals(3000, count);
+
+        // Days of recorded time, delivered within the few ms it took
+        SampleStore.View samples = delivered.view();
+        for (int i = 0; i < samples.size(); i++) {
+            assertTrue(samples.getPastTime(i) >= before && samples.getPastTime(i) <= after);
+            if (i > 0) {
+                assertTrue(samples.getPastTime(i) >= samples.getPastTime(i - 1));
+            }
+            assertEquals(expected.getLevel(i), samples.getLevel(i));
+            assertEquals(expected.getStatus(i), samples.getStatus(i));
+        }
+    }
+
+    @Test
+    public void replay_roundTripsAnExport() throws Exception {
+        SampleStore.View recorded = SyntheticSampleSource.generate(2500, 11).view();
+        long startTime = 1_700_000_000_000L;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleExporter exporter = new SampleExporter(out, SampleExporter.FORMAT_BINARY);
+        exporter.export(recorded, startTime, Long.MIN_VALUE, Long.MAX_VALUE);
+        exporter.finish();
+
+        SampleStore delivered = new SampleStore();
+        ReplaySampleSource source = ReplaySampleSource.fromExport(
+                new ByteArrayInputStream(out.toByteArray()), Double.POSITIVE_INFINITY);
+        assertEquals(2500, source.play(into(delivered)));
+
+        SampleStore.View samples = delivered.view();
+        for (int i = 0; i < samples.size(); i++) {
+            assertEquals(recorded.getLevel(i), samples.getLevel(i));
+            assertEquals(recorded.getTemperature(i), samples.getTemperature(i));
+            assertEquals(recorded.getVoltage(i), samples.getVoltage(i));
+            assertEquals(recorded.isScreenOn(i), samples.isScreenOn(i));
+            assertEquals(recorded.getCurrent(i), samples.getCurrent(i));
+        }
+    }
+
+    @Test
+    public void start_pacesAndStops() throws Exception {
+        // Screen-on samples are seconds apart, so at 1000× a few ms each
+        SyntheticSampleSource source = new SyntheticSampleSource(5, Long.MAX_VALUE, 1000);
+        CountDownLatch received = new CountDownLatch(5);
+        AtomicLong count = new AtomicLong();
+        source.start((time, level, scale, temperature, voltage, status, isScreenOn, current) -> {
+            count.incrementAndGet();
+            received.countDown();
+        });
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        source.stop();
+        Thread.sleep(50);
+        long stopped = count.get();
+        Thread.sleep(100);
+        assertEquals(stopped, count.get());
+        // Paced, so nowhere near what the generator could have produced meanwhile
+        assertTrue("delivered: " + stopped, stopped < 1000);
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatteryStatsTest {
+
+    @Test
+    public void add_weightsByRealTimeAndScreenState() {
+        BatteryStats stats = new BatteryStats();
+        stats.add(0, 100, 100, 300, 4000, true, 500);
+        // 10 s on at 4 V * 500 mA = 2 W, one point lost, closed by the screen turning off
+        stats.add(10_000, 99, 100, 320, 4000, false, 500);
+        // 30 s off at 1 W
+        stats.add(40_000, 99, 100, 280, 4000, false, 250);
+        // A gap of an hour is not credited to either state
+        stats.add(40_000 + 3600_000, 90, 100, 300, 3800, false, 250);
+
+        BatteryStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(4, snapshot.mCount);
+        assertEquals(10_000, snapshot.mScreenOnMs);
+        assertEquals(30_000, snapshot.mScreenOffMs);
+        assertEquals(2f, snapshot.getAveragePowerOn(), 1e-4);
+        assertEquals(1f, snapshot.getAveragePowerOff(), 1e-4);
+        assertEquals(1f, snapshot.mLevelDropOn, 1e-4);
+        assertEquals(0f, snapshot.mLevelDropOff, 1e-4);
+        assertEquals(360f, snapshot.getDropRateOn(), 1e-2);
+        assertEquals(280, snapshot.mMinTemperature);
+        assertEquals(320, snapshot.mMaxTemperature);
+        assertEquals(300f, snapshot.mMeanTemperature, 1e-4);
+        assertEquals(3800, snapshot.mMinVoltage);
+        assertEquals(90f, snapshot.mLastLevel, 1e-4);
+    }
+
+    @Test
+    public void reset_startsOver() {
+        BatteryStats stats = new BatteryStats();
+        stats.add(0, 50, 100, 300, 4000, true, 500);
+        stats.add(5000, 49, 100, 300, 4000, true, 500);
+        stats.reset();
+        stats.add(100_000, 80, 100, 250, 4100, false, 100);
+
+        BatteryStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(1, snapshot.mCount);
+        assertEquals(0, snapshot.mScreenOnMs);
+        assertEquals(80f, snapshot.mFirstLevel, 1e-4);
+        assertEquals(250, snapshot.mMaxTemperature);
+    }
+}
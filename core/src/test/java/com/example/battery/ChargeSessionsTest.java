@@ -0,0 +1,143 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ChargeSessionsTest {
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DISCHARGING = 3;
+    private static final int CHARGING = 2;
+    private static final int FULL = 5;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 60 minutes discharging from 80% to 50%, 30 charging back to 80%, then 10 more
+     * discharging; the screen is on for the first 30 minutes.
+     */
+    private static List<BatteryData> cycle() {
+        List<BatteryData> samples = new ArrayList<>();
+        for (int i = 0; i <= 100; i++) {
+            int level = i <= 60 ? 80 - i / 2 : i <= 90 ? 50 + (i - 60) : 80 - (i - 90) / 2;
+            int status = i < 60 || i > 90 ? DISCHARGING : i == 90 ? FULL : CHARGING;
+            int current = status == DISCHARGING ? -300 : 1000;
+            samples.add(new BatteryData(i * MINUTE_MS, level, 100, 300 + (i == 75 ? 80 : 0),
+                    4000, status, i < 30, current, 0));
+        }
+        return samples;
+    }
+
+    @Test
+    public void detector_splitsAtChargingTransitions() {
+        ChargeSessions.Detector detector = new ChargeSessions.Detector();
+        List<ChargeSessions.Summary> closed = new ArrayList<>();
+        for (BatteryData sample : cycle()) {
+            ChargeSessions.Summary summary = detector.add(sample, 0);
+            if (summary != null) {
+                closed.add(summary);
+            }
+        }
+        assertEquals(2, closed.size());
+
+        ChargeSessions.Summary discharge = closed.get(0);
+        assertFalse(discharge.mCharging);
+        assertEquals(0, discharge.mStart);
+        // Ends at the sample that plugged the charger in, which closes its last interval
+        assertEquals(60 * MINUTE_MS, discharge.getDurationMs());
+        assertEquals(60, discharge.mCount);
+        assertEquals(-30f, discharge.getLevelChange(), 0.01f);
+        assertEquals(0.5f, discharge.getScreenOnShare(), 0.001f);
+        // 4 V * -300 mA, except the last minute at the charging sample's readings
+        assertEquals((59 * -1.2f + 4f) / 60, discharge.getAveragePower(), 0.01f);
+        assertEquals(300, discharge.mMaxTemperature);
+
+        // FULL counts as charging, so the top-up is a single session
+        ChargeSessions.Summary charge = closed.get(1);
+        assertTrue(charge.mCharging);
+        assertEquals(60 * MINUTE_MS, charge.mStart);
+        assertEquals(91 * MINUTE_MS, charge.mEnd);
+        assertEquals(30f, charge.getLevelChange(), 0.01f);
+        assertEquals(380, charge.mMaxTemperature);
+        assertEquals(0f, charge.getScreenOnShare(), 0.001f);
+
+        ChargeSessions.Summary current = detector.current();
+        assertFalse(current.mCharging);
+        assertEquals(10, current.mCount);
+        assertEquals(9 * MINUTE_MS, current.getDurationMs());
+    }
+
+    @Test
+    public void summariesSurviveReopenAndTornTail() throws Exception {
+        File file = new File(mFolder.getRoot(), "sessions.bin");
+        ChargeSessions sessions = new ChargeSessions(file);
+        assertFalse(sessions.open());
+        SampleStore samples = new SampleStore();
+        for (BatteryData sample : cycle()) {
+            samples.add(sample);
+        }
+        SampleStore head = new SampleStore();
+        head.addAll(samples.view(), 0, 95);
+        sessions.add(head.view(), 0);
+        sessions.flush();
+
+        // A restart keeps extending the running session instead of starting another
+        ChargeSessions reopened = new ChargeSessions(file);
+        assertTrue(reopened.open());
+        SampleStore tail = new SampleStore();
+        tail.addAll(samples.view(), 95, samples.size());
+        reopened.add(tail.view(), 0);
+        reopened.flush();
+        List<ChargeSessions.Summary> read = new ArrayList<>();
+        assertEquals(3, reopened.read(read));
+        assertEquals(10, read.get(2).mCount);
+        assertEquals(91 * MINUTE_MS, read.get(2).mStart);
+
+        // A torn record is dropped and the previous session becomes the running one
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        ChargeSessions torn = new ChargeSessions(file);
+        assertTrue(torn.open());
+        assertTrue(torn.current().mCharging);
+        read.clear();
+        assertEquals(2, torn.read(read));
+    }
+
+    @Test
+    public void historyKeepsAndRebuildsSummaries() throws Exception {
+        File dir = mFolder.newFolder();
+        long startTime = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(3);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(startTime);
+        history.append(cycle());
+        List<ChargeSessions.Summary> sessions = history.chargeSessions();
+        assertEquals(3, sessions.size());
+        assertEquals(startTime + 60 * MINUTE_MS, sessions.get(1).mStart);
+
+        // Lost summaries are refilled from the raw history
+        assertTrue(new File(dir, SampleHistory.CHARGE_SESSIONS_FILENAME).delete());
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        assertNull(reopened.currentChargeSession());
+        reopened.rebuildSummaries();
+        List<ChargeSessions.Summary> rebuilt = reopened.chargeSessions();
+        assertEquals(3, rebuilt.size());
+        for (int i = 0; i < rebuilt.size(); i++) {
+            assertEquals(sessions.get(i).mStart, rebuilt.get(i).mStart);
+            assertEquals(sessions.get(i).mEnergyUwh, rebuilt.get(i).mEnergyUwh);
+        }
+        assertEquals(10, reopened.currentChargeSession().mCount);
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChartDecimatorTest {
+
+    @Test
+    public void decimate_keepsEverythingBelowThreshold() {
+        SampleStore store = SampleCodecTest.samples(100, 4);
+        assertEquals(100, ChartDecimator.decimate(store.view(), 500).length);
+    }
+
+    @Test
+    public void decimate_boundsPointsAndKeepsScreenBoundaries() {
+        SampleStore.View samples = SampleCodecTest.samples(20_000, 5).view();
+        int[] points = ChartDecimator.decimate(samples, 1000);
+
+        int runs = 1;
+        for (int i = 1; i < samples.size(); i++) {
+            if (samples.isScreenOn(i) != samples.isScreenOn(i - 1)) {
+                runs++;
+            }
+        }
+        assertTrue(points.length <= 1000 + 2 * runs);
+        assertEquals(0, points[0]);
+        assertEquals(samples.size() - 1, points[points.length - 1]);
+
+        // Both sides of every screen flip survive, so the drawn segments meet where they did
+        boolean[] kept = new boolean[samples.size()];
+        for (int p = 0; p < points.length; p++) {
+            kept[points[p]] = true;
+            if (p > 0) {
+                assertTrue(points[p] > points[p - 1]);
+            }
+        }
+        for (int i = 1; i < samples.size(); i++) {
+            if (samples.isScreenOn(i) != samples.isScreenOn(i - 1)) {
+                assertTrue(kept[i - 1] && kept[i]);
+            }
+        }
+    }
+}
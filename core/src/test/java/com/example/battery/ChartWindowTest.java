@@ -0,0 +1,69 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChartWindowTest {
+
+    @Test
+    public void of_loadsVisibleRangeWithMargin() {
+        // 5 s apart, about 14 days
+        SampleStore.View samples = SampleCodecTest.samples(250_000, 6).view();
+        long from = samples.getPastTime(100_000);
+        long to = samples.getPastTime(101_000);
+        ChartWindow window = ChartWindow.of(samples, from, to, 1000);
+
+        long margin = (long) ((to - from) * ChartWindow.MARGIN);
+        assertTrue(samples.getPastTime(window.mStart) < from - margin);
+        assertTrue(samples.getPastTime(window.mStart + 1) >= from - margin);
+        assertTrue(samples.getPastTime(window.mEnd - 1) > to + margin);
+        assertTrue(samples.getPastTime(window.mEnd - 2) <= to + margin);
+        assertTrue(window.mEnd - window.mStart < 2_500);
+
+        int[] points = window.decimate(samples);
+        assertEquals(window.mStart, points[0]);
+        assertEquals(window.mEnd - 1, points[points.length - 1]);
+    }
+
+    @Test
+    public void of_boundsPointsByScreenWidthNotSeriesLength() {
+        SampleStore.View samples = SampleCodecTest.samples(250_000, 6).view();
+        long from = samples.getPastTime(10_000);
+        long to = samples.getPastTime(60_000);
+        ChartWindow window = ChartWindow.of(samples, from, to, 1000);
+
+        int runs = 1;
+        for (int i = window.mStart + 1; i < window.mEnd; i++) {
+            if (samples.isScreenOn(i) != samples.isScreenOn(i - 1)) {
+                runs++;
+            }
+        }
+        assertTrue(window.decimate(samples).length <= window.mThreshold + 2 * runs);
+        assertEquals(2000, window.mThreshold);
+    }
+
+    @Test
+    public void fits_untilViewLeavesWindowOrZoomChanges() {
+        SampleStore.View samples = SampleCodecTest.samples(100_000, 6).view();
+        long from = samples.getPastTime(40_000);
+        long to = samples.getPastTime(50_000);
+        long span = to - from;
+        ChartWindow window = ChartWindow.of(samples, from, to, 1000);
+
+        assertTrue(window.fits(samples, from, to));
+        assertTrue(window.fits(samples, from + span / 4, to + span / 4));
+        assertFalse(window.fits(samples, from + span, to + span));
+        assertFalse(window.fits(samples, from, from + span / 2));
+        assertFalse(window.fits(samples, from - span, to + span));
+    }
+
+    @Test
+    public void of_wholeSeriesIsOpenEnded() {
+        SampleStore.View samples = SampleCodecTest.samples(1000, 6).view();
+        ChartWindow window = ChartWindow.of(samples, Long.MIN_VALUE, Long.MAX_VALUE, 500);
+        assertEquals(0, window.mStart);
+        assertEquals(samples.size(), window.mEnd);
+        assertTrue(window.fits(samples, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+}
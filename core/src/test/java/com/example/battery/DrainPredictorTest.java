@@ -0,0 +1,86 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DrainPredictorTest {
+
+    private static final long MINUTE_MS = 60_000;
+
+    /**
+     * Feeds whole-percent levels draining at {@code rate} percent per hour, one sample every
+     * 5 s, and returns the time after the last sample.
+     */
+    private static long drain(DrainPredictor predictor, long from, long duration, double startLevel,
+                              double rate, boolean isScreenOn) {
+        long t = from;
+        for (; t < from + duration; t += 5000) {
+            double level = startLevel - rate * (t - from) / 3600_000.0;
+            predictor.add(t, (float) Math.ceil(level), isScreenOn, false);
+        }
+        return t;
+    }
+
+    @Test
+    public void followsTheRateOfTheCurrentScreenState() {
+        DrainPredictor predictor = new DrainPredictor();
+        assertNull(predictor.estimate());
+
+        long t = drain(predictor, 0, 180 * MINUTE_MS, 90, 2, false);
+        assertEquals(2f, predictor.getDrainRate(false), 0.5f);
+        assertTrue(Float.isNaN(predictor.getDrainRate(true)));
+        DrainPredictor.Estimate off = predictor.estimate();
+        assertEquals(off.mLevel / off.mDrainRate, off.mHours, 1e-3f);
+        assertTrue(off.mLowHours <= off.mHours && off.mHours <= off.mHighHours);
+
+        // Switching to a heavy workload moves the estimate within a few points
+        drain(predictor, t, 60 * MINUTE_MS, 84, 12, true);
+        assertEquals(12f, predictor.getDrainRate(true), 2f);
+        assertEquals(2f, predictor.getDrainRate(false), 0.5f);
+        DrainPredictor.Estimate on = predictor.estimate();
+        assertEquals(12f, on.mDrainRate, 2f);
+        assertTrue(on.mHours < off.mHours / 3);
+        assertTrue(on.mLowHours <= on.mHours && on.mHours <= on.mHighHours);
+    }
+
+    @Test
+    public void chargingRestartsTheFitButKeepsTheRates() {
+        DrainPredictor predictor = new DrainPredictor();
+        long t = drain(predictor, 0, 60 * MINUTE_MS, 60, 10, true);
+        assertFalse(Float.isNaN(predictor.getFittedRate()));
+        for (int level = 50; level < 80; level++, t += MINUTE_MS) {
+            predictor.add(t, level, true, true);
+        }
+        assertTrue(Float.isNaN(predictor.getFittedRate()));
+        assertNull(predictor.estimate());
+
+        drain(predictor, t, 30 * MINUTE_MS, 80, 10, true);
+        assertEquals(10f, predictor.getFittedRate(), 3f);
+        assertEquals(10f, predictor.estimate().mDrainRate, 2f);
+    }
+
+    @Test
+    public void flatLevelIsNotDraining() {
+        DrainPredictor predictor = new DrainPredictor();
+        drain(predictor, 0, 60 * MINUTE_MS, 100, 0, true);
+        assertNull(predictor.estimate());
+    }
+
+    @Test
+    public void codecFixtureStaysConsistent() {
+        SampleStore.View trace = SampleCodecTest.samples(5_000, 7).view();
+        DrainPredictor predictor = new DrainPredictor();
+        for (int i = 0; i < trace.size(); i++) {
+            predictor.add(trace, i);
+            DrainPredictor.Estimate estimate = predictor.estimate();
+            if (estimate != null) {
+                assertFalse(Float.isNaN(estimate.mHours));
+                assertTrue(estimate.mLowHours <= estimate.mHours + 1e-3f);
+                assertTrue(estimate.mHours <= estimate.mHighHours + 1e-3f);
+            }
+        }
+        // The trace loses about one point every 60 samples of 5 s
+        assertEquals(12f, predictor.getFittedRate(), 4f);
+    }
+}
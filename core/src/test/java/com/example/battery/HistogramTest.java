@@ -0,0 +1,58 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueInOrder() {
+        for (long v = 1; v < 1L << 40; v = v < 100_000 ? v + 1 : v + v / 1000 + 1) {
+            int i = Histogram.index(v);
+            assertTrue(v <= Histogram.upperBound(i));
+            assertTrue(v > Histogram.upperBound(i - 1));
+            // Within 1/16 of the value
+            assertTrue(Histogram.upperBound(i) - v <= v / 16);
+        }
+        assertEquals(Histogram.BUCKETS - 1, Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentiles_withinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int v = 1; v <= 10_000; v++) {
+            histogram.record(v);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertEquals(10_000, histogram.getMax());
+        assertEquals(5000, histogram.getValueAtPercentile(50), 5000 / 16);
+        assertEquals(9900, histogram.getValueAtPercentile(99), 9900 / 16);
+        assertEquals(10_000, histogram.getValueAtPercentile(100));
+        assertEquals(0, new Histogram().getValueAtPercentile(50));
+    }
+
+    @Test
+    public void removeGauge_onlyRemovesTheSameSupplier() {
+        LongSupplier first = () -> 1;
+        LongSupplier second = () -> 2;
+        Metrics.get().gauge("test.gauge", first);
+        Metrics.get().gauge("test.gauge", second);
+        // A stale owner does not unregister its successor
+        Metrics.get().removeGauge("test.gauge", first);
+        assertTrue(dump().contains("test.gauge"));
+        Metrics.get().removeGauge("test.gauge", second);
+        assertFalse(dump().contains("test.gauge"));
+    }
+
+    private static String dump() {
+        StringWriter out = new StringWriter();
+        Metrics.get().dump(new PrintWriter(out));
+        return out.toString();
+    }
+}
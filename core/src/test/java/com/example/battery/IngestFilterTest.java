@@ -0,0 +1,38 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IngestFilterTest {
+
+    private static final long HEARTBEAT_MS = 300_000;
+
+    @Test
+    public void dropsNoiseAndKeepsChanges() {
+        IngestFilter filter = new IngestFilter(HEARTBEAT_MS);
+        assertTrue(filter.accept(0, 80, 100, 300, 4000, 3, true, -300));
+        // Voltage and current jitter within their bands
+        assertFalse(filter.accept(5_000, 80, 100, 300, 4008, 3, true, -315));
+        assertFalse(filter.accept(10_000, 80, 100, 300, 3992, 3, true, -290));
+        assertTrue(filter.accept(15_000, 80, 100, 300, 3985, 3, true, -300));
+        assertTrue(filter.accept(20_000, 79, 100, 300, 3985, 3, true, -300));
+        assertTrue(filter.accept(25_000, 79, 100, 301, 3985, 3, true, -300));
+        assertTrue(filter.accept(30_000, 79, 100, 301, 3985, 3, false, -300));
+        assertTrue(filter.accept(35_000, 79, 100, 301, 3985, 2, false, -300));
+        // Heavy loads get a relative band
+        assertTrue(filter.accept(40_000, 79, 100, 301, 3985, 2, false, -2000));
+        assertFalse(filter.accept(45_000, 79, 100, 301, 3985, 2, false, -2150));
+        assertTrue(filter.accept(50_000, 79, 100, 301, 3985, 2, false, -2250));
+    }
+
+    @Test
+    public void heartbeatAndResetForceASample() {
+        IngestFilter filter = new IngestFilter(HEARTBEAT_MS);
+        assertTrue(filter.accept(0, 80, 100, 300, 4000, 3, false, -30));
+        assertFalse(filter.accept(HEARTBEAT_MS - 1, 80, 100, 300, 4000, 3, false, -30));
+        assertTrue(filter.accept(HEARTBEAT_MS, 80, 100, 300, 4000, 3, false, -30));
+        filter.reset();
+        assertTrue(filter.accept(HEARTBEAT_MS + 1, 80, 100, 300, 4000, 3, false, -30));
+    }
+}
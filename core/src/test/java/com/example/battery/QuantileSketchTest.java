@@ -0,0 +1,104 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class QuantileSketchTest {
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void percentilesWithinOneBin_andMergeExactly() {
+        Random random = new Random(7);
+        int[] values = new int[20_000];
+        QuantileSketch first = new QuantileSketch(0, 5);
+        QuantileSketch second = new QuantileSketch(0, 5);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 300 + (int) (random.nextGaussian() * 40);
+            (i % 2 == 0 ? first : second).add(values[i]);
+        }
+        QuantileSketch merged = first.copy();
+        merged.add(second);
+        Arrays.sort(values);
+
+        assertEquals(values.length, merged.getCount());
+        assertEquals(values[0], merged.getMin());
+        assertEquals(values[values.length - 1], merged.getMax());
+        for (double p : new double[]{1, 50, 95, 99}) {
+            int exact = values[(int) Math.ceil(values.length * p / 100) - 1];
+            assertEquals("p" + p, exact, merged.getValueAtPercentile(p), 5);
+        }
+        assertEquals(values[values.length - 1], merged.getValueAtPercentile(100), 0);
+
+        // Out of range values land in the edge bins but keep exact extremes
+        QuantileSketch clamped = new QuantileSketch(0, 5);
+        clamped.add(-50);
+        clamped.add(10_000);
+        assertEquals(-50, clamped.getValueAtPercentile(0), 0);
+        assertEquals(10_000, clamped.getValueAtPercentile(100), 0);
+    }
+
+    @Test
+    public void distributions_countPowerOnlyWhileNotCharging() {
+        SampleDistributions distributions = new SampleDistributions();
+        distributions.add(350, 4000, -500, 3);
+        distributions.add(360, 4200, 1500, 2);
+        assertEquals(2, distributions.getTemperature().getCount());
+        assertEquals(1, distributions.getPower().getCount());
+        assertEquals(2000, distributions.getPower().getValueAtPercentile(50), 0);
+    }
+
+    @Test
+    public void historyPersistsAndRebuildsHourlySketches() throws Exception {
+        File dir = mFolder.newFolder();
+        long startTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(startTime);
+        List<BatteryData> samples = new ArrayList<>();
+        SampleDistributions exact = new SampleDistributions();
+        for (int i = 0; i < 24 * 60; i++) {
+            BatteryData sample = new BatteryData(i * MINUTE_MS, 80, 100, 250 + i % 200, 3800 + i % 300,
+                    3, true, -200 - i % 500, 0);
+            samples.add(sample);
+            exact.add(sample);
+        }
+        history.append(samples);
+
+        SampleDistributions merged = history.distributionsBetween(startTime,
+                startTime + samples.size() * MINUTE_MS);
+        assertEquals(samples.size(), merged.getTemperature().getCount());
+        for (double p : new double[]{50, 95, 99}) {
+            assertEquals(exact.getTemperature().getValueAtPercentile(p),
+                    merged.getTemperature().getValueAtPercentile(p), 0.01f);
+            assertEquals(exact.getPower().getValueAtPercentile(p),
+                    merged.getPower().getValueAtPercentile(p), 0.01f);
+        }
+
+        // Lost sketches are refilled from the raw history
+        for (File file : dir.listFiles((d, name) -> name.startsWith("distribution_"))) {
+            assertTrue(file.delete());
+        }
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        reopened.rebuildSummaries();
+        SampleDistributions rebuilt = reopened.distributionsBetween(startTime,
+                startTime + samples.size() * MINUTE_MS);
+        assertEquals(samples.size(), rebuilt.getVoltage().getCount());
+        assertEquals(exact.getVoltage().getValueAtPercentile(95),
+                rebuilt.getVoltage().getValueAtPercentile(95), 0.01f);
+    }
+}
@@ -0,0 +1,168 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RollupTierTest {
+
+    private static final long MINUTE_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void bucketsAggregateAndSurviveReopen() throws Exception {
+        File file = new File(mFolder.getRoot(), "tier.bin");
+        RollupTier tier = new RollupTier(file, HOUR_MS);
+        assertFalse(tier.open());
+        long start = tier.bucketStart(System.currentTimeMillis()) - 4 * HOUR_MS;
+        int[] values = new int[RollupTier.FIELDS];
+        for (int i = 0; i < 90; i++) {
+            values[RollupTier.LEVEL] = 9000 - i * 10;
+            values[RollupTier.TEMPERATURE] = 300 + i % 3;
+            values[RollupTier.VOLTAGE] = 4000;
+            values[RollupTier.CURRENT] = -300;
+            tier.add(start + i * MINUTE_MS, values, 3, i % 2 == 0);
+        }
+        tier.flush();
+
+        // A restart resumes the open bucket instead of starting a second one
+        RollupTier reopened = new RollupTier(file, HOUR_MS);
+        assertTrue(reopened.open());
+        values[RollupTier.LEVEL] = 7000;
+        reopened.add(start + 100 * MINUTE_MS, values, 3, false);
+        reopened.flush();
+
+        List<RollupTier.Bucket> buckets = new ArrayList<>();
+        assertEquals(2, reopened.read(start, start + 2 * HOUR_MS, buckets));
+        RollupTier.Bucket first = buckets.get(0);
+        assertEquals(start, first.mStart);
+        assertEquals(60, first.mCount);
+        assertEquals(30, first.mScreenOnCount);
+        assertEquals(9000, first.mFirstLevel);
+        assertEquals(8410, first.mLast[RollupTier.LEVEL]);
+        assertEquals(300, first.mMin[RollupTier.TEMPERATURE]);
+        assertEquals(302, first.mMax[RollupTier.TEMPERATURE]);
+        assertEquals(301f, first.getMean(RollupTier.TEMPERATURE), 0.01f);
+        RollupTier.Bucket second = buckets.get(1);
+        assertEquals(31, second.mCount);
+        assertEquals(40 * MINUTE_MS, second.mLastOffset);
+        assertEquals(7000, second.mLast[RollupTier.LEVEL]);
+
+        // Samples older than the open bucket are left out
+        reopened.add(start, values, 3, false);
+        reopened.flush();
+        buckets.clear();
+        reopened.read(start, start + 2 * HOUR_MS, buckets);
+        assertEquals(60, buckets.get(0).mCount);
+    }
+
+    @Test
+    public void prune_dropsOldBucketsAndKeepsAppending() throws Exception {
+        RollupTier tier = new RollupTier(new File(mFolder.getRoot(), "tier.bin"), HOUR_MS);
+        tier.open();
+        long start = tier.bucketStart(System.currentTimeMillis()) - 10 * HOUR_MS;
+        int[] values = {5000, 300, 4000, -300};
+        for (int i = 0; i < 10; i++) {
+            tier.add(start + i * HOUR_MS, values, 3, true);
+        }
+        tier.prune(start + 5 * HOUR_MS);
+        tier.add(start + 9 * HOUR_MS + MINUTE_MS, values, 3, true);
+        tier.flush();
+
+        List<RollupTier.Bucket> buckets = new ArrayList<>();
+        tier.read(0, Long.MAX_VALUE, buckets);
+        assertEquals(5, buckets.size());
+        assertEquals(start + 5 * HOUR_MS, buckets.get(0).mStart);
+        assertEquals(2, buckets.get(4).mCount);
+    }
+
+    @Test
+    public void historyRebuildsTiersAndSelectsCoarsestSufficient() throws Exception {
+        File dir = mFolder.newFolder();
+        long startTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(startTime);
+        List<BatteryData> samples = new ArrayList<>();
+        for (long t = 0; t < 2 * TimeUnit.DAYS.toMillis(1); t += MINUTE_MS) {
+            samples.add(new BatteryData(t, 80, 100, 300, 4000, 3, true, -300, 0));
+        }
+        history.append(samples);
+
+        // Lost tiers are refilled from the raw history
+        for (File file : dir.listFiles((d, name) -> name.startsWith("rollup_"))) {
+            assertTrue(file.delete());
+        }
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        reopened.rebuildSummaries();
+
+        long window = 2 * TimeUnit.DAYS.toMillis(1);
+        assertNull(reopened.selectRollup(window, 4000));
+        RollupTier tier = reopened.selectRollup(window, 48);
+        assertEquals(HOUR_MS, tier.getDuration());
+        assertEquals(TimeUnit.MINUTES.toMillis(15), reopened.selectRollup(window, 100).getDuration());
+
+        List<RollupTier.Bucket> buckets = new ArrayList<>();
+        tier.read(startTime, startTime + window, buckets);
+        int count = 0;
+        for (RollupTier.Bucket bucket : buckets) {
+            count += bucket.mCount;
+        }
+        assertEquals(samples.size(), count);
+
+        BatteryStats stats = new BatteryStats();
+        for (RollupTier.Bucket bucket : buckets) {
+            stats.add(bucket);
+        }
+        BatteryStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(samples.size(), snapshot.mCount);
+        assertEquals(window - MINUTE_MS, snapshot.mScreenOnMs, 2 * MINUTE_MS);
+        assertEquals(300f, snapshot.mMeanTemperature, 0.01f);
+    }
+
+    @Test
+    public void tiersMarkedStaleAreRefilledOnOpen() throws Exception {
+        File dir = mFolder.newFolder();
+        long startTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(startTime);
+        List<BatteryData> samples = new ArrayList<>();
+        for (long t = 0; t < 6 * HOUR_MS; t += MINUTE_MS) {
+            samples.add(new BatteryData(t, 80, 100, 300, 4000, 3, true, -300, 0));
+        }
+        history.append(samples);
+
+        // The hour tier lost its buckets to a failed write, which left the mark behind
+        File hours = new File(dir, "rollup_" + HOUR_MS / 1000 + "s.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(hours, "rw")) {
+            raf.setLength(RollupTier.HEADER_SIZE);
+        }
+        File mark = new File(dir, SampleHistory.ROLLUPS_STALE_FILENAME);
+        assertTrue(mark.createNewFile());
+
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        reopened.rebuildSummaries();
+        assertFalse(mark.exists());
+        List<RollupTier.Bucket> buckets = new ArrayList<>();
+        reopened.selectRollup(6 * HOUR_MS, 6).read(startTime, startTime + 6 * HOUR_MS, buckets);
+        int count = 0;
+        for (RollupTier.Bucket bucket : buckets) {
+            count += bucket.mCount;
+        }
+        assertEquals(samples.size(), count);
+    }
+}
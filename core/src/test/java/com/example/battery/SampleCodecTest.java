@@ -0,0 +1,111 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SampleCodecTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Jittered 5 s ticks with slowly drifting readings and occasional screen flips
+    static SampleStore samples(int count, long seed) {
+        Random random = new Random(seed);
+        SampleStore store = new SampleStore(count);
+        long time = 0;
+        int level = 100;
+        int temperature = 300;
+        int voltage = 4300;
+        boolean screenOn = true;
+        long screenOnTime = 0;
+        for (int i = 0; i < count; i++) {
+            long step = 5000 + random.nextInt(40) - 20;
+            time += step;
+            // The step is credited to the screen state it was spent in
+            if (screenOn) {
+                screenOnTime += step;
+            }
+            if (random.nextInt(200) == 0) {
+                screenOn = !screenOn;
+            }
+            if (random.nextInt(60) == 0 && level > 0) {
+                level--;
+            }
+            temperature += random.nextInt(3) - 1;
+            voltage += random.nextInt(5) - 2;
+            store.add(time, level, 100, temperature, voltage, i % 997 == 0 ? -1 : 3, screenOn,
+                    -300 - random.nextInt(200), screenOnTime);
+        }
+        return store;
+    }
+
+    private static void assertSame(SampleStore.View expected, int offset, SampleStore.View actual) {
+        for (int i = 0; i < actual.size(); i++) {
+            int e = offset + i;
+            assertEquals(expected.getPastTime(e), actual.getPastTime(i));
+            assertEquals(expected.getLevel(e), actual.getLevel(i));
+            assertEquals(expected.getScale(e), actual.getScale(i));
+            assertEquals(expected.getTemperature(e), actual.getTemperature(i));
+            assertEquals(expected.getVoltage(e), actual.getVoltage(i));
+            assertEquals(expected.getCurrent(e), actual.getCurrent(i));
+            assertEquals(expected.getStatus(e), actual.getStatus(i));
+            assertEquals(expected.isScreenOn(e), actual.isScreenOn(i));
+            assertEquals(expected.getScreenOnTime(e), actual.getScreenOnTime(i));
+        }
+    }
+
+    @Test
+    public void encodeBlock_roundTripsAndStaysSmall() {
+        SampleStore.View written = samples(10_000, 1).view();
+        SampleCodec.Buffer buffer = new SampleCodec.Buffer();
+        SampleCodec.encodeBlock(written, 0, written.size(), buffer);
+
+        SampleStore read = new SampleStore();
+        assertEquals(10_000, SampleCodec.decodeBlock(
+                new SampleCodec.Reader(buffer.data(), 0, buffer.size()), read));
+        assertEquals(10_000, read.size());
+        assertSame(written, 0, read.view());
+        assertTrue(buffer.size() / 10_000.0 < 8);
+    }
+
+    @Test
+    public void encodeBlock_handlesExtremeValues() {
+        SampleStore store = new SampleStore();
+        store.add(Long.MAX_VALUE / 2, 0, 100, Short.MIN_VALUE, Integer.MAX_VALUE, -1, false,
+                Integer.MIN_VALUE, 0);
+        store.add(-5, 100, 0, Short.MAX_VALUE, Integer.MIN_VALUE, 5, true, Integer.MAX_VALUE, 42);
+        store.add(0, 50, 100, 0, 0, 2, true, 0, Long.MAX_VALUE);
+        SampleCodec.Buffer buffer = new SampleCodec.Buffer();
+        SampleCodec.encodeBlock(store.view(), 0, 3, buffer);
+
+        SampleStore read = new SampleStore();
+        SampleCodec.decodeBlock(new SampleCodec.Reader(buffer.toByteArray()), read);
+        assertSame(store.view(), 0, read.view());
+    }
+
+    @Test
+    public void packedSegment_readsRangesAndSeeks() throws Exception {
+        SampleStore.View written = samples(3000, 2).view();
+        File file = mFolder.newFile();
+        PackedSegment.write(file, 77, written);
+
+        PackedSegment segment = new PackedSegment(file);
+        assertEquals(77, segment.readStartTime());
+        assertEquals(3000, segment.size());
+        SampleStore read = new SampleStore();
+        assertEquals(1000, segment.readRange(read, 1000, 2000));
+        assertSame(written, 1000, read.view());
+        assertEquals(written.getPastTime(2999), segment.readLast().mPastTime);
+
+        assertEquals(0, segment.lowerBound(Long.MIN_VALUE));
+        assertEquals(1234, segment.lowerBound(written.getPastTime(1234)));
+        assertEquals(1235, segment.lowerBound(written.getPastTime(1234) + 1));
+        assertEquals(3000, segment.lowerBound(Long.MAX_VALUE));
+    }
+}
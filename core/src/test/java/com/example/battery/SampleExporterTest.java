@@ -0,0 +1,106 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SampleExporterTest {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long START = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void csv_oneLinePerSampleWithWallClockTimes() throws Exception {
+        SampleStore store = new SampleStore();
+        store.add(0, 80, 100, 305, 4012, 3, true, -420, 0);
+        store.add(5000, 79, 100, 306, 4010, 3, false, -380, 5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleExporter exporter = new SampleExporter(out, SampleExporter.FORMAT_CSV);
+        exporter.export(store.view(), 1_000_000, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(2, exporter.finish());
+
+        String[] lines = out.toString(StandardCharsets.US_ASCII.name()).split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(SampleExporter.CSV_HEADER.trim(), lines[0]);
+        assertEquals("1000000,80,100,305,4012,3,1,-420,0", lines[1]);
+        assertEquals("1005000,79,100,306,4010,3,0,-380,5000", lines[2]);
+    }
+
+    @Test
+    public void binary_roundTripsAndFiltersByTime() throws Exception {
+        SampleStore.View samples = SampleCodecTest.samples(5000, 7).view();
+        long from = START + samples.getPastTime(1000);
+        long to = START + samples.getPastTime(3999);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleExporter exporter = new SampleExporter(out, SampleExporter.FORMAT_BINARY);
+        exporter.export(samples, START, from, to);
+        assertEquals(3000, exporter.finish());
+        // Well under the 36 bytes per sample of the raw log
+        assertTrue(out.size() < 3000 * 10);
+
+        SampleStore read = new SampleStore();
+        assertEquals(3000, SampleExporter.readBinary(new ByteArrayInputStream(out.toByteArray()), read));
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(START + samples.getPastTime(1000 + i), read.view().getPastTime(i));
+            assertEquals(samples.getLevel(1000 + i), read.view().getLevel(i));
+            assertEquals(samples.getCurrent(1000 + i), read.view().getCurrent(i));
+            assertEquals(samples.isScreenOn(1000 + i), read.view().isScreenOn(i));
+        }
+    }
+
+    @Test
+    public void history_streamsAcrossSegmentsAndSessions() throws Exception {
+        File dir = mFolder.newFolder();
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(START);
+        List<BatteryData> day = new ArrayList<>();
+        for (long t = 0; t < 3 * 24 * HOUR_MS; t += TimeUnit.MINUTES.toMillis(1)) {
+            day.add(new BatteryData(t, 80, 100, 300, 4000, 3, true, -300, 0));
+        }
+        history.append(day);
+        history.newSession(START + 4 * 24 * HOUR_MS);
+        history.append(day.subList(0, 60));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SampleExporter exporter = new SampleExporter(out, SampleExporter.FORMAT_BINARY);
+        assertEquals(day.size() + 60, history.export(Long.MIN_VALUE, Long.MAX_VALUE, exporter));
+        exporter.finish();
+        SampleStore read = new SampleStore();
+        SampleExporter.readBinary(new ByteArrayInputStream(out.toByteArray()), read);
+        assertEquals(day.size() + 60, read.size());
+        assertEquals(START + 4 * 24 * HOUR_MS, read.view().getPastTime(day.size()));
+
+        out.reset();
+        exporter = new SampleExporter(out, SampleExporter.FORMAT_CSV);
+        long exported = history.export(START + 30 * HOUR_MS, START + 40 * HOUR_MS, exporter);
+        assertEquals(10 * 60 + 1, exported);
+        assertEquals(exported, exporter.finish());
+
+        // A record of the open segment fails its checksum and is left out of the count
+        File[] logs = dir.listFiles((d, name) -> name.endsWith(SampleHistory.SEGMENT_SUFFIX));
+        assertEquals(1, logs.length);
+        try (RandomAccessFile file = new RandomAccessFile(logs[0], "rw")) {
+            file.seek(SampleLog.HEADER_SIZE + 10L * SampleLog.RECORD_SIZE + 3);
+            file.write(0x5A);
+        }
+        exporter = new SampleExporter(new ByteArrayOutputStream(), SampleExporter.FORMAT_CSV);
+        exported = history.export(Long.MIN_VALUE, Long.MAX_VALUE, exporter);
+        assertEquals(day.size() + 59, exported);
+        assertEquals(exported, exporter.finish());
+    }
+}
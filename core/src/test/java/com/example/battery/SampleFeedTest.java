@@ -0,0 +1,84 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleFeedTest {
+
+    private static BatteryData sample(long pastTime) {
+        return new BatteryData(pastTime, 80, 100, 300, 4000, 3, true, -300, 0);
+    }
+
+    @Test
+    public void readSince_copiesOnlyNewSamples() {
+        SampleFeed feed = new SampleFeed();
+        SampleFeed.Cursor cursor = new SampleFeed.Cursor();
+        SampleStore buffer = new SampleStore();
+        for (int i = 0; i < 10; i++) {
+            feed.add(sample(i * 5000L));
+        }
+        assertEquals(10, feed.readSince(cursor, buffer));
+        assertTrue(cursor.isReset());
+
+        long version = feed.version();
+        assertEquals(0, feed.readSince(cursor, buffer));
+        assertEquals(version, feed.version());
+
+        feed.add(sample(50_000));
+        feed.add(sample(55_000));
+        assertEquals(2, feed.readSince(cursor, buffer));
+        assertFalse(cursor.isReset());
+        assertEquals(12, buffer.size());
+        assertEquals(55_000, buffer.view().getPastTime(11));
+    }
+
+    @Test
+    public void readSince_resetsWhenIndicesShift() {
+        SampleFeed feed = new SampleFeed();
+        SampleFeed.Cursor cursor = new SampleFeed.Cursor();
+        feed.add(sample(10_000));
+        feed.readSince(cursor, new SampleStore());
+
+        SampleStore history = new SampleStore();
+        history.add(sample(0));
+        history.add(sample(5000));
+        feed.prepend(history.view());
+
+        SampleStore buffer = new SampleStore();
+        assertEquals(3, feed.readSince(cursor, buffer));
+        assertTrue(cursor.isReset());
+        assertEquals(0, buffer.view().getPastTime(0));
+    }
+
+    @Test
+    public void advance_returnsViewOnlyWhenChanged() {
+        SampleFeed feed = new SampleFeed();
+        SampleFeed.Cursor cursor = new SampleFeed.Cursor();
+        feed.add(sample(0));
+        assertEquals(1, feed.advance(cursor).size());
+        assertTrue(cursor.isReset());
+        assertNull(feed.advance(cursor));
+
+        feed.add(sample(5000));
+        feed.add(sample(10_000));
+        assertEquals(3, feed.advance(cursor).size());
+        assertFalse(cursor.isReset());
+
+        feed.clear();
+        assertTrue(feed.advance(cursor).isEmpty());
+        assertTrue(cursor.isReset());
+    }
+
+    @Test
+    public void readRange_isInclusive() {
+        SampleFeed feed = new SampleFeed();
+        for (int i = 0; i < 100; i++) {
+            feed.add(sample(i * 1000L));
+        }
+        SampleStore buffer = new SampleStore();
+        assertEquals(11, feed.readRange(20_000, 30_000, buffer));
+        assertEquals(20_000, buffer.view().getPastTime(0));
+        assertEquals(100, feed.readRange(Long.MIN_VALUE, Long.MAX_VALUE, new SampleStore()));
+    }
+}
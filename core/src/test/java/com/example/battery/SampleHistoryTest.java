@@ -0,0 +1,213 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SampleHistoryTest {
+
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+    // Recent enough to stay within the retention window
+    private static final long START = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static List<BatteryData> samples(long from, long to, long step) {
+        List<BatteryData> samples = new ArrayList<>();
+        for (long t = from; t < to; t += step) {
+            samples.add(new BatteryData(t, 80, 100, 300, 4000, 3, true, -300, 0));
+        }
+        return samples;
+    }
+
+    @Test
+    public void sessionsSurviveReopenAndNewSession() throws Exception {
+        File dir = mFolder.newFolder();
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(START);
+        history.append(samples(0, 3 * 24 * HOUR_MS, HOUR_MS));
+        history.newSession(START + 4 * 24 * HOUR_MS);
+        history.append(samples(0, 10 * HOUR_MS, HOUR_MS));
+
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        List<SegmentIndex.Session> sessions = reopened.sessions();
+        assertEquals(2, sessions.size());
+        assertEquals(72, sessions.get(0).mCount);
+        assertEquals(10, sessions.get(1).mCount);
+        assertEquals(1, reopened.getCurrentSession());
+        // Day boundaries split the first session into several segments
+        assertTrue(reopened.segmentsOf(0).size() >= 3);
+
+        SampleStore store = new SampleStore();
+        assertEquals(72, reopened.readSegments(reopened.segmentsOf(0), store));
+        assertEquals(71 * HOUR_MS, store.view().getPastTime(71));
+        assertEquals(9 * HOUR_MS, reopened.readLast().mPastTime);
+    }
+
+    @Test
+    public void readRange_seeksToWallClockWindow() throws Exception {
+        SampleHistory history = new SampleHistory(mFolder.newFolder());
+        history.open();
+        history.resume(START);
+        history.append(samples(0, 48 * HOUR_MS, TimeUnit.MINUTES.toMillis(5)));
+
+        SampleStore store = new SampleStore();
+        int read = history.readRange(START + 20 * HOUR_MS, START + 30 * HOUR_MS, store);
+        assertEquals(10 * 12 + 1, read);
+        assertEquals(20 * HOUR_MS, store.view().getPastTime(0));
+        assertEquals(30 * HOUR_MS, store.view().getPastTime(read - 1));
+    }
+
+    @Test
+    public void energyBetween_sumsAcrossSegmentsAndRestarts() throws Exception {
+        File dir = mFolder.newFolder();
+        long step = TimeUnit.MINUTES.toMillis(5);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(START);
+        history.append(samples(0, 30 * HOUR_MS, step));
+
+        // Service restart: same session, re-based timeline
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        reopened.resume(START + 10 * HOUR_MS);
+        reopened.append(samples(20 * HOUR_MS, 38 * HOUR_MS, step));
+
+        // 4 V * -300 mA over 5 minutes is -100 mWh
+        EnergyIndex.Totals all = reopened.energyBetween(START, START + 48 * HOUR_MS);
+        int intervals = 48 * 12 - 1;
+        assertEquals(intervals * -100_000L, all.mEnergyOnUwh);
+        assertEquals(intervals * step, all.mDurationOnMs);
+        assertEquals(0, all.mDurationOffMs);
+        assertEquals(-1.2f, all.getAveragePowerOn(), 1e-4);
+
+        EnergyIndex.Totals window = reopened.energyBetween(START + 20 * HOUR_MS, START + 30 * HOUR_MS);
+        assertEquals(10 * 12 * -100_000L, window.mEnergyOnUwh);
+        assertEquals(10 * 12 * -25_000L, window.mChargeOnUah);
+    }
+
+    @Test
+    public void readWallClock_rebasesEverySegment() throws Exception {
+        File dir = mFolder.newFolder();
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(START);
+        history.append(samples(0, 30 * HOUR_MS, HOUR_MS));
+        // Service restart: same session, re-based timeline
+        SampleHistory reopened = new SampleHistory(dir);
+        reopened.open();
+        reopened.resume(START + 10 * HOUR_MS);
+        reopened.append(samples(20 * HOUR_MS, 38 * HOUR_MS, HOUR_MS));
+
+        SampleStore store = new SampleStore();
+        assertEquals(48, reopened.readWallClock(Long.MIN_VALUE, Long.MAX_VALUE, store));
+        for (int i = 0; i < 48; i++) {
+            assertEquals(START + i * HOUR_MS, store.view().getPastTime(i));
+        }
+        store = new SampleStore();
+        assertEquals(11, reopened.readWallClock(START + 25 * HOUR_MS, START + 35 * HOUR_MS, store));
+        assertEquals(START + 25 * HOUR_MS, store.view().getPastTime(0));
+        assertEquals(START + 35 * HOUR_MS, store.view().getPastTime(10));
+    }
+
+    @Test
+    public void energyBetween_rebuildsAnIndexOutOfStepWithItsSegment() throws Exception {
+        File dir = mFolder.newFolder();
+        long step = TimeUnit.MINUTES.toMillis(5);
+        long day = TimeUnit.DAYS.toMillis(1);
+        long midnight = START - Math.floorMod(START + TimeZone.getDefault().getOffset(START), day);
+        SampleHistory history = new SampleHistory(dir);
+        history.open();
+        history.resume(midnight + HOUR_MS);
+        history.append(samples(0, 2 * HOUR_MS, step));
+        // Records of a batch that never reached the segment, with the next batch behind them
+        File[] energy = dir.listFiles((d, name) -> name.endsWith(SampleHistory.ENERGY_SUFFIX));
+        assertEquals(1, energy.length);
+        try (RandomAccessFile file = new RandomAccessFile(energy[0], "rw")) {
+            file.seek(file.length());
+            file.write(new byte[3 * EnergyIndex.RECORD_SIZE]);
+        }
+        history.append(samples(2 * HOUR_MS, 4 * HOUR_MS, step));
+
+        EnergyIndex.Totals window = history.energyBetween(midnight + 2 * HOUR_MS,
+                midnight + 4 * HOUR_MS);
+        // 2 h of 5-minute intervals at -100 mWh each
+        assertEquals(24 * -100_000L, window.mEnergyOnUwh);
+        assertEquals(2 * HOUR_MS, window.mDurationOnMs);
+    }
+
+    @Test
+    public void distributionsOf_keepsToTheSession() throws Exception {
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        long hour = START - Math.floorMod(START + TimeZone.getDefault().getOffset(START), HOUR_MS);
+        SampleHistory history = new SampleHistory(mFolder.newFolder());
+        history.open();
+        history.resume(hour + 5 * minute);
+        List<BatteryData> cool = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            cool.add(new BatteryData(i * minute, 80, 100, 300, 4000, 3, true, -300, 0));
+        }
+        history.append(cool);
+        history.newSession(hour + 20 * minute);
+        List<BatteryData> hot = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hot.add(new BatteryData(i * minute, 70, 100, 450, 3900, 3, true, -900, 0));
+        }
+        history.append(hot);
+
+        // Both sessions share an hourly sketch
+        assertEquals(20, history.distributionsBetween(hour, hour + 30 * minute)
+                .getTemperature().getCount());
+        SampleDistributions first = history.distributionsOf(history.segmentsOf(0));
+        assertEquals(10, first.getTemperature().getCount());
+        assertEquals(300, first.getTemperature().getMax());
+        assertEquals(450, history.distributionsOf(history.segmentsOf(1)).getTemperature().getMin());
+    }
+
+    @Test
+    public void bucketsOf_clipsTheEdgesToTheSession() throws Exception {
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        long hour = START - Math.floorMod(START + TimeZone.getDefault().getOffset(START), HOUR_MS);
+        SampleHistory history = new SampleHistory(mFolder.newFolder());
+        history.open();
+        history.resume(hour + 5 * minute);
+        history.append(samples(0, 10 * minute, minute));
+        history.newSession(hour + 20 * minute);
+        List<BatteryData> hot = new ArrayList<>();
+        for (long t = 0; t < 3 * HOUR_MS; t += minute) {
+            hot.add(new BatteryData(t, 70, 100, 450, 3900, 3, false, -900, 0));
+        }
+        history.append(hot);
+
+        // Hourly buckets: the first one is shared with the session before
+        RollupTier tier = history.selectRollup(10 * HOUR_MS, 10);
+        assertEquals(HOUR_MS, tier.getDuration());
+        List<RollupTier.Bucket> buckets = history.bucketsOf(tier, history.segmentsOf(1));
+        assertEquals(4, buckets.size());
+        int count = 0;
+        for (RollupTier.Bucket bucket : buckets) {
+            count += bucket.mCount;
+            assertEquals(450, bucket.mMin[RollupTier.TEMPERATURE]);
+            assertEquals(0f, bucket.getScreenOnFraction(), 0f);
+        }
+        assertEquals(hot.size(), count);
+        assertEquals(20 * minute, buckets.get(0).mFirstOffset);
+
+        List<RollupTier.Bucket> before = history.bucketsOf(tier, history.segmentsOf(0));
+        assertEquals(1, before.size());
+        assertEquals(10, before.get(0).mCount);
+        assertEquals(300, before.get(0).mMax[RollupTier.TEMPERATURE]);
+    }
+}
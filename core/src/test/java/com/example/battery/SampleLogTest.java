@@ -0,0 +1,145 @@
+package com.example.battery;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+public class SampleLogTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static SampleStore samples(int count) {
+        SampleStore store = new SampleStore();
+        for (int i = 0; i < count; i++) {
+            store.add(i * 5000L, 90 - i % 10, 100, 300 + i % 7, 4000 + i,
+                    i % 5 == 0 ? -1 : 3, i % 3 == 0, -200 - i, i);
+        }
+        return store;
+    }
+
+    @Test
+    public void appendAndRead_roundTrips() throws Exception {
+        SampleLog log = new SampleLog(mFolder.newFile());
+        log.create(123);
+        SampleStore.View written = samples(5000).view();
+        log.append(written, 0, 3000);
+        log.append(written, 3000, 5000);
+
+        SampleStore read = new SampleStore();
+        assertEquals(5000, log.readInto(read, log.size()));
+        assertEquals(123, log.readStartTime());
+        SampleStore.View view = read.view();
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(written.getPastTime(i), view.getPastTime(i));
+            assertEquals(written.getStatus(i), view.getStatus(i));
+            assertEquals(written.isScreenOn(i), view.isScreenOn(i));
+            assertEquals(written.getCurrent(i), view.getCurrent(i));
+            assertEquals(written.getScreenOnTime(i), view.getScreenOnTime(i));
+        }
+        assertEquals(4999, log.readLast().mScreenOnTime);
+    }
+
+    @Test
+    public void append_failedWriteIsCutBackOff() throws Exception {
+        File file = mFolder.newFile();
+        SampleStore.View written = samples(300).view();
+        new SampleLog(file).create(0);
+        new SampleLog(file).append(written, 0, 100);
+        SampleLog failing = new SampleLog(file) {
+            @Override
+            void writeTo(FileChannel channel, ByteBuffer buffer) throws IOException {
+                // Half a batch reaches the file, ending inside a record
+                buffer.limit(buffer.position() + 50 * SampleLog.RECORD_SIZE + 7);
+                channel.write(buffer);
+                throw new IOException("No space left on device");
+            }
+        };
+        try {
+            failing.append(written, 100, 200);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(SampleLog.HEADER_SIZE + 100L * SampleLog.RECORD_SIZE, file.length());
+
+        // The retry lands right behind the records that were there before
+        SampleLog log = new SampleLog(file);
+        log.append(written, 100, 300);
+        SampleStore read = new SampleStore();
+        assertEquals(300, log.readInto(read, log.size()));
+        for (int i = 0; i < 300; i++) {
+            assertEquals(written.getPastTime(i), read.view().getPastTime(i));
+        }
+        assertEquals(0, log.recover().mTruncatedBytes);
+    }
+
+    @Test
+    public void recover_dropsTornAndCorruptTail() throws Exception {
+        File file = mFolder.newFile();
+        SampleLog log = new SampleLog(file);
+        log.create(0);
+        log.append(samples(100).view(), 0, 100);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // Scribble over the last record and leave half of another one behind it
+            raf.seek(SampleLog.HEADER_SIZE + 99L * SampleLog.RECORD_SIZE + 3);
+            raf.write(0x5A);
+            raf.seek(raf.length());
+            raf.write(new byte[SampleLog.RECORD_SIZE / 2]);
+        }
+
+        SampleLog.Recovery recovery = log.recover();
+        assertEquals(99, recovery.mRecovered);
+        assertEquals(SampleLog.RECORD_SIZE + SampleLog.RECORD_SIZE / 2, recovery.mTruncatedBytes);
+        assertEquals(99, log.size());
+        assertEquals(98 * 5000L, log.readLast().mPastTime);
+    }
+
+    @Test
+    public void recover_movesUnreadableLogAside() throws Exception {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[64]);
+        }
+        SampleLog log = new SampleLog(file);
+
+        assertEquals(0, log.recover().mRecovered);
+        assertFalse(log.exists());
+        assertTrue(new File(file.getPath() + ".corrupt").exists());
+    }
+
+    @Test
+    public void version2_screenOnCounterIsReadAsMs() throws Exception {
+        File file = mFolder.newFile();
+        SampleLog log = new SampleLog(file);
+        log.create(123);
+        log.append(samples(100).view(), 0, 100);
+        // Same records as version 3, screen-on time 0..99 now read as a counter
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(2);
+        }
+        assertEquals(99 * BatteryData.LEGACY_SCREEN_ON_TICK_MS, log.readLast().mScreenOnTime);
+        SampleStore read = new SampleStore();
+        assertEquals(100, log.readInto(read, 100));
+        assertEquals(42 * BatteryData.LEGACY_SCREEN_ON_TICK_MS, read.view().getScreenOnTime(42));
+
+        SampleLog.Recovery recovery = log.recover();
+        assertTrue(recovery.mUpgraded);
+        assertEquals(100, recovery.mRecovered);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(4);
+            assertEquals(SampleLog.FORMAT_VERSION, raf.readInt());
+        }
+        assertEquals(123, log.readStartTime());
+        assertEquals(99 * BatteryData.LEGACY_SCREEN_ON_TICK_MS, log.readLast().mScreenOnTime);
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.battery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SamplingPolicyTest {
+
+    private final SamplingPolicy mPolicy = new SamplingPolicy(5_000, 60_000, 30_000);
+
+    @Test
+    public void intervalFollowsState() {
+        assertEquals(5_000, mPolicy.getInterval(true, false));
+        assertEquals(60_000, mPolicy.getInterval(false, false));
+        assertEquals(30_000, mPolicy.getInterval(false, true));
+        assertEquals(5_000, mPolicy.getInterval(true, true));
+        assertEquals(40_000, mPolicy.getDelay(120_000, 100_000, false, false));
+        assertEquals(0, mPolicy.getDelay(200_000, 100_000, false, false));
+    }
+
+    @Test
+    public void screenOffPollsShareWakeups() {
+        assertFalse(mPolicy.shouldPollEarly(129_999, 100_000, false, false));
+        assertTrue(mPolicy.shouldPollEarly(130_000, 100_000, false, false));
+        // With the screen on, polls stay on schedule
+        assertFalse(mPolicy.shouldPollEarly(104_999, 100_000, true, false));
+        assertTrue(mPolicy.shouldPollEarly(105_000, 100_000, true, false));
+    }
+}